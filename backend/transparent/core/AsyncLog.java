@@ -0,0 +1,473 @@
+package transparent.core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import transparent.core.database.Database;
+
+/**
+ * Writes the logs of modules on a single background thread, so that the
+ * threads talking to modules never wait on a log file or the console.
+ * Messages are placed in a bounded, lock-free ring and formatted only by
+ * the writer, which drains the ring in batches through buffered streams
+ * and flushes each file once per batch. Log files are rotated once they
+ * exceed the maximum log size, keeping a fixed number of older copies.
+ * <p>
+ * Messages below the current {@link Level} are discarded before anything
+ * is queued; callers that build expensive messages should check
+ * {@link #isEnabled(Level)} first. If the ring is full, messages are
+ * dropped rather than blocking the caller, and the number dropped is
+ * reported in the log.
+ */
+public class AsyncLog
+{
+	public enum Level {
+		DEBUG,
+		INFO,
+		ERROR,
+		OFF
+	}
+
+	private static final String LOG_LEVEL = "log.level";
+	private static final String LOG_SIZE = "log.size";
+
+	private static final int CAPACITY = 65536; /* in messages, a power of two */
+	private static final int MAX_BATCH = 4096; /* in messages */
+	private static final int BUFFER_SIZE = 65536; /* in bytes */
+	private static final long DEFAULT_MAX_SIZE = 10485760; /* 10 MB */
+	private static final int BACKUP_COUNT = 4;
+	private static final long IDLE_WAIT = 100000000L; /* in nanoseconds */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static volatile Level level = Level.INFO;
+	private static volatile long maxSize = DEFAULT_MAX_SIZE;
+
+	/* the ring of queued messages; a slot is null until its message is
+	 * published, and is cleared by the writer before it is reused */
+	private static final AtomicReferenceArray<Message> ring =
+			new AtomicReferenceArray<Message>(CAPACITY);
+	private static final AtomicLong tail = new AtomicLong(0);
+	private static final AtomicLong head = new AtomicLong(0);
+
+	private static final AtomicLong dropped = new AtomicLong(0);
+	private static final AtomicLong written = new AtomicLong(0);
+
+	private static final Thread writer = new Thread(new Writer(), "log-writer");
+	private static volatile boolean sleeping = false;
+	private static volatile boolean running = true;
+
+	static {
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private AsyncLog() { }
+
+	public static boolean isEnabled(Level messageLevel) {
+		return messageLevel.compareTo(level) >= 0;
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	public static void setLevel(Level newLevel) {
+		level = newLevel;
+	}
+
+	public static long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the size, in bytes, beyond which a log file is rotated. A size
+	 * of zero disables rotation.
+	 */
+	public static void setMaxSize(long size) {
+		maxSize = size;
+	}
+
+	public static long getQueuedCount() {
+		return tail.get() - head.get();
+	}
+
+	public static long getWrittenCount() {
+		return written.get();
+	}
+
+	public static long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the log file with the given path. The file is opened, in
+	 * append mode, by the writer when the first message arrives for it.
+	 */
+	public static LogFile open(String path) {
+		return new LogFile(path);
+	}
+
+	/**
+	 * Queues a message for the given log file. If <code>label</code> is
+	 * not null, the message is also printed to the console, under that
+	 * label, whatever the current level.
+	 */
+	public static void log(LogFile file, Level messageLevel,
+			String className, String methodName,
+			String message, Exception exception, String label)
+	{
+		boolean enabled = isEnabled(messageLevel);
+		if (!enabled && label == null)
+			return;
+		Message entry = new Message(enabled ? file : null, messageLevel);
+		entry.className = className;
+		entry.methodName = methodName;
+		entry.message = message;
+		entry.exception = exception;
+		entry.label = label;
+		offer(entry);
+	}
+
+	/**
+	 * Queues the given bytes to be written to the log file unchanged, as
+	 * output of the given level. If <code>label</code> is not null, the
+	 * bytes are also printed to the console, whatever the current level.
+	 */
+	public static void write(LogFile file, Level messageLevel,
+			byte[] data, int offset, int length, String label)
+	{
+		boolean enabled = (file != null && isEnabled(messageLevel));
+		if (length == 0 || (!enabled && label == null))
+			return;
+		Message entry = new Message(enabled ? file : null, messageLevel);
+		entry.label = label;
+		entry.data = new byte[length];
+		System.arraycopy(data, offset, entry.data, 0, length);
+		offer(entry);
+	}
+
+	private static void offer(Message entry)
+	{
+		while (true) {
+			long position = tail.get();
+			if (position - head.get() >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if (tail.compareAndSet(position, position + 1)) {
+				ring.set((int) position & (CAPACITY - 1), entry);
+				break;
+			}
+		}
+		if (sleeping)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Writes out every message queued so far, closes all log files and
+	 * stops the writer. Messages logged afterwards are discarded.
+	 */
+	public static void shutdown()
+	{
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public static boolean load(Database database)
+	{
+		try {
+			String levelString = database.getMetadata(LOG_LEVEL);
+			if (levelString != null)
+				level = Level.valueOf(levelString.toUpperCase());
+			String sizeString = database.getMetadata(LOG_SIZE);
+			if (sizeString != null)
+				maxSize = Long.parseLong(sizeString);
+			return true;
+		} catch (RuntimeException e) {
+			Console.printError("AsyncLog", "load",
+					"Unable to parse log settings.", e);
+			return false;
+		}
+	}
+
+	public static boolean save(Database database)
+	{
+		return database.setMetadata(LOG_LEVEL, level.toString().toLowerCase())
+			&& database.setMetadata(LOG_SIZE, Long.toString(maxSize));
+	}
+
+	/**
+	 * A log file, whose stream is only touched by the writer.
+	 */
+	public static class LogFile
+	{
+		private final String path;
+		private OutputStream out = null;
+		private long size = 0;
+		private boolean dirty = false;
+		private boolean failed = false;
+
+		private LogFile(String path) {
+			this.path = path;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		private boolean ensureOpen()
+		{
+			if (out != null)
+				return true;
+			if (failed)
+				return false;
+			try {
+				size = new File(path).length();
+				out = new BufferedOutputStream(
+						new FileOutputStream(path, true), BUFFER_SIZE);
+				return true;
+			} catch (IOException e) {
+				failed = true;
+				Console.printError("AsyncLog", "open", "Unable to open log file '"
+						+ path + "'. Logging to it is disabled.", e);
+				return false;
+			}
+		}
+
+		private void write(byte[] data) throws IOException
+		{
+			if (!ensureOpen())
+				return;
+			long limit = maxSize;
+			if (limit > 0 && size > 0 && size + data.length > limit) {
+				rotate();
+				if (!ensureOpen())
+					return;
+			}
+			out.write(data);
+			size += data.length;
+			dirty = true;
+		}
+
+		/**
+		 * Renames the file to <code>path.1</code>, after shifting the older
+		 * copies up by one and removing the oldest.
+		 */
+		private void rotate() throws IOException
+		{
+			close();
+			new File(path + "." + BACKUP_COUNT).delete();
+			for (int i = BACKUP_COUNT - 1; i > 0; i--) {
+				File backup = new File(path + "." + i);
+				if (backup.exists())
+					backup.renameTo(new File(path + "." + (i + 1)));
+			}
+			File current = new File(path);
+			if (!current.renameTo(new File(path + ".1")))
+				current.delete();
+			size = 0;
+		}
+
+		private void flush() throws IOException
+		{
+			dirty = false;
+			if (out != null)
+				out.flush();
+		}
+
+		private void close() throws IOException
+		{
+			dirty = false;
+			if (out != null) {
+				OutputStream stream = out;
+				out = null;
+				stream.close();
+			}
+		}
+	}
+
+	private static class Message
+	{
+		final LogFile file;
+		final Level level;
+		final long time = System.currentTimeMillis();
+		String className;
+		String methodName;
+		String message;
+		Exception exception;
+		String label;
+		byte[] data;
+
+		Message(LogFile file, Level level) {
+			this.file = file;
+			this.level = level;
+		}
+	}
+
+	private static class Writer implements Runnable
+	{
+		private final SimpleDateFormat format =
+				new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		private final StringBuilder builder = new StringBuilder(256);
+		private final ArrayList<LogFile> dirty = new ArrayList<LogFile>();
+		private final HashSet<LogFile> open = new HashSet<LogFile>();
+		private long reportedDrops = 0;
+
+		/* the formatted time of the last message, which is reused while
+		 * the clock stays in the same millisecond */
+		private long lastTime = -1;
+		private String lastStamp = null;
+
+		@Override
+		public void run()
+		{
+			while (true) {
+				int count = drain();
+				if (count > 0)
+					continue;
+
+				/* a claimed slot whose message is not yet published
+				 * will be filled shortly, so wait without sleeping */
+				if (tail.get() != head.get()) {
+					Thread.yield();
+					continue;
+				}
+
+				/* recheck after announcing that we sleep, so that
+				 * a message published meanwhile is not missed */
+				sleeping = true;
+				if (tail.get() == head.get()) {
+					if (!running) {
+						sleeping = false;
+						break;
+					}
+					LockSupport.parkNanos(IDLE_WAIT);
+				}
+				sleeping = false;
+			}
+
+			for (LogFile file : open) {
+				try {
+					file.close();
+				} catch (IOException e) { }
+			}
+			open.clear();
+		}
+
+		/**
+		 * Writes out up to a batch of messages, then flushes every file
+		 * written to, and returns the number of messages written.
+		 */
+		private int drain()
+		{
+			int count = 0;
+			long position = head.get();
+			while (count < MAX_BATCH) {
+				int slot = (int) position & (CAPACITY - 1);
+				Message entry = ring.get(slot);
+				if (entry == null)
+					break;
+				ring.set(slot, null);
+				head.lazySet(++position);
+				write(entry);
+				count++;
+			}
+
+			long drops = dropped.get();
+			if (drops != reportedDrops) {
+				Console.printError("AsyncLog", "drain", (drops - reportedDrops)
+						+ " log messages were dropped as the log queue was full.");
+				reportedDrops = drops;
+			}
+
+			for (LogFile file : dirty) {
+				try {
+					file.flush();
+				} catch (IOException e) {
+					Console.printError("AsyncLog", "drain", "Unable to flush log file '"
+							+ file.path + "'.", e);
+				}
+			}
+			dirty.clear();
+			written.addAndGet(count);
+			return count;
+		}
+
+		private void write(Message entry)
+		{
+			if (entry.label != null)
+				echo(entry);
+			LogFile file = entry.file;
+			if (file == null)
+				return;
+
+			byte[] data = entry.data;
+			if (data == null) {
+				builder.setLength(0);
+				if (entry.time != lastTime) {
+					lastTime = entry.time;
+					lastStamp = format.format(new Date(entry.time));
+				}
+				builder.append(lastStamp).append(' ')
+					.append(entry.className).append('.').append(entry.methodName);
+				if (entry.level == Level.ERROR)
+					builder.append(" ERROR");
+				builder.append(": ").append(entry.message);
+				if (entry.exception != null)
+					builder.append(" Exception thrown: ").append(entry.exception);
+				builder.append(Core.NEWLINE);
+				data = builder.toString().getBytes(UTF8);
+			}
+
+			boolean listed = file.dirty;
+			try {
+				file.write(data);
+			} catch (IOException e) {
+				Console.printError("AsyncLog", "write", "Unable to write log file '"
+						+ file.path + "'.", e);
+			}
+			if (!listed && file.dirty) {
+				dirty.add(file);
+				open.add(file);
+			}
+		}
+
+		private void echo(Message entry)
+		{
+			Console.lockConsole();
+			if (entry.data != null) {
+				/* output of the module itself, which is echoed as it is */
+				Console.print(new String(entry.data, UTF8));
+				Console.flush();
+			} else if (entry.level == Level.ERROR) {
+				Console.println(entry.label + " reported error:");
+				if (entry.exception != null)
+					Console.printError(entry.className, entry.methodName,
+							entry.message, entry.exception);
+				else Console.printError(entry.className,
+						entry.methodName, entry.message);
+			} else {
+				Console.println(entry.label + " information:" + Core.NEWLINE
+						+ entry.className + '.' + entry.methodName + ": " + entry.message);
+				Console.flush();
+			}
+			Console.unlockConsole();
+		}
+	}
+}
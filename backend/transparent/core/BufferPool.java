@@ -0,0 +1,88 @@
+package transparent.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared pool of byte arrays, so that pages are moved to modules through
+ * reused buffers instead of newly allocated ones. Buffers are bucketed by
+ * power-of-two size, and the pool holds at most {@link #MAX_POOLED_BYTES}
+ * bytes in total; buffers released beyond that are left to the garbage
+ * collector.
+ */
+public class BufferPool
+{
+	private static final int MIN_SHIFT = 12; /* 4 KB */
+	private static final int MAX_SHIFT = 24; /* 16 MB */
+	private static final long MAX_POOLED_BYTES = 67108864; /* 64 MB */
+
+	private static final AtomicLong pooledBytes = new AtomicLong(0);
+
+	private static final List<ConcurrentLinkedQueue<byte[]>> buckets =
+			new ArrayList<ConcurrentLinkedQueue<byte[]>>(MAX_SHIFT - MIN_SHIFT + 1);
+
+	static {
+		for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++)
+			buckets.add(new ConcurrentLinkedQueue<byte[]>());
+	}
+
+	/**
+	 * Returns the bucket of the smallest buffers holding at least
+	 * <code>size</code> bytes, or -1 if such buffers are not pooled.
+	 */
+	private static int getBucket(int size)
+	{
+		if (size > (1 << MAX_SHIFT))
+			return -1;
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+	}
+
+	/**
+	 * Returns a buffer of at least <code>size</code> bytes. Its contents
+	 * are undefined.
+	 */
+	public static byte[] acquire(int size)
+	{
+		int bucket = getBucket(size);
+		if (bucket == -1)
+			return new byte[size];
+
+		byte[] buffer = buckets.get(bucket).poll();
+		if (buffer == null)
+			return new byte[1 << (bucket + MIN_SHIFT)];
+		pooledBytes.addAndGet(-buffer.length);
+		return buffer;
+	}
+
+	/**
+	 * Returns the given buffer to the pool. The caller must not use the
+	 * buffer afterwards.
+	 */
+	public static void release(byte[] buffer)
+	{
+		int bucket = getBucket(buffer.length);
+		if (bucket == -1 || buffer.length != 1 << (bucket + MIN_SHIFT))
+			return;
+		if (pooledBytes.addAndGet(buffer.length) > MAX_POOLED_BYTES) {
+			pooledBytes.addAndGet(-buffer.length);
+			return;
+		}
+		buckets.get(bucket).offer(buffer);
+	}
+
+	/**
+	 * Returns a buffer of at least <code>size</code> bytes holding the
+	 * first <code>used</code> bytes of the given buffer, which is
+	 * released, so the caller must only release the returned buffer.
+	 */
+	public static byte[] grow(byte[] buffer, int used, int size)
+	{
+		byte[] grown = acquire(size);
+		System.arraycopy(buffer, 0, grown, 0, used);
+		release(buffer);
+		return grown;
+	}
+}
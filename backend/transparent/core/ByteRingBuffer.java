@@ -0,0 +1,185 @@
+package transparent.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, blocking queue of bytes. Bytes are written and read in bulk,
+ * and blocked readers (or writers) are woken up as soon as data (or space)
+ * becomes available, instead of polling for it.
+ */
+class ByteRingBuffer
+{
+	private final byte[] buffer;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	/* index of the next byte to be read, and the number of buffered bytes */
+	private int head = 0;
+	private int size = 0;
+
+	/* set when the writer reaches the end of its stream */
+	private boolean eof = false;
+
+	/* set when the reader no longer wants any data */
+	private boolean closed = false;
+
+	/* set when the writer fails, and rethrown to the reader */
+	private IOException error = null;
+
+	public ByteRingBuffer(int capacity) {
+		this.buffer = new byte[capacity];
+	}
+
+	/**
+	 * Reads up to <code>length</code> bytes into the given array, waiting at
+	 * most <code>timeout</code> nanoseconds for data to arrive. Returns the
+	 * number of bytes read, 0 if the timeout elapsed or the reader was woken
+	 * up by {@link #wakeup()}, or -1 if the writer
+	 * reached the end of its stream and all remaining bytes have been read.
+	 */
+	public int read(byte[] dest, int offset, int length, long timeout)
+			throws IOException
+	{
+		if (length == 0)
+			return 0;
+
+		lock.lock();
+		try {
+			while (size == 0) {
+				if (error != null)
+					throw error;
+				else if (eof || closed)
+					return -1;
+				else if (timeout <= 0)
+					return 0;
+
+				/* wait once, so that a wakeup returns control to the caller */
+				notEmpty.awaitNanos(timeout);
+				timeout = 0;
+			}
+
+			int read = Math.min(length, size);
+			int first = Math.min(read, buffer.length - head);
+			System.arraycopy(buffer, head, dest, offset, first);
+			System.arraycopy(buffer, 0, dest, offset + first, read - first);
+			head = (head + read) % buffer.length;
+			size -= read;
+			notFull.signal();
+			return read;
+		} catch (InterruptedException e) {
+			throw new InterruptedStreamException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes all of the given bytes, blocking while the buffer is full.
+	 */
+	public void write(byte[] src, int offset, int length) throws IOException
+	{
+		lock.lock();
+		try {
+			while (length > 0) {
+				while (size == buffer.length && !closed)
+					notFull.await();
+				if (closed)
+					throw new IOException("Buffer closed by reader.");
+				else if (eof)
+					throw new IOException("Write after end of stream.");
+
+				int tail = (head + size) % buffer.length;
+				int written = Math.min(length, buffer.length - size);
+				int first = Math.min(written, buffer.length - tail);
+				System.arraycopy(src, offset, buffer, tail, first);
+				System.arraycopy(src, offset + first, buffer, 0, written - first);
+				size += written;
+				offset += written;
+				length -= written;
+				notEmpty.signalAll();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int available()
+	{
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		return available() == 0;
+	}
+
+	/**
+	 * Called by the writer when there is no more data.
+	 */
+	public void finish()
+	{
+		lock.lock();
+		try {
+			eof = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called by the writer when reading from its source failed. The
+	 * exception is thrown to the reader once the buffer is drained.
+	 */
+	public void fail(IOException e)
+	{
+		lock.lock();
+		try {
+			error = e;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called by the reader when it no longer wants any data. Any blocked
+	 * writers are released with an exception.
+	 */
+	public void close()
+	{
+		lock.lock();
+		try {
+			closed = true;
+			size = 0;
+			notFull.signalAll();
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes up any blocked readers, so that they may re-check whatever
+	 * condition they are waiting on.
+	 */
+	public void wakeup()
+	{
+		lock.lock();
+		try {
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -25,6 +25,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.PatternSyntaxException;
 
 import org.fusesource.jansi.Ansi;
 import org.fusesource.jansi.Ansi.Erase;
@@ -45,7 +46,13 @@ public class Console
 			new TriggersCommand(),
 			new MigrateCommand(),
 			new TestServerCommand(),
-			new ImageQueueCommand());
+			new ImageQueueCommand(),
+			new RateLimitCommand(),
+			new CacheCommand(),
+			new LogCommand(),
+			new StatsCommand(),
+			new RecrawlCommand(),
+			new ReplayCommand());
 
 	private static ReentrantLock consoleLock = new ReentrantLock();
 	private static int nestedLock = 0;
@@ -447,6 +454,27 @@ public class Console
 			println(GRAY + "  reschedules: " + DEFAULT + task.reschedules());
 			println(GRAY + "  dummy: " + DEFAULT + task.isDummy());
 			println(GRAY + "  state: " + DEFAULT + task.getState());
+
+			Task.Shard[] shards = task.getShards();
+			if (shards == null)
+				continue;
+			int finished = 0;
+			long processed = 0;
+			for (Task.Shard shard : shards) {
+				if (shard.isFinished())
+					finished++;
+				processed += shard.getProcessedCount();
+			}
+			println(GRAY + "  shards: " + DEFAULT + finished + "/" + shards.length
+					+ " finished, " + processed + " product(s) parsed");
+			for (Task.Shard shard : shards) {
+				String end = (shard.getEnd() == -1) ? "" : Long.toString(shard.getEnd());
+				println(GRAY + "    [" + shard.getIndex() + "] rows "
+						+ shard.getStart() + "-" + end + ": " + DEFAULT
+						+ (shard.isFinished() ? "finished" : "unfinished")
+						+ ", " + shard.getProcessedCount() + " parsed, state: '"
+						+ shard.getState() + "'");
+			}
 		}
 	}
 
@@ -598,6 +626,12 @@ public class Console
     			println(GRAY + "  api: " + DEFAULT + module.getApi());
     			println(GRAY + "  is remote: " + DEFAULT + module.isRemote());
     			println(GRAY + "  blocked downloading: " + DEFAULT + module.blockedDownload());
+    			println(GRAY + "  pooled: " + DEFAULT + module.isPooled()
+    					+ " (" + ModuleProcessPool.getIdleCount(module) + " idle)");
+    			println(GRAY + "  request window: " + DEFAULT + module.getWindowSize());
+    			println(GRAY + "  info parse shards: " + DEFAULT + module.getShardCount());
+    			println(GRAY + "  runs in core JVM: " + DEFAULT + module.isInJvm());
+    			println(GRAY + "  download frame size: " + DEFAULT + module.getFrameSize());
     			println(GRAY + "  active logging: " + DEFAULT + module.isLoggingActivity());
     			println(GRAY + "  is saved: " + DEFAULT + (module.getPersistentIndex() != -1));
     		}
@@ -752,7 +786,7 @@ public class Console
 		}
 
 		private void usage() {
-			println("usage: modules get [id] [name|source|path|remote|api|blocked|activelog|url|sourceurl]");
+			println("usage: modules get [id] [name|source|path|remote|api|blocked|pooled|window|shards|injvm|frame|activelog|url|sourceurl]");
 		}
 
 		@Override
@@ -796,6 +830,16 @@ public class Console
 				println(Boolean.toString(module.isRemote()));
 			} else if (key.equals("blocked")) {
 				println(Boolean.toString(module.blockedDownload()));
+			} else if (key.equals("pooled")) {
+				println(Boolean.toString(module.isPooled()));
+			} else if (key.equals("window")) {
+				println(Integer.toString(module.getWindowSize()));
+			} else if (key.equals("shards")) {
+				println(Integer.toString(module.getShardCount()));
+			} else if (key.equals("injvm")) {
+				println(Boolean.toString(module.isInJvm()));
+			} else if (key.equals("frame")) {
+				println(Integer.toString(module.getFrameSize()));
 			} else if (key.equals("activelog")) {
 				println(Boolean.toString(module.isLoggingActivity()));
 			}
@@ -810,7 +854,7 @@ public class Console
 
 		private void usage() {
 			println("usage: modules set [id] [name|source"
-					+ "|path|remote|blocked|api|activelog|url|sourceurl] [value]");
+					+ "|path|remote|blocked|pooled|window|shards|injvm|frame|api|activelog|url|sourceurl] [value]");
 		}
 
 		@Override
@@ -865,6 +909,55 @@ public class Console
 				else {
 					commandError("modules set", "Unable to parse boolean parameter.");
 				}
+			} else if (key.equals("pooled")) {
+				Boolean parsed = parseBoolean(value);
+				if (parsed != null) {
+					module.setPooled(parsed);
+					if (!parsed)
+						ModuleProcessPool.evict(module);
+				} else {
+					commandError("modules set", "Unable to parse boolean parameter.");
+				}
+			} else if (key.equals("window")) {
+				try {
+					int windowSize = Integer.parseInt(value);
+					if (windowSize < 1)
+						commandError("modules set", "Window size must be positive.");
+					else
+						module.setWindowSize(windowSize);
+				} catch (NumberFormatException e) {
+					commandError("modules set", "Unable to parse integer parameter.");
+				}
+			} else if (key.equals("shards")) {
+				try {
+					int shardCount = Integer.parseInt(value);
+					if (shardCount < 1)
+						commandError("modules set", "Shard count must be positive.");
+					else
+						module.setShardCount(shardCount);
+				} catch (NumberFormatException e) {
+					commandError("modules set", "Unable to parse integer parameter.");
+				}
+			} else if (key.equals("injvm")) {
+				Boolean parsed = parseBoolean(value);
+				if (parsed != null) {
+					module.setInJvm(parsed);
+					/* idle processes were started by the other sandbox */
+					ModuleProcessPool.evict(module);
+				} else {
+					commandError("modules set", "Unable to parse boolean parameter.");
+				}
+			} else if (key.equals("frame")) {
+				try {
+					int frameSize = Integer.parseInt(value);
+					if (frameSize < 1 || frameSize > Module.MAX_FRAME_SIZE)
+						commandError("modules set", "Frame size must be between 1 and "
+								+ Module.MAX_FRAME_SIZE + " bytes.");
+					else
+						module.setFrameSize(frameSize);
+				} catch (NumberFormatException e) {
+					commandError("modules set", "Unable to parse integer parameter.");
+				}
 			} else if (key.equals("activelog")) {
 				Boolean parsed = parseBoolean(value);
 				if (parsed != null)
@@ -1060,7 +1153,7 @@ public class Console
 		private void usage() {
 			Console.println("usage: tasks add [parse type] [module id]"
 					+ " [start time] [reschedules] [dummy] [state]");
-			Console.println("  [parse type] can either be 'info', 'list', or 'image'.");
+			Console.println("  [parse type] can either be 'info', 'list', 'image', or 'refresh'.");
 			Console.println("  [start time] must be an integer indicating milliseconds from now.");
 			Console.println("  [dummy] indicates whether information is written to the database.");
 			Console.println("  [state] is the state data passed to the module.");
@@ -1128,6 +1221,8 @@ public class Console
 					type = TaskType.PRODUCT_INFO_PARSE;
 				} else if (typeString.equals("image")) {
 					type = TaskType.IMAGE_FETCH;
+				} else if (typeString.equals("refresh")) {
+					type = TaskType.PRODUCT_REFRESH;
 				} else {
 					lockConsole();
 					commandError("tasks add", "Unable to parse task type.");
@@ -1181,7 +1276,7 @@ public class Console
 			} else {
 				try {
 					in.setUseHistory(false);
-					String typeString = in.readLine("Enter task type: (list|info|image) ").toLowerCase();
+					String typeString = in.readLine("Enter task type: (list|info|image|refresh) ").toLowerCase();
 					TaskType type;
 					if (typeString.equals("list")) {
 						type = TaskType.PRODUCT_LIST_PARSE;
@@ -1189,6 +1284,8 @@ public class Console
 						type = TaskType.PRODUCT_INFO_PARSE;
 					} else if (typeString.equals("image")) {
 						type = TaskType.IMAGE_FETCH;
+					} else if (typeString.equals("refresh")) {
+						type = TaskType.PRODUCT_REFRESH;
 					} else {
 						lockConsole();
 						commandError("tasks add", "Unable to parse task type.");
@@ -1547,6 +1644,602 @@ Console.printError("TEST","TEST","checkPrice: " + Core.checkPrice(Core.getModule
 		}
 	}
 
+	private static class RateLimitCommand extends Command
+	{
+		public RateLimitCommand() {
+			super("ratelimit",
+					new SetRateLimitCommand());
+		}
+
+		private static void printLimit(String host, RateLimiter.Limit limit)
+		{
+			println(BOLD + "Host: " + host + UNBOLD);
+			println(GRAY + "  rate: " + DEFAULT + limit.getRate() + " request(s)/s");
+			println(GRAY + "  burst: " + DEFAULT + limit.getBurst());
+			println(GRAY + "  current rate: " + DEFAULT
+					+ String.format("%.3f", limit.getCurrentRate()) + " request(s)/s");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() > 1) {
+				super.run(args, index);
+				return;
+			}
+
+			lockConsole();
+			printLimit("default", RateLimiter.getDefaultLimit());
+			for (Entry<String, RateLimiter.Limit> entry : RateLimiter.getLimits().entrySet())
+				printLimit(entry.getKey(), entry.getValue());
+			unlockConsole();
+		}
+	}
+
+	private static class SetRateLimitCommand extends Command
+	{
+		public SetRateLimitCommand() {
+			super("set");
+		}
+
+		private void usage() {
+			println("usage: ratelimit set [host|default] [requests per second] [burst]");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() != 5) {
+				lockConsole();
+				commandError("ratelimit set", "Incorrect number of arguments.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			double rate;
+			int burst;
+			try {
+				rate = Double.parseDouble(args.get(3).getToken());
+				burst = Integer.parseInt(args.get(4).getToken());
+			} catch (NumberFormatException e) {
+				commandError("ratelimit set", "Unable to parse rate or burst.");
+				return;
+			}
+			if (rate <= 0 || burst < 1) {
+				commandError("ratelimit set", "Rate and burst must be positive.");
+				return;
+			}
+
+			RateLimiter.configure(args.get(2).getToken(), rate, burst);
+			if (Core.getDatabase() == null || !RateLimiter.save(Core.getDatabase()))
+				commandError("ratelimit set", "Unable to save rate limits.");
+		}
+	}
+
+	private static class CacheCommand extends Command
+	{
+		public CacheCommand() {
+			super("cache",
+					new CacheModeCommand(),
+					new CacheSizeCommand(),
+					new CacheTtlCommand(),
+					new ClearCacheCommand());
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() > 1) {
+				super.run(args, index);
+				return;
+			}
+
+			lockConsole();
+			println(GRAY + " mode: " + DEFAULT + ResponseCache.getMode().toString().toLowerCase());
+			println(GRAY + " size: " + DEFAULT + ResponseCache.getTotalSize()
+					+ " / " + ResponseCache.getMaxSize() + " bytes");
+			println(GRAY + " entries: " + DEFAULT + ResponseCache.getEntryCount());
+			println(GRAY + " hits: " + DEFAULT + ResponseCache.getHits());
+			println(GRAY + " misses: " + DEFAULT + ResponseCache.getMisses());
+			for (Entry<Long, ? extends List<ResponseCache.Rule>> entry
+					: ResponseCache.getRules().entrySet())
+			{
+				for (ResponseCache.Rule rule : entry.getValue()) {
+					println(GRAY + " module " + DEFAULT
+							+ Core.toUnsignedString(entry.getKey()) + GRAY + " ttl " + DEFAULT
+							+ rule.getTtl() + "s" + GRAY + " for " + DEFAULT + rule.getPattern());
+				}
+			}
+			unlockConsole();
+		}
+
+		static void save(String command) {
+			if (Core.getDatabase() == null || !ResponseCache.save(Core.getDatabase()))
+				commandError(command, "Unable to save cache settings.");
+		}
+	}
+
+	private static class CacheModeCommand extends Command
+	{
+		public CacheModeCommand() {
+			super("mode");
+		}
+
+		private void usage() {
+			println("usage: cache mode [off|on|record|replay]");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() != 3) {
+				lockConsole();
+				commandError("cache mode", "Incorrect number of arguments.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			try {
+				ResponseCache.setMode(ResponseCache.Mode.valueOf(
+						args.get(2).getToken().toUpperCase()));
+			} catch (IllegalArgumentException e) {
+				lockConsole();
+				commandError("cache mode", "Unrecognized cache mode.");
+				usage();
+				unlockConsole();
+				return;
+			}
+			CacheCommand.save("cache mode");
+		}
+	}
+
+	private static class CacheSizeCommand extends Command
+	{
+		public CacheSizeCommand() {
+			super("size");
+		}
+
+		private void usage() {
+			println("usage: cache size [maximum size in bytes]");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() != 3) {
+				lockConsole();
+				commandError("cache size", "Incorrect number of arguments.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			long size;
+			try {
+				size = Long.parseLong(args.get(2).getToken());
+			} catch (NumberFormatException e) {
+				commandError("cache size", "Unable to parse size.");
+				return;
+			}
+			if (size < 0) {
+				commandError("cache size", "Size must be non-negative.");
+				return;
+			}
+			ResponseCache.setMaxSize(size);
+			CacheCommand.save("cache size");
+		}
+	}
+
+	private static class CacheTtlCommand extends Command
+	{
+		public CacheTtlCommand() {
+			super("ttl");
+		}
+
+		private void usage() {
+			println("usage: cache ttl [module id] [seconds, or 0 to remove] [URL regex]");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() != 5) {
+				lockConsole();
+				commandError("cache ttl", "Incorrect number of arguments.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			long id;
+			long ttl;
+			try {
+				id = new BigInteger(args.get(2).getToken()).longValue();
+				ttl = Long.parseLong(args.get(3).getToken());
+			} catch (NumberFormatException e) {
+				commandError("cache ttl", "Unable to parse module id or TTL.");
+				return;
+			}
+			if (Core.getModule(id) == null) {
+				commandError("cache ttl", "No module found with specified id.");
+				return;
+			}
+
+			try {
+				ResponseCache.setRule(id, args.get(4).getToken(), ttl);
+			} catch (PatternSyntaxException e) {
+				commandError("cache ttl", "Invalid URL regex.");
+				return;
+			}
+			CacheCommand.save("cache ttl");
+		}
+	}
+
+	private static class ClearCacheCommand extends Command
+	{
+		public ClearCacheCommand() {
+			super("clear");
+		}
+
+		@Override
+		public void run(List<Token> args, int index) {
+			ResponseCache.clear();
+			ResponseCache.flush();
+		}
+	}
+
+	private static class LogCommand extends Command
+	{
+		public LogCommand() {
+			super("log",
+					new LogLevelCommand(),
+					new LogSizeCommand());
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() > 1) {
+				super.run(args, index);
+				return;
+			}
+
+			lockConsole();
+			println(GRAY + " level: " + DEFAULT + AsyncLog.getLevel().toString().toLowerCase());
+			println(GRAY + " rotation size: " + DEFAULT + AsyncLog.getMaxSize() + " bytes");
+			println(GRAY + " queued: " + DEFAULT + AsyncLog.getQueuedCount());
+			println(GRAY + " written: " + DEFAULT + AsyncLog.getWrittenCount());
+			println(GRAY + " dropped: " + DEFAULT + AsyncLog.getDroppedCount());
+			unlockConsole();
+		}
+
+		static void save(String command) {
+			if (Core.getDatabase() == null || !AsyncLog.save(Core.getDatabase()))
+				commandError(command, "Unable to save log settings.");
+		}
+	}
+
+	private static class LogLevelCommand extends Command
+	{
+		public LogLevelCommand() {
+			super("level");
+		}
+
+		private void usage() {
+			println("usage: log level [debug|info|error|off]");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() != 3) {
+				lockConsole();
+				commandError("log level", "Incorrect number of arguments.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			try {
+				AsyncLog.setLevel(AsyncLog.Level.valueOf(
+						args.get(2).getToken().toUpperCase()));
+			} catch (IllegalArgumentException e) {
+				lockConsole();
+				commandError("log level", "Unrecognized log level.");
+				usage();
+				unlockConsole();
+				return;
+			}
+			LogCommand.save("log level");
+		}
+	}
+
+	private static class LogSizeCommand extends Command
+	{
+		public LogSizeCommand() {
+			super("size");
+		}
+
+		private void usage() {
+			println("usage: log size [rotation size in bytes, or 0 to never rotate]");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() != 3) {
+				lockConsole();
+				commandError("log size", "Incorrect number of arguments.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			long size;
+			try {
+				size = Long.parseLong(args.get(2).getToken());
+			} catch (NumberFormatException e) {
+				commandError("log size", "Unable to parse size.");
+				return;
+			}
+			if (size < 0) {
+				commandError("log size", "Size must be non-negative.");
+				return;
+			}
+			AsyncLog.setMaxSize(size);
+			LogCommand.save("log size");
+		}
+	}
+
+	private static class StatsCommand extends Command
+	{
+		public StatsCommand() {
+			super("stats");
+		}
+
+		private void usage() {
+			println("usage: stats [module id, or none for all modules]");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() > 2) {
+				lockConsole();
+				commandError("stats", "Incorrect number of arguments.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			Collection<Module> modules;
+			if (args.size() == 2) {
+				long id;
+				try {
+					id = new BigInteger(args.get(1).getToken()).longValue();
+				} catch (NumberFormatException e) {
+					commandError("stats", "Unable to parse module id.");
+					return;
+				}
+				Module module = Core.getModule(id);
+				if (module == null) {
+					commandError("stats", "No module found with specified id.");
+					return;
+				}
+				modules = Collections.singletonList(module);
+			} else {
+				modules = Core.getModules();
+			}
+
+			lockConsole();
+			for (Module module : modules) {
+				ModuleStats stats = module.getStats();
+				println(BOLD + "Module id: " + module.getIdString() + UNBOLD
+						+ " (" + module.getModuleName() + ")");
+				println(GRAY + "  cpu time: " + DEFAULT + (stats.getCpuTime() / 1000000) + " ms");
+				println(GRAY + "  resident memory: " + DEFAULT + stats.getResidentSize() + " bytes");
+				println(GRAY + "  processes: " + DEFAULT + stats.getRunningProcessCount()
+						+ " running, " + stats.getStartedProcessCount() + " started");
+				println(GRAY + "  pipe: " + DEFAULT + stats.getBytesIn() + " bytes in, "
+						+ stats.getBytesOut() + " bytes out");
+				println(GRAY + "  products: " + DEFAULT + stats.getProductCount()
+						+ String.format(" (%.2f/s)", stats.getProductRate()));
+				println(GRAY + "  database writes: " + DEFAULT + stats.getDatabaseWriteCount()
+						+ " (mean " + (stats.getDatabaseWriteMean() / 1000) + " us, max "
+						+ (stats.getDatabaseWriteMax() / 1000) + " us)");
+				println(GRAY + "  ingestion queue: " + DEFAULT
+						+ module.getIngestionQueue().size() + " products");
+				for (Entry<String, ModuleStats.HostStats> host : stats.getHosts().entrySet()) {
+					println(GRAY + "  http " + DEFAULT + host.getKey() + GRAY + ": " + DEFAULT
+							+ host.getValue().getRequests() + " requests, "
+							+ host.getValue().getBytes() + " bytes");
+				}
+			}
+			if (args.size() == 1 && Core.getDatabase() != null) {
+				println(BOLD + "Database" + UNBOLD);
+				for (Entry<String, Long> entry : Core.getDatabase().getStatistics().entrySet())
+					println(GRAY + "  " + entry.getKey().replace('_', ' ') + ": " + DEFAULT + entry.getValue());
+			}
+			unlockConsole();
+		}
+	}
+
+	private static class RecrawlCommand extends Command
+	{
+		public RecrawlCommand() {
+			super("recrawl",
+					new RecrawlBudgetCommand(),
+					new RecrawlPeriodCommand());
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() > 1) {
+				super.run(args, index);
+				return;
+			}
+
+			lockConsole();
+			println(GRAY + " budget: " + DEFAULT + RecrawlScheduler.getBudget() + " products per refresh");
+			println(GRAY + " list period: " + DEFAULT + RecrawlScheduler.getListPeriod() + " ms");
+			for (Module module : Core.getModules()) {
+				println(GRAY + " module " + DEFAULT + module.getIdString() + GRAY + ": " + DEFAULT
+						+ RecrawlScheduler.getProductCount(module) + " products scheduled");
+			}
+			unlockConsole();
+		}
+
+		static void save(String command) {
+			if (Core.getDatabase() == null || !RecrawlScheduler.save(Core.getDatabase()))
+				commandError(command, "Unable to save recrawl settings.");
+		}
+	}
+
+	private static class RecrawlBudgetCommand extends Command
+	{
+		public RecrawlBudgetCommand() {
+			super("budget");
+		}
+
+		private void usage() {
+			println("usage: recrawl budget [products per refresh]");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() != 3) {
+				lockConsole();
+				commandError("recrawl budget", "Incorrect number of arguments.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			int budget;
+			try {
+				budget = Integer.parseInt(args.get(2).getToken());
+			} catch (NumberFormatException e) {
+				commandError("recrawl budget", "Unable to parse budget.");
+				return;
+			}
+			if (budget <= 0) {
+				commandError("recrawl budget", "Budget must be positive.");
+				return;
+			}
+			RecrawlScheduler.setBudget(budget);
+			RecrawlCommand.save("recrawl budget");
+		}
+	}
+
+	private static class RecrawlPeriodCommand extends Command
+	{
+		public RecrawlPeriodCommand() {
+			super("period");
+		}
+
+		private void usage() {
+			println("usage: recrawl period [milliseconds between product list parses]");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() != 3) {
+				lockConsole();
+				commandError("recrawl period", "Incorrect number of arguments.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			long period;
+			try {
+				period = Long.parseLong(args.get(2).getToken());
+			} catch (NumberFormatException e) {
+				commandError("recrawl period", "Unable to parse period.");
+				return;
+			}
+			if (period < 0) {
+				commandError("recrawl period", "Period must be non-negative.");
+				return;
+			}
+			RecrawlScheduler.setListPeriod(period);
+			RecrawlCommand.save("recrawl period");
+		}
+	}
+
+	private static class ReplayCommand extends Command
+	{
+		private static final int DEFAULT_COUNT = 100;
+
+		public ReplayCommand() {
+			super("replay");
+		}
+
+		private void usage() {
+			println("usage: replay [module id] [list|info] [product count] [dummy]");
+			println("  Runs the module against pages recorded with 'cache mode record'.");
+			println("  [product count] is the number of stored products to request, for 'info'.");
+			println("  [dummy] can be 0 to write the parsed products to the database.");
+		}
+
+		@Override
+		public void run(List<Token> args, int index)
+		{
+			if (args.size() < 3 || args.size() > 5) {
+				lockConsole();
+				commandError("replay", "Incorrect number of arguments.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			long id;
+			try {
+				id = new BigInteger(args.get(1).getToken()).longValue();
+			} catch (NumberFormatException e) {
+				commandError("replay", "Unable to parse module id.");
+				return;
+			}
+			Module module = Core.getModule(id);
+			if (module == null) {
+				commandError("replay", "No module found with specified id.");
+				return;
+			}
+
+			String typeString = args.get(2).getToken().toLowerCase();
+			byte requestType;
+			if (typeString.equals("list")) {
+				requestType = Core.PRODUCT_LIST_REQUEST;
+			} else if (typeString.equals("info")) {
+				requestType = Core.PRODUCT_INFO_REQUEST;
+			} else {
+				lockConsole();
+				commandError("replay", "Unable to parse request type.");
+				usage();
+				unlockConsole();
+				return;
+			}
+
+			int count = DEFAULT_COUNT;
+			if (args.size() > 3) {
+				try {
+					count = Integer.parseInt(args.get(3).getToken());
+				} catch (NumberFormatException e) {
+					commandError("replay", "Unable to parse product count.");
+					return;
+				}
+			}
+			boolean dummy = (args.size() <= 4 || !args.get(4).getToken().equals("0"));
+
+			ReplayHarness.start(module, requestType, count, dummy);
+		}
+	}
+
 	private static class ExitCommand extends Command
 	{
 		public ExitCommand() {
@@ -43,6 +43,7 @@ public class Core
 {
 	public static final byte PRODUCT_LIST_REQUEST = 0;
 	public static final byte PRODUCT_INFO_REQUEST = 1;
+	public static final byte MODULE_PING_REQUEST = 2;
 
 	public static final String NEWLINE = System.getProperty("line.separator");
 
@@ -68,6 +69,7 @@ public class Core
 	private static final String REDIS_COMMAND = "/usr/sbin/redis-server redis/redis.conf";
 
 	private static final Sandbox sandbox = new NoSandbox();
+	private static final Sandbox jvmSandbox = new JvmSandbox();
 	private static Database database;
 
 	private static ScheduledExecutorService dispatcher =
@@ -235,6 +237,8 @@ public class Core
 				return false;
 			}
 
+			ModuleProcessPool.evict(module);
+
 			/* move the last module into the removed module's place */
 			if (moduleList.isEmpty())
 				return true;
@@ -442,8 +446,12 @@ public class Core
 		return database;
 	}
 
-	public static Sandbox getSandbox() {
-		return sandbox;
+	/**
+	 * Returns the sandbox that runs the given module, which is the core's
+	 * own JVM only for modules set to run in it.
+	 */
+	public static Sandbox getSandbox(Module module) {
+		return module.isInJvm() ? jvmSandbox : sandbox;
 	}
 
 	public static void queueTask(Task task)
@@ -526,7 +534,11 @@ public class Core
 		task.setFuture(future);
 	}
 
-	public static void addPriceRecord(long module, long gid, long price)
+	/**
+	 * Adds a price to the history of the given product group, returning
+	 * the price history of the group from the given module.
+	 */
+	public static List<PriceRecord> addPriceRecord(long module, long gid, long price)
 	{
 		Jedis jedis = pool.getResource();
 		PriceHistory history = PriceHistory.load(jedis.get("history." + toUnsignedString(gid)));
@@ -536,6 +548,7 @@ public class Core
 		history.addRecord(module, new Date().getTime(), price);
 		jedis.set("history." + toUnsignedString(gid), history.save());
 		pool.returnResource(jedis);
+		return history.getHistory(module);
 	}
 
 	public static List<PriceRecord> getPriceHistory(long module, long gid)
@@ -818,9 +831,16 @@ public class Core
 					String filename = IMAGE_PATH + suffix;
 					newPath = IMAGE_WEB_PATH + suffix;
 					try {
-						ReadableByteChannel rbc = Channels.newChannel(new URL(image).openStream());
-						FileOutputStream fos = new FileOutputStream(filename);
-						fos.getChannel().transferFrom(rbc, 0, MAX_IMAGE_SIZE);
+						HttpFetcher.Response response =
+								HttpFetcher.get(new URL(image), null, null, null);
+						try {
+							ReadableByteChannel rbc = Channels.newChannel(response.getStream());
+							FileOutputStream fos = new FileOutputStream(filename);
+							fos.getChannel().transferFrom(rbc, 0, MAX_IMAGE_SIZE);
+							fos.close();
+						} finally {
+							response.close();
+						}
 						setImage(gid, newPath);
 					} catch (IOException e) {
 						Console.printError("Core", "fetchImages", "Error occurred while fetching image.", e);
@@ -880,6 +900,15 @@ public class Core
         			+ "connect to database.", e);
         }
 
+		/* load the log settings, the outbound request rate limits, the response
+		 * cache and the recrawl schedules */
+		if (database != null) {
+			AsyncLog.load(database);
+			RateLimiter.load(database);
+		}
+		ResponseCache.load(database);
+		RecrawlScheduler.load(database);
+
 		/* check to see if Sphinx is running, and if not, start it */
 		if (!isRunning(SPHINX_PROCESS)) {
 			Console.lockConsole();
@@ -987,7 +1016,12 @@ public class Core
 		} finally {
 			tasksLock.unlock();
 		}
+		ModuleProcessPool.shutdown();
 		dispatcher.shutdown();
+		IngestionQueue.shutdown();
+		ResponseCache.flush();
+		RecrawlScheduler.flush();
+		AsyncLog.shutdown();
 
 		/* shutdown the HTTP server */
 		try {
@@ -1022,6 +1056,9 @@ public class Core
 
 			if (cycles > 0)
 				saveQueue();
+			ModuleProcessPool.evictIdle();
+			ResponseCache.flush();
+			RecrawlScheduler.flush();
 
 			cycles++;
 		}	
@@ -0,0 +1,44 @@
+package transparent.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+class CountingInputStream extends InputStream
+{
+	private InputStream stream;
+	private int count = 0;
+
+	public CountingInputStream(InputStream stream) {
+		this.stream = stream;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int read = stream.read();
+		if (read != -1)
+			count++;
+		return read;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = stream.read(b, off, len);
+		if (read > 0)
+			count += read;
+		return read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return stream.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		stream.close();
+	}
+
+	public int bytesRead() {
+		return count;
+	}
+}
@@ -0,0 +1,316 @@
+package transparent.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Performs all outbound HTTP requests of the core. Connections are kept
+ * alive and reused across requests to the same host, and responses are
+ * requested compressed. Requests may be made conditional on the
+ * validators (ETag and Last-Modified) in a {@link PageValidators}, which
+ * each module process keeps for the pages it was sent, so that a page is
+ * only reported as not modified to a process that has it. Every request
+ * is subject to the {@link RateLimiter}.
+ * <p>
+ * A connection is only returned to the keep-alive pool once its response
+ * has been read completely and closed, so callers must always call
+ * {@link Response#close()}. A response with more than
+ * {@link #MAX_DRAIN_SIZE} bytes left unread is disconnected instead.
+ */
+public class HttpFetcher
+{
+	private static final int MAX_CONNECTIONS = 8; /* idle, per host */
+	private static final int MAX_VALIDATORS = 16384; /* per module process */
+	private static final int MAX_DRAIN_SIZE = 65536; /* in bytes */
+	private static final int CONNECT_TIMEOUT = 30000; /* in milliseconds */
+	private static final int READ_TIMEOUT = 60000; /* in milliseconds */
+	private static final int BUFFER_SIZE = 4096; /* in bytes */
+
+	private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	static {
+		/* the size of the idle connection pool kept by the JDK for each host */
+		if (System.getProperty("http.maxConnections") == null)
+			System.setProperty("http.maxConnections", Integer.toString(MAX_CONNECTIONS));
+		System.setProperty("http.keepAlive", "true");
+	}
+
+	private static URLConnection open(URL url, String userAgent) throws IOException
+	{
+		URLConnection connection = url.openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+		if (userAgent != null)
+			connection.setRequestProperty("User-Agent", userAgent);
+		return connection;
+	}
+
+	/**
+	 * Downloads the given URL. If <code>validators</code> is not null and
+	 * holds the validators of the URL, the request carries them, and the
+	 * returned response may be {@link Response#isNotModified() not
+	 * modified}. Throws
+	 * {@link FileNotFoundException} if the page does not exist, and
+	 * {@link InterruptedStreamException} if the given
+	 * {@link Interruptable} was interrupted while waiting on the rate
+	 * limiter.
+	 */
+	public static Response get(URL url, String userAgent,
+			PageValidators validators, Interruptable interruptable) throws IOException
+	{
+		if (!RateLimiter.acquire(url, interruptable))
+			throw new InterruptedStreamException("Interrupted while rate limited.");
+
+		long started = System.nanoTime();
+		URLConnection connection = open(url, userAgent);
+		if (validators != null)
+			validators.apply(url.toString(), connection);
+
+		int status = RateLimiter.complete(url, connection, started);
+		return new Response(connection, status);
+	}
+
+	/**
+	 * Sends the given data to the given URL, and returns the response.
+	 * Throws the same exceptions as {@link #get}.
+	 */
+	public static Response post(URL url, String userAgent,
+			byte[] post, Interruptable interruptable) throws IOException
+	{
+		if (!RateLimiter.acquire(url, interruptable))
+			throw new InterruptedStreamException("Interrupted while rate limited.");
+
+		long started = System.nanoTime();
+		URLConnection connection = open(url, userAgent);
+		if (!(connection instanceof HttpURLConnection))
+			throw new IOException("Unrecognized network protocol.");
+
+		HttpURLConnection http = (HttpURLConnection) connection;
+		http.setDoInput(true);
+		http.setDoOutput(true);
+		http.setUseCaches(false);
+		http.setRequestMethod("POST");
+		http.setFixedLengthStreamingMode(post.length);
+		http.getOutputStream().write(post);
+		http.getOutputStream().close();
+
+		int status = RateLimiter.complete(url, connection, started);
+		return new Response(connection, status);
+	}
+
+	/**
+	 * Reads and discards the rest of the given stream, so that its
+	 * connection can be reused. If more than {@link #MAX_DRAIN_SIZE}
+	 * bytes remain, the connection is closed instead.
+	 */
+	private static void drain(InputStream stream, URLConnection connection)
+	{
+		if (stream == null)
+			return;
+		try {
+			byte[] buf = new byte[BUFFER_SIZE];
+			int drained = 0;
+			int read = 0;
+			while (drained < MAX_DRAIN_SIZE && (read = stream.read(buf)) != -1)
+				drained += read;
+			if (read != -1 && connection instanceof HttpURLConnection)
+				((HttpURLConnection) connection).disconnect();
+			stream.close();
+		} catch (IOException e) { }
+	}
+
+	/**
+	 * The validators of the pages sent to one module process, in least
+	 * recently used order. Validators are only recorded once a page has
+	 * reached the process, so that it is never told that a page it does
+	 * not have was not modified.
+	 */
+	public static class PageValidators
+	{
+		private final Map<String, String[]> validators =
+				new LinkedHashMap<String, String[]>(64, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+						return size() > MAX_VALIDATORS;
+					}
+				};
+
+		/**
+		 * Records the validators of the given response, which the process
+		 * was sent in full.
+		 */
+		public synchronized void record(String url, Response response)
+		{
+			if (response.etag != null || response.lastModified != null)
+				validators.put(url, new String[] { response.etag, response.lastModified });
+		}
+
+		private synchronized void apply(String url, URLConnection connection)
+		{
+			String[] previous = validators.get(url);
+			if (previous == null)
+				return;
+			if (previous[0] != null)
+				connection.setRequestProperty("If-None-Match", previous[0]);
+			if (previous[1] != null)
+				connection.setRequestProperty("If-Modified-Since", previous[1]);
+		}
+	}
+
+	public static class Response
+	{
+		private final int status;
+		private final String contentType;
+		private final long contentLength;
+		private final InputStream stream;
+
+		/* the connection the body is read from, or null */
+		private final URLConnection connection;
+
+		/* the validators of a page downloaded in full from the network */
+		private final String etag;
+		private final String lastModified;
+
+		/* counts the body as received from the network, or null if the
+		 * response did not come from the network */
+		private final CountingInputStream received;
+
+		Response(int status, String contentType,
+				long contentLength, InputStream stream)
+		{
+			this(status, contentType, contentLength, stream, null, null, null, null);
+		}
+
+		private Response(int status, String contentType, long contentLength,
+				InputStream stream, URLConnection connection, String etag,
+				String lastModified, CountingInputStream received)
+		{
+			this.status = status;
+			this.contentType = contentType;
+			this.contentLength = contentLength;
+			this.stream = stream;
+			this.connection = connection;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.received = received;
+		}
+
+		Response(URLConnection connection, int status) throws IOException
+		{
+			this.status = status;
+			this.contentType = connection.getContentType();
+			this.connection = connection;
+			if (status == HttpURLConnection.HTTP_OK) {
+				this.etag = connection.getHeaderField("ETag");
+				this.lastModified = connection.getHeaderField("Last-Modified");
+			} else {
+				this.etag = null;
+				this.lastModified = null;
+			}
+
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				this.contentLength = 0;
+				this.stream = new ByteArrayInputStream(new byte[0]);
+				this.received = new CountingInputStream(stream);
+			} else if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+				drain(((HttpURLConnection) connection).getErrorStream(), connection);
+				if (status == HttpURLConnection.HTTP_NOT_FOUND
+						|| status == HttpURLConnection.HTTP_GONE)
+					throw new FileNotFoundException(connection.getURL().toString());
+				throw new IOException("Server returned HTTP response code: "
+						+ status + " for URL: " + connection.getURL());
+			} else {
+				this.received = new CountingInputStream(connection.getInputStream());
+				this.stream = decode(connection, received);
+
+				/* the length of a compressed body says nothing of its decoded length */
+				if (stream instanceof InflaterInputStream)
+					this.contentLength = -1;
+				else
+					this.contentLength = connection.getContentLengthLong();
+			}
+		}
+
+		private static InputStream decode(URLConnection connection,
+				InputStream raw) throws IOException
+		{
+			String encoding = connection.getContentEncoding();
+			if (encoding == null)
+				return raw;
+			encoding = encoding.trim().toLowerCase();
+			if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+				return new GZIPInputStream(raw, BUFFER_SIZE);
+			else if (encoding.equals("deflate"))
+				return new InflaterInputStream(raw);
+			return raw;
+		}
+
+		/**
+		 * Returns a copy of this response whose body is read from the
+		 * given stream instead.
+		 */
+		Response withStream(InputStream stream) {
+			return new Response(status, contentType, contentLength,
+					stream, connection, etag, lastModified, received);
+		}
+
+		/**
+		 * Returns the HTTP status code, or -1 if the URL is not HTTP.
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		public boolean isNotModified() {
+			return status == HttpURLConnection.HTTP_NOT_MODIFIED;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * Returns the length of the body as read from {@link #getStream()},
+		 * or -1 if it is not known in advance.
+		 */
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		/**
+		 * Returns the decompressed body of the response.
+		 */
+		public InputStream getStream() {
+			return stream;
+		}
+
+		/**
+		 * Returns the number of bytes of the body received so far, before
+		 * decompression, or -1 if the response did not come from the
+		 * network.
+		 */
+		public long getBytesReceived() {
+			return (received == null) ? -1 : received.bytesRead();
+		}
+
+		/**
+		 * Reads whatever remains of the response and closes it, returning
+		 * the connection to the keep-alive pool, unless too much remains.
+		 */
+		public void close() {
+			drain(stream, connection);
+		}
+	}
+}
@@ -0,0 +1,330 @@
+package transparent.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * A Java module running on a thread of the core's JVM, which looks to
+ * the rest of the core like a separate process. Its standard streams are
+ * in-memory {@link ByteRingBuffer}s carrying the same protocol as the
+ * pipes of an external process.
+ * <p>
+ * A module's code reaches its streams through {@link System#in},
+ * {@link System#out} and {@link System#err}, which are replaced, once,
+ * by streams that route each call to the streams of the module that owns
+ * the calling thread. Threads started by a module belong to that module;
+ * all other threads use the original streams.
+ * <p>
+ * A module must return from <code>main</code> to exit; calling
+ * {@link System#exit(int)} would stop the core.
+ */
+class InJvmProcess extends Process
+{
+	private static final int BUFFER_SIZE = 65536; /* in bytes */
+	private static final long READ_TIMEOUT = 1000000000L; /* in nanoseconds */
+
+	private static final InheritableThreadLocal<InJvmProcess> owner =
+			new InheritableThreadLocal<InJvmProcess>();
+
+	static {
+		System.setIn(new RoutedInputStream(System.in));
+		System.setOut(new PrintStream(new RoutedOutputStream(System.out, false), true));
+		System.setErr(new PrintStream(new RoutedOutputStream(System.err, true), true));
+	}
+
+	private final ByteRingBuffer stdin = new ByteRingBuffer(BUFFER_SIZE);
+	private final ByteRingBuffer stdout = new ByteRingBuffer(BUFFER_SIZE);
+	private final ByteRingBuffer stderr = new ByteRingBuffer(BUFFER_SIZE);
+
+	private final InputStream moduleIn = new BufferInputStream(stdin);
+	private final OutputStream moduleOut = new BufferOutputStream(stdout);
+	private final OutputStream moduleErr = new BufferOutputStream(stderr);
+
+	private final ThreadGroup group;
+	private final Thread thread;
+	private volatile int exitValue = -1;
+	private volatile boolean exited = false;
+
+	/* the CPU time of the module's threads when its main method returned */
+	private volatile long exitCpuTime = -1;
+
+	private InJvmProcess(Module module, final Method main,
+			final String[] args, final ClassLoader loader)
+	{
+		this.group = new ThreadGroup("module-" + module.getIdString());
+		this.thread = new Thread(group, new Runnable() {
+			@Override
+			public void run() {
+				owner.set(InJvmProcess.this);
+				exitValue = runMain(main, args);
+				exitCpuTime = getCpuTime();
+				exit();
+			}
+		}, "module-" + module.getIdString() + "-main");
+		thread.setContextClassLoader(loader);
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts running the given <code>main</code> method of a module on a
+	 * new thread, and returns the process.
+	 */
+	public static InJvmProcess start(Module module,
+			Method main, String[] args, ClassLoader loader)
+	{
+		InJvmProcess process = new InJvmProcess(module, main, args, loader);
+		process.thread.start();
+		return process;
+	}
+
+	private int runMain(Method main, String[] args)
+	{
+		try {
+			main.invoke(null, (Object) args);
+			return 0;
+		} catch (InvocationTargetException e) {
+			e.getCause().printStackTrace(new PrintStream(moduleErr, true));
+			return 1;
+		} catch (IllegalAccessException e) {
+			e.printStackTrace(new PrintStream(moduleErr, true));
+			return 1;
+		}
+	}
+
+	/**
+	 * Ends the module's output, so the core reads the end of its streams,
+	 * and discards any input it did not read.
+	 */
+	private void exit()
+	{
+		exited = true;
+		stdout.finish();
+		stderr.finish();
+		stdin.close();
+	}
+
+	/**
+	 * Returns the buffer of the module's standard output, so that the core
+	 * can read it without another copying thread.
+	 */
+	ByteRingBuffer getOutputBuffer() {
+		return stdout;
+	}
+
+	ByteRingBuffer getErrorBuffer() {
+		return stderr;
+	}
+
+	/**
+	 * Returns the CPU time, in nanoseconds, used by the threads the module
+	 * is running, or by all of them once it has exited. Returns -1 if the
+	 * JVM does not measure the CPU time of threads.
+	 */
+	long getCpuTime()
+	{
+		if (exitCpuTime != -1)
+			return exitCpuTime;
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!bean.isThreadCpuTimeSupported() || !bean.isThreadCpuTimeEnabled())
+			return -1;
+
+		Thread[] threads = new Thread[group.activeCount() + 1];
+		int count = group.enumerate(threads);
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			long time = bean.getThreadCpuTime(threads[i].getId());
+			if (time > 0)
+				total += time;
+		}
+		return total;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return new BufferOutputStream(stdin);
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new BufferInputStream(stdout);
+	}
+
+	@Override
+	public InputStream getErrorStream() {
+		return new BufferInputStream(stderr);
+	}
+
+	@Override
+	public int waitFor() throws InterruptedException
+	{
+		thread.join();
+		return exitValue;
+	}
+
+	@Override
+	public int exitValue()
+	{
+		if (!exited)
+			throw new IllegalThreadStateException("Module is still running.");
+		return exitValue;
+	}
+
+	/**
+	 * Closes the module's streams and interrupts its threads. A module
+	 * that ignores both keeps running until it next touches its streams.
+	 */
+	@Override
+	public void destroy()
+	{
+		stdin.finish();
+		stdout.close();
+		stderr.close();
+		group.interrupt();
+	}
+
+	private static class BufferInputStream extends InputStream
+	{
+		private final ByteRingBuffer buffer;
+		private final byte[] single = new byte[1];
+
+		public BufferInputStream(ByteRingBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int read = read(single, 0, 1);
+			if (read == -1)
+				return -1;
+			return single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return 0;
+			while (true) {
+				int read = buffer.read(b, off, len, READ_TIMEOUT);
+				if (read != 0)
+					return read;
+			}
+		}
+
+		@Override
+		public int available() {
+			return buffer.available();
+		}
+
+		@Override
+		public void close() {
+			buffer.close();
+		}
+	}
+
+	private static class BufferOutputStream extends OutputStream
+	{
+		private final ByteRingBuffer buffer;
+		private final byte[] single = new byte[1];
+
+		public BufferOutputStream(ByteRingBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			single[0] = (byte) b;
+			buffer.write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			buffer.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			buffer.finish();
+		}
+	}
+
+	/**
+	 * Reads from the standard input of the module owning the calling
+	 * thread, or from the core's own input.
+	 */
+	private static class RoutedInputStream extends InputStream
+	{
+		private final InputStream original;
+
+		public RoutedInputStream(InputStream original) {
+			this.original = original;
+		}
+
+		private InputStream target()
+		{
+			InJvmProcess process = owner.get();
+			return (process == null) ? original : process.moduleIn;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return target().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return target().read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return target().available();
+		}
+	}
+
+	/**
+	 * Writes to the standard output, or error, of the module owning the
+	 * calling thread, or to the core's own stream.
+	 */
+	private static class RoutedOutputStream extends OutputStream
+	{
+		private final OutputStream original;
+		private final boolean error;
+
+		public RoutedOutputStream(OutputStream original, boolean error) {
+			this.original = original;
+			this.error = error;
+		}
+
+		private OutputStream target()
+		{
+			InJvmProcess process = owner.get();
+			if (process == null)
+				return original;
+			return error ? process.moduleErr : process.moduleOut;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target().flush();
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package transparent.core;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONObject;
+
+import transparent.core.PriceHistory.PriceRecord;
+import transparent.core.database.Database.Relation;
+import transparent.core.database.Database.Results;
+
+/**
+ * Stores the parsed product information of a module behind the module's
+ * back, so that the module thread can request the next product while
+ * earlier ones are written. Storing a product looks up its GID by brand
+ * and model, queues its image, checks price triggers, adds to its price
+ * history and updates its row.
+ * <p>
+ * Each module has its own bounded queue, drained in batches by a small
+ * shared pool of workers, one batch of a module at a time so that the
+ * products of a module are stored in the order they were parsed. When a
+ * module's queue is full, {@link #submit(ProductRecord, Interruptable)}
+ * blocks until there is room, or until the producer is stopped and
+ * {@link #wake()} is called. A module thread waits for its queue to drain
+ * before it finishes, and the core drains all queues before it exits; products
+ * still queued when the core is killed are lost, and are fetched again
+ * on a later pass.
+ */
+class IngestionQueue
+{
+	private static final int CAPACITY = 1024; /* in products */
+	private static final int MAX_BATCH = 64; /* in products */
+	private static final int WORKER_COUNT = 4;
+	private static final long SUBMIT_WAIT = 1000; /* in milliseconds */
+	private static final long SHUTDOWN_TIMEOUT = 60000; /* in milliseconds */
+
+	private static final String PRICE_ALERT_URL = "http://transparent.rafiss.com/track_notify";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* separate from the core's thread pool, which module threads may fill
+	 * while they wait on these workers */
+	private static final ExecutorService workers =
+			Executors.newFixedThreadPool(WORKER_COUNT, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "ingestion-worker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Module module;
+	private final ArrayBlockingQueue<ProductRecord> queue =
+			new ArrayBlockingQueue<ProductRecord>(CAPACITY);
+
+	/* true while a batch of this queue is waiting for or running on a worker */
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	/* the number of submitted products not yet stored, guarded by this;
+	 * changes to it and to the room in the queue notify this */
+	private int pending = 0;
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public IngestionQueue(Module module) {
+		this.module = module;
+	}
+
+	/**
+	 * Queues the given product to be stored, blocking while the queue is
+	 * full. Gives up if the given producer is interrupted while it waits.
+	 */
+	public void submit(ProductRecord record, Interruptable producer)
+			throws InterruptedStreamException
+	{
+		synchronized (this) {
+			pending++;
+		}
+		try {
+			while (!queue.offer(record)) {
+				synchronized (this) {
+					if (producer.interrupted()) {
+						finished(1);
+						throw new InterruptedStreamException("Producer stopped while the queue was full.");
+					}
+					/* the drain notifies once there is room; the timeout is a safeguard */
+					if (queue.remainingCapacity() == 0)
+						wait(SUBMIT_WAIT);
+				}
+			}
+		} catch (InterruptedException e) {
+			finished(1);
+			throw new InterruptedStreamException(e);
+		}
+		schedule();
+	}
+
+	/**
+	 * Wakes the producers blocked in
+	 * {@link #submit(ProductRecord, Interruptable)}, so that those that
+	 * were stopped give up.
+	 */
+	public synchronized void wake() {
+		notifyAll();
+	}
+
+	/**
+	 * Waits until every product submitted so far has been stored, or the
+	 * calling thread is interrupted.
+	 */
+	public synchronized void flush()
+	{
+		while (pending > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops the workers once every queued product has been stored.
+	 */
+	public static void shutdown()
+	{
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
+				Console.printError("IngestionQueue", "shutdown",
+						"Timed out while storing queued products.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void schedule()
+	{
+		if (!scheduled.compareAndSet(false, true))
+			return;
+		try {
+			workers.execute(drain);
+		} catch (RejectedExecutionException e) {
+			/* the workers are shutting down, so store the products here */
+			drain();
+		}
+	}
+
+	private void drain()
+	{
+		ArrayList<ProductRecord> batch = new ArrayList<ProductRecord>(MAX_BATCH);
+		while (true) {
+			queue.drainTo(batch, MAX_BATCH);
+			if (batch.isEmpty()) {
+				/* a product queued after the check above schedules its own drain,
+				 * unless it saw this drain still scheduled */
+				scheduled.set(false);
+				if (queue.isEmpty() || !scheduled.compareAndSet(false, true))
+					return;
+				continue;
+			}
+			wake();
+
+			for (ProductRecord record : batch) {
+				try {
+					long started = System.nanoTime();
+					store(record);
+					if (record.profile != null)
+						record.profile.getWrite().record(System.nanoTime() - started);
+				} catch (RuntimeException e) {
+					module.logError("IngestionQueue", "drain",
+							"Error occurred while storing product information.", e);
+				}
+				if (record.stored != null)
+					record.stored.incrementAndGet();
+			}
+			finished(batch.size());
+			batch.clear();
+		}
+	}
+
+	private synchronized void finished(int count)
+	{
+		pending -= count;
+		if (pending == 0)
+			notifyAll();
+	}
+
+	private void store(ProductRecord record)
+	{
+		Object brand = record.brand;
+		Object model = record.model;
+		List<Entry<String, Object>> keyValues = record.keyValues;
+
+		/* look for other products with the same (brand, model) and generate a GID */
+		Long gid = null;
+		Long oldPrice = null;
+		String image = null;
+		Results results = Core.getDatabase().query(null,
+				new String[] { "gid", "price", "image" },
+				new String[] { "model", "brand" },
+				new Relation[] { Relation.EQUALS, Relation.EQUALS },
+				new Object[] { model, brand },
+				null, null, true, null, null);
+		while (results != null && results.next()) {
+			if (gid == null)
+				gid = results.getLong(1);
+			if (oldPrice == null)
+				oldPrice = results.getLong(2);
+			else
+				oldPrice = Math.min(oldPrice, results.getLong(2));
+			if (image == null)
+				image = results.getString(3);
+		}
+		if (gid == null)
+			gid = Core.random();
+
+		/* dummy runs must not write anything, and replays that do store
+		 * products, from pages that are not current, still leave images,
+		 * price history, alerts and the recrawl schedule alone */
+		if (record.dummy) return;
+		keyValues.add(new SimpleEntry<String, Object>("gid", gid));
+		boolean replay = (record.profile != null);
+
+		/* check to see if the image exists, and if not, add the product to the image queue */
+		if (!replay) {
+			image = Core.getImage(gid, image);
+			if (image != null)
+				keyValues.add(new SimpleEntry<String, Object>("image", image));
+		}
+
+		/* check to see if the price fires any notification triggers */
+		List<PriceRecord> history = null;
+		if (record.price != null && !replay) {
+			long price = record.price;
+			if ((oldPrice == null || price < oldPrice) && Core.checkPrice(module, gid, price)) {
+				alertPriceChange(gid, model + " " + brand, price, record.userAgent);
+			}
+			history = Core.addPriceRecord(module.getId(), gid, price);
+		}
+
+		if (!replay)
+			RecrawlScheduler.recordFetch(module, record.productId, gid, history);
+		@SuppressWarnings("unchecked")
+		Entry<String, Object>[] keyValuesArray = (Entry<String, Object>[])
+				keyValues.toArray(new Entry<?, ?>[keyValues.size()]);
+		long started = System.nanoTime();
+		boolean added = Core.getDatabase().addProductInfo(module, record.productId, keyValuesArray);
+		if (!replay)
+			module.getStats().recordDatabaseWrite(System.nanoTime() - started);
+		if (!added) {
+			module.logError("IngestionQueue", "store",
+					"Error occurred while adding product information.");
+		}
+	}
+
+	private void alertPriceChange(long gid, String name, long newPrice, String userAgent)
+	{
+		try {
+			JSONObject result = new JSONObject();
+			result.put("gid", BigInteger.valueOf(gid));
+			result.put("name", name);
+			result.put("price", Core.priceToString(newPrice));
+			result.put("module", BigInteger.valueOf(module.getId()));
+
+			HttpFetcher.post(new URL(PRICE_ALERT_URL), userAgent,
+					result.toJSONString().getBytes(UTF8), null).close();
+		} catch (MalformedURLException e) {
+			module.logError("IngestionQueue", "alertPriceChange", "", e);
+		} catch (IOException e) {
+			module.logError("IngestionQueue", "alertPriceChange", "", e);
+		}
+	}
+
+	/**
+	 * The parsed product information of a module, waiting to be stored.
+	 */
+	public static class ProductRecord
+	{
+		private final ProductID productId;
+		private final Object brand;
+		private final Object model;
+		private final Long price;
+		private final List<Entry<String, Object>> keyValues;
+		private final String userAgent;
+		private final boolean dummy;
+		private final ReplayHarness.Profile profile;
+
+		/* counts the record once it has been stored, or failed to be, or null */
+		private final AtomicLong stored;
+
+		public ProductRecord(ProductID productId, Object brand, Object model,
+				Long price, List<Entry<String, Object>> keyValues,
+				String userAgent, boolean dummy, ReplayHarness.Profile profile,
+				AtomicLong stored)
+		{
+			this.productId = productId;
+			this.brand = brand;
+			this.model = model;
+			this.price = price;
+			this.keyValues = keyValues;
+			this.userAgent = userAgent;
+			this.dummy = dummy;
+			this.profile = profile;
+			this.stored = stored;
+		}
+	}
+}
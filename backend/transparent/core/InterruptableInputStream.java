@@ -2,61 +2,161 @@ package transparent.core;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * An input stream that may be interrupted while blocked on a read. A
+ * dedicated reader thread pulls data from the underlying stream in bulk and
+ * feeds it into a ring buffer, and readers of this stream are woken up as
+ * soon as data arrives. While no data is available, the underlying
+ * {@link Interruptable} is checked every <code>checkPeriod</code>
+ * milliseconds, so idle waits remain interruptible.
+ * <p>
+ * The end of the stream is also reported as an interruption once the
+ * {@link Interruptable} says so, such as when the process writing the
+ * stream has exited, since that is how a module finishes a request.
+ */
 public class InterruptableInputStream extends InputStream
 {
-	private InputStream in;
-	private Interruptable interruptable;
-	private int sleepDuration;
-	
+	private static final int BUFFER_SIZE = 65536; /* in bytes */
+	private static final int READ_SIZE = 16384; /* in bytes */
+	private static final long EXIT_WAIT = 1000; /* in milliseconds */
+
+	private final InputStream in;
+	private final ByteRingBuffer buffer;
+	private final long checkPeriod; /* in nanoseconds */
+	private final byte[] single = new byte[1];
+	private volatile Interruptable interruptable;
+	private volatile boolean interrupted = false;
+
+	/* written only by the reader of this stream, and read for statistics */
+	private long bytesRead = 0;
+
 	public InterruptableInputStream(InputStream in,
-			Interruptable interruptable, int sleepDuration)
+			Interruptable interruptable, int checkPeriod)
 	{
 		this.in = in;
 		this.interruptable = interruptable;
-		this.sleepDuration = sleepDuration;
+		this.checkPeriod = TimeUnit.MILLISECONDS.toNanos(checkPeriod);
+		this.buffer = new ByteRingBuffer(BUFFER_SIZE);
+
+		Thread reader = new Thread(new Reader(), "InterruptableInputStream");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Reads directly from the given buffer, which is filled by its own
+	 * writer, such as a module running in the core's JVM.
+	 */
+	InterruptableInputStream(ByteRingBuffer buffer,
+			Interruptable interruptable, int checkPeriod)
+	{
+		this.in = null;
+		this.interruptable = interruptable;
+		this.checkPeriod = TimeUnit.MILLISECONDS.toNanos(checkPeriod);
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Interrupts any current and future reads on this stream.
+	 */
+	public void interrupt() {
+		interrupted = true;
+		buffer.wakeup();
 	}
-	
+
+	/**
+	 * Returns the number of bytes read from this stream so far.
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
 	@Override
 	public int read() throws IOException
 	{
-		while (in.available() == 0) {
+		int read = read(single, 0, 1);
+		if (read == -1)
+			return -1;
+		return single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+
+		while (true) {
+			if (interrupted || Thread.currentThread().isInterrupted())
+				throw new InterruptedStreamException("Stream was interrupted.");
+
+			int read = buffer.read(b, off, len, checkPeriod);
+			if (read > 0)
+				bytesRead += read;
+			if (read == -1)
+				return endOfStream();
+			if (read != 0)
+				return read;
+
+			if (buffer.isEmpty() && interruptable.interrupted())
+				throw new InterruptedStreamException("Stream was interrupted"
+						+ " by the underlying Interruptable.");
+		}
+	}
+
+	/**
+	 * Throws if the underlying {@link Interruptable} is interrupted once
+	 * the stream has ended, waiting up to {@link #EXIT_WAIT} for it, since
+	 * a process closes its output just before it exits. Returns -1 if it
+	 * is not.
+	 */
+	private int endOfStream() throws InterruptedStreamException
+	{
+		long deadline = System.currentTimeMillis() + EXIT_WAIT;
+		while (!interruptable.interrupted()) {
+			if (System.currentTimeMillis() >= deadline)
+				return -1;
 			try {
-				Thread.sleep(sleepDuration);
+				Thread.sleep(TimeUnit.NANOSECONDS.toMillis(checkPeriod));
 			} catch (InterruptedException e) {
 				throw new InterruptedStreamException(e);
 			}
-			
-			if (in.available() == 0 && interruptable.interrupted())
-				throw new InterruptedStreamException("Stream was interrupted"
-						+ " by the underlying Interruptable.");
 		}
-		
-		return in.read();
+		throw new InterruptedStreamException("Stream ended, and was interrupted"
+				+ " by the underlying Interruptable.");
 	}
-	
+
 	@Override
 	public int available() throws IOException {
-		return in.available();
+		return buffer.available();
 	}
-	
+
 	@Override
 	public void close() throws IOException {
-		in.close();
+		buffer.close();
+		if (in != null)
+			in.close();
 	}
-	
-	@Override
-	public synchronized void mark(int readlimit) {
-		in.mark(readlimit);
+
+	private class Reader implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			byte[] data = new byte[READ_SIZE];
+			try {
+				while (true) {
+					int read = in.read(data);
+					if (read == -1)
+						break;
+					buffer.write(data, 0, read);
+				}
+				buffer.finish();
+			} catch (IOException e) {
+				buffer.fail(e);
+			}
+		}
 	}
-	
-	@Override
-	public synchronized void reset() throws IOException {
-        in.reset();
-    }
-	
-	@Override
-	public boolean markSupported() {
-        return in.markSupported();
-    }
 }
@@ -0,0 +1,375 @@
+package transparent.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import net.minidev.json.parser.JSONParser;
+import net.minidev.json.parser.ParseException;
+
+/**
+ * Reads a stream of JSON messages from a module, such as line-delimited
+ * JSON, into a reusable buffer. Each message must be a JSON map. Rather
+ * than building the whole map, only the positions of its top-level values
+ * are recorded, and a value is decoded when it is asked for; so a message
+ * can be dispatched on its type without materializing its payload.
+ * <p>
+ * A reader buffers ahead of the current message, so it must be the only
+ * consumer of its stream, and it should be kept for the lifetime of the
+ * stream. It is not thread-safe.
+ */
+public class JsonMessageReader
+{
+	private static final int INITIAL_SIZE = 8192; /* in bytes */
+	private static final int MAX_MESSAGE_SIZE = 67108864; /* 64 MB */
+	private static final int MAX_KEYS = 256;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final InputStream in;
+	private final JSONParser parser = new JSONParser(JSONParser.DEFAULT_PERMISSIVE_MODE);
+
+	private byte[] buffer = new byte[INITIAL_SIZE];
+	private int start = 0; /* of the current message */
+	private int end = 0; /* of the current message */
+	private int limit = 0; /* of the data in the buffer */
+
+	/* the byte ranges of each top-level key and value in the current message */
+	private int keyCount = 0;
+	private int[] keyStarts = new int[16];
+	private int[] keyEnds = new int[16];
+	private int[] valueStarts = new int[16];
+	private int[] valueEnds = new int[16];
+
+	private final StringBuilder builder = new StringBuilder();
+
+	public JsonMessageReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the next message. Returns false if the stream ended before
+	 * another message began.
+	 */
+	public boolean next() throws IOException, ParseException
+	{
+		start = end;
+		keyCount = 0;
+
+		/* skip whitespace between messages */
+		while (true) {
+			if (start == limit && !fill())
+				return false;
+			if (!isWhitespace(buffer[start]))
+				break;
+			start++;
+		}
+		if (buffer[start] != '{')
+			throw new ParseException(start, ParseException.ERROR_UNEXPECTED_CHAR, (char) buffer[start]);
+
+		/* find the end of the map */
+		int depth = 0;
+		boolean inString = false;
+		boolean escaped = false;
+		int pos = start;
+		while (true) {
+			if (pos == limit) {
+				int offset = start;
+				if (!fill())
+					throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_EOF, null);
+				pos -= offset - start;
+			}
+
+			byte b = buffer[pos++];
+			if (inString) {
+				if (escaped)
+					escaped = false;
+				else if (b == '\\')
+					escaped = true;
+				else if (b == '"')
+					inString = false;
+			} else if (b == '"') {
+				inString = true;
+			} else if (b == '{' || b == '[') {
+				depth++;
+			} else if (b == '}' || b == ']') {
+				depth--;
+				if (depth == 0)
+					break;
+			}
+		}
+		end = pos;
+
+		index();
+		return true;
+	}
+
+	/**
+	 * Reads more data into the buffer, first moving the current message to
+	 * the front, and growing the buffer if it is full.
+	 */
+	private boolean fill() throws IOException
+	{
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, limit - start);
+			limit -= start;
+			end = Math.max(0, end - start);
+			start = 0;
+		}
+		if (limit == buffer.length) {
+			if (buffer.length >= MAX_MESSAGE_SIZE)
+				throw new IOException("Module message exceeds " + MAX_MESSAGE_SIZE + " bytes.");
+			buffer = Arrays.copyOf(buffer, Math.min(2 * buffer.length, MAX_MESSAGE_SIZE));
+		}
+
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read == -1)
+			return false;
+		limit += read;
+		return true;
+	}
+
+	/**
+	 * Records the position of each top-level key and value of the current
+	 * message, skipping over the contents of the values.
+	 */
+	private void index() throws ParseException
+	{
+		int pos = skipWhitespace(start + 1);
+		if (buffer[pos] == '}')
+			return;
+
+		while (true) {
+			if (buffer[pos] != '"')
+				throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, (char) buffer[pos]);
+			int keyStart = pos + 1;
+			int keyEnd = skipString(pos) - 1;
+			pos = skipWhitespace(keyEnd + 1);
+			if (buffer[pos] != ':')
+				throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, (char) buffer[pos]);
+			int valueStart = skipWhitespace(pos + 1);
+			int valueEnd = skipValue(valueStart);
+			addKey(keyStart, keyEnd, valueStart, valueEnd);
+
+			pos = skipWhitespace(valueEnd);
+			if (buffer[pos] == '}')
+				return;
+			else if (buffer[pos] != ',')
+				throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, (char) buffer[pos]);
+			pos = skipWhitespace(pos + 1);
+		}
+	}
+
+	private void addKey(int keyStart, int keyEnd, int valueStart, int valueEnd)
+			throws ParseException
+	{
+		if (keyCount == MAX_KEYS)
+			throw new ParseException(keyStart, ParseException.ERROR_UNEXPECTED_TOKEN, "too many keys");
+		if (keyCount == keyStarts.length) {
+			int size = 2 * keyStarts.length;
+			keyStarts = Arrays.copyOf(keyStarts, size);
+			keyEnds = Arrays.copyOf(keyEnds, size);
+			valueStarts = Arrays.copyOf(valueStarts, size);
+			valueEnds = Arrays.copyOf(valueEnds, size);
+		}
+		keyStarts[keyCount] = keyStart;
+		keyEnds[keyCount] = keyEnd;
+		valueStarts[keyCount] = valueStart;
+		valueEnds[keyCount] = valueEnd;
+		keyCount++;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	private int skipWhitespace(int pos)
+	{
+		while (pos < end && isWhitespace(buffer[pos]))
+			pos++;
+		return pos;
+	}
+
+	/* returns the position just past the closing quote */
+	private int skipString(int pos) throws ParseException
+	{
+		pos++;
+		while (pos < end) {
+			byte b = buffer[pos++];
+			if (b == '\\')
+				pos++;
+			else if (b == '"')
+				return pos;
+		}
+		throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_EOF, null);
+	}
+
+	private int skipValue(int pos) throws ParseException
+	{
+		byte first = buffer[pos];
+		if (first == '"')
+			return skipString(pos);
+
+		if (first == '{' || first == '[') {
+			int depth = 0;
+			while (pos < end) {
+				byte b = buffer[pos];
+				if (b == '"') {
+					pos = skipString(pos);
+					continue;
+				} else if (b == '{' || b == '[') {
+					depth++;
+				} else if (b == '}' || b == ']') {
+					depth--;
+					if (depth == 0)
+						return pos + 1;
+				}
+				pos++;
+			}
+			throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_EOF, null);
+		}
+
+		/* a number or a literal */
+		int valueStart = pos;
+		while (pos < end) {
+			byte b = buffer[pos];
+			if (b == ',' || b == '}' || b == ']' || isWhitespace(b))
+				break;
+			pos++;
+		}
+		if (pos == valueStart)
+			throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, (char) first);
+		return pos;
+	}
+
+	private int find(String key)
+	{
+		int length = key.length();
+		for (int i = 0; i < keyCount; i++) {
+			int keyStart = keyStarts[i];
+			if (keyEnds[i] - keyStart != length)
+				continue;
+			int j = 0;
+			while (j < length && buffer[keyStart + j] == key.charAt(j))
+				j++;
+			if (j == length)
+				return i;
+		}
+		return -1;
+	}
+
+	public boolean has(String key) {
+		return find(key) != -1;
+	}
+
+	/**
+	 * Returns the lowercase value of the "type" field of the current
+	 * message, or null if it has none.
+	 */
+	public String getType()
+	{
+		String type = getString("type");
+		if (type == null)
+			return null;
+		return type.trim().toLowerCase();
+	}
+
+	/**
+	 * Returns the given field as a string. Numbers and literals are
+	 * returned as they appear in the message, and maps and arrays as JSON.
+	 * Returns null if the field is missing or null.
+	 */
+	public String getString(String key)
+	{
+		int i = find(key);
+		if (i == -1)
+			return null;
+		int valueStart = valueStarts[i];
+		int valueEnd = valueEnds[i];
+		if (buffer[valueStart] != '"') {
+			String raw = new String(buffer, valueStart, valueEnd - valueStart, UTF8);
+			return raw.equals("null") ? null : raw;
+		}
+		return decodeString(valueStart + 1, valueEnd - 1);
+	}
+
+	/**
+	 * Returns the given field as a number, or null if it is missing or not
+	 * a number.
+	 */
+	public Number getNumber(String key)
+	{
+		int i = find(key);
+		if (i == -1)
+			return null;
+		byte first = buffer[valueStarts[i]];
+		if (first != '-' && (first < '0' || first > '9'))
+			return null;
+		String raw = new String(buffer, valueStarts[i], valueEnds[i] - valueStarts[i], UTF8);
+		try {
+			if (raw.indexOf('.') == -1 && raw.indexOf('e') == -1 && raw.indexOf('E') == -1)
+				return Long.parseLong(raw);
+			return Double.parseDouble(raw);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes the given field into JSON objects, as json-smart would, or
+	 * returns null if the field is missing.
+	 */
+	public Object get(String key) throws ParseException
+	{
+		int i = find(key);
+		if (i == -1)
+			return null;
+		byte first = buffer[valueStarts[i]];
+		if (first == '"')
+			return getString(key);
+		return parser.parse(Arrays.copyOfRange(buffer, valueStarts[i], valueEnds[i]));
+	}
+
+	private String decodeString(int from, int to)
+	{
+		int escape = from;
+		while (escape < to && buffer[escape] != '\\')
+			escape++;
+		if (escape == to)
+			return new String(buffer, from, to - from, UTF8);
+
+		builder.setLength(0);
+		int pos = from;
+		while (pos < to) {
+			escape = pos;
+			while (escape < to && buffer[escape] != '\\')
+				escape++;
+			if (escape > pos)
+				builder.append(new String(buffer, pos, escape - pos, UTF8));
+			if (escape == to)
+				break;
+
+			char c = (char) buffer[escape + 1];
+			pos = escape + 2;
+			switch (c) {
+			case 'n': builder.append('\n'); break;
+			case 'r': builder.append('\r'); break;
+			case 't': builder.append('\t'); break;
+			case 'b': builder.append('\b'); break;
+			case 'f': builder.append('\f'); break;
+			case 'u':
+				try {
+					builder.append((char) Integer.parseInt(
+							new String(buffer, pos, Math.min(4, to - pos), UTF8), 16));
+					pos += 4;
+				} catch (NumberFormatException e) {
+					builder.append(c);
+				}
+				break;
+			default:
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+}
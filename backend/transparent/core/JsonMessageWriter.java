@@ -0,0 +1,206 @@
+package transparent.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Builds line-delimited JSON messages for modules directly as UTF-8 bytes
+ * in a reusable buffer, escaping string values as they are appended, so
+ * that no intermediate strings or maps are created per message. String
+ * values may be appended in pieces, which is used to send pages as they
+ * are decoded. Not thread-safe; each thread should keep its own writer.
+ */
+public class JsonMessageWriter
+{
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final byte[] NEWLINE = System.getProperty("line.separator").getBytes();
+
+	private byte[] buffer;
+	private int length = 0;
+	private boolean first = true;
+
+	/* a high surrogate waiting for the next piece of a string value */
+	private char pending = 0;
+
+	public JsonMessageWriter(int capacity) {
+		this.buffer = new byte[capacity];
+	}
+
+	/**
+	 * Discards the current contents and starts a new message.
+	 */
+	public JsonMessageWriter begin()
+	{
+		length = 0;
+		first = true;
+		pending = 0;
+		append((byte) '{');
+		return this;
+	}
+
+	/**
+	 * Ends the current message, terminating it with a newline.
+	 */
+	public JsonMessageWriter end()
+	{
+		append((byte) '}');
+		ensureCapacity(NEWLINE.length);
+		System.arraycopy(NEWLINE, 0, buffer, length, NEWLINE.length);
+		length += NEWLINE.length;
+		return this;
+	}
+
+	public JsonMessageWriter field(String key, long value)
+	{
+		key(key);
+		appendAscii(Long.toString(value));
+		return this;
+	}
+
+	public JsonMessageWriter field(String key, boolean value)
+	{
+		key(key);
+		appendAscii(value ? "true" : "false");
+		return this;
+	}
+
+	public JsonMessageWriter field(String key, String value)
+	{
+		beginString(key);
+		appendString(value);
+		return endString();
+	}
+
+	/**
+	 * Starts a string value, whose contents are then given by any number of
+	 * calls to {@link #appendString}, followed by {@link #endString()}.
+	 */
+	public JsonMessageWriter beginString(String key)
+	{
+		key(key);
+		append((byte) '"');
+		return this;
+	}
+
+	public JsonMessageWriter appendString(String value)
+	{
+		char[] chars = value.toCharArray();
+		return appendString(chars, 0, chars.length);
+	}
+
+	public JsonMessageWriter appendString(char[] chars, int offset, int count)
+	{
+		/* each character takes at most six bytes, as a unicode escape */
+		ensureCapacity(6 * count + 3);
+		byte[] buf = buffer;
+		int pos = length;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			char c = chars[i];
+			if (pending != 0) {
+				char high = pending;
+				pending = 0;
+				if (Character.isLowSurrogate(c)) {
+					int codePoint = Character.toCodePoint(high, c);
+					buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+					buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+					buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+					buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+					continue;
+				}
+				buf[pos++] = '?';
+			}
+
+			if (c < 0x80) {
+				switch (c) {
+				case '"':  buf[pos++] = '\\'; buf[pos++] = '"'; break;
+				case '\\': buf[pos++] = '\\'; buf[pos++] = '\\'; break;
+				case '\n': buf[pos++] = '\\'; buf[pos++] = 'n'; break;
+				case '\r': buf[pos++] = '\\'; buf[pos++] = 'r'; break;
+				case '\t': buf[pos++] = '\\'; buf[pos++] = 't'; break;
+				case '\b': buf[pos++] = '\\'; buf[pos++] = 'b'; break;
+				case '\f': buf[pos++] = '\\'; buf[pos++] = 'f'; break;
+				default:
+					if (c < 0x20) {
+						buf[pos++] = '\\';
+						buf[pos++] = 'u';
+						buf[pos++] = '0';
+						buf[pos++] = '0';
+						buf[pos++] = HEX[c >> 4];
+						buf[pos++] = HEX[c & 0xF];
+					} else {
+						buf[pos++] = (byte) c;
+					}
+				}
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c)) {
+				pending = c;
+			} else if (Character.isLowSurrogate(c)) {
+				buf[pos++] = '?';
+			} else {
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		length = pos;
+		return this;
+	}
+
+	public JsonMessageWriter endString()
+	{
+		if (pending != 0) {
+			pending = 0;
+			append((byte) '?');
+		}
+		append((byte) '"');
+		return this;
+	}
+
+	/**
+	 * Returns the number of bytes in the current message.
+	 */
+	public int size() {
+		return length;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, length);
+	}
+
+	private void key(String key)
+	{
+		if (!first)
+			append((byte) ',');
+		first = false;
+		append((byte) '"');
+		appendAscii(key);
+		append((byte) '"');
+		append((byte) ':');
+	}
+
+	/* keys and numbers are plain ASCII, and need no escaping */
+	private void appendAscii(String value)
+	{
+		ensureCapacity(value.length());
+		for (int i = 0; i < value.length(); i++)
+			buffer[length++] = (byte) value.charAt(i);
+	}
+
+	private void append(byte b)
+	{
+		ensureCapacity(1);
+		buffer[length++] = b;
+	}
+
+	private void ensureCapacity(int extra)
+	{
+		if (length + extra <= buffer.length)
+			return;
+		byte[] grown = new byte[Math.max(2 * buffer.length, length + extra)];
+		System.arraycopy(buffer, 0, grown, 0, length);
+		buffer = grown;
+	}
+}
@@ -0,0 +1,189 @@
+package transparent.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Runs Java modules inside the core's JVM, so that they need no process
+ * of their own, share the core's JIT-compiled code and talk to the core
+ * through in-memory buffers (see {@link InJvmProcess}). It is only used
+ * for modules that opt in with their <code>injvm</code> setting, since a
+ * module in the core's JVM shares its heap, can exit it, and cannot be
+ * killed if it hangs. A module whose
+ * command is a <code>java</code> command line is loaded from its class
+ * path by a class loader that cannot see the core's own classes; any
+ * other module, or a Java module that cannot be loaded, is run as an
+ * external process by {@link NoSandbox}.
+ * <p>
+ * All processes of a module share one class loader, and thus the
+ * module's static fields, for as long as its command is unchanged.
+ */
+public class JvmSandbox implements Sandbox
+{
+	private final Sandbox external = new NoSandbox();
+
+	/* the class loader of each module, keyed by module ID and command */
+	private final ConcurrentHashMap<String, URLClassLoader> loaders =
+			new ConcurrentHashMap<String, URLClassLoader>();
+
+	@Override
+	public Process run(Module module)
+	{
+		String command = module.getPath();
+		JavaCommand java = JavaCommand.parse(command);
+		if (java == null)
+			return external.run(module);
+
+		try {
+			URLClassLoader loader = getLoader(module, java.getClassPath());
+			Class<?> mainClass = Class.forName(java.mainClass, true, loader);
+			Method main = mainClass.getMethod("main", String[].class);
+			if (!Modifier.isStatic(main.getModifiers()))
+				throw new NoSuchMethodException("main is not static.");
+			return InJvmProcess.start(module, main, java.args, loader);
+		} catch (ClassNotFoundException e) {
+			module.logError("JvmSandbox", "run", "Unable to load module class '"
+					+ java.mainClass + "'; running it as an external process.", e);
+		} catch (NoSuchMethodException e) {
+			module.logError("JvmSandbox", "run", "Module class '" + java.mainClass
+					+ "' has no main method; running it as an external process.", e);
+		} catch (IOException e) {
+			module.logError("JvmSandbox", "run", "Unable to read class path of command '"
+					+ command + "'; running it as an external process.", e);
+		} catch (LinkageError e) {
+			module.logError("JvmSandbox", "run", "Unable to link module class '"
+					+ java.mainClass + "'; running it as an external process. " + e);
+		}
+		return external.run(module);
+	}
+
+	private URLClassLoader getLoader(Module module, URL[] classPath) throws IOException
+	{
+		String key = module.getId() + " " + module.getPath();
+		URLClassLoader loader = loaders.get(key);
+		if (loader != null)
+			return loader;
+
+		/* the parent is the extension class loader, which cannot see the core */
+		URLClassLoader created = new URLClassLoader(classPath,
+				ClassLoader.getSystemClassLoader().getParent());
+		loader = loaders.putIfAbsent(key, created);
+		if (loader != null) {
+			created.close();
+			return loader;
+		}
+
+		/* forget the loaders of the module's previous commands */
+		String prefix = module.getId() + " ";
+		for (String other : loaders.keySet()) {
+			if (other.startsWith(prefix) && !other.equals(key)) {
+				URLClassLoader removed = loaders.remove(other);
+				if (removed != null)
+					removed.close();
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * The parts of a <code>java</code> command line needed to run it in
+	 * the core's JVM.
+	 */
+	private static class JavaCommand
+	{
+		String classPath = ".";
+		String jar = null;
+		String mainClass = null;
+		String[] args = new String[0];
+
+		/**
+		 * Returns the parsed command, or null if it is not a
+		 * <code>java</code> command that names a main class or jar.
+		 */
+		static JavaCommand parse(String command)
+		{
+			if (command == null)
+				return null;
+			StringTokenizer tokenizer = new StringTokenizer(command);
+			if (!tokenizer.hasMoreTokens())
+				return null;
+			String executable = tokenizer.nextToken();
+			if (!executable.equals("java") && !executable.endsWith(File.separator + "java"))
+				return null;
+
+			JavaCommand java = new JavaCommand();
+			ArrayList<String> rest = new ArrayList<String>();
+			while (tokenizer.hasMoreTokens())
+				rest.add(tokenizer.nextToken());
+
+			int i = 0;
+			while (i < rest.size()) {
+				String token = rest.get(i++);
+				if (token.equals("-cp") || token.equals("-classpath")) {
+					if (i == rest.size())
+						return null;
+					java.classPath = rest.get(i++);
+				} else if (token.equals("-jar")) {
+					if (i == rest.size())
+						return null;
+					java.jar = rest.get(i++);
+					break;
+				} else if (token.startsWith("-")) {
+					/* options of the JVM itself do not apply */
+					continue;
+				} else {
+					java.mainClass = token;
+					break;
+				}
+			}
+
+			if (java.jar == null && java.mainClass == null)
+				return null;
+			java.args = rest.subList(i, rest.size()).toArray(new String[0]);
+			return java;
+		}
+
+		/**
+		 * Returns the URLs of the class path, reading the main class from
+		 * the jar's manifest if the command runs a jar.
+		 */
+		URL[] getClassPath() throws IOException
+		{
+			if (jar != null) {
+				JarFile file = new JarFile(jar);
+				try {
+					Manifest manifest = file.getManifest();
+					if (manifest != null)
+						mainClass = manifest.getMainAttributes().getValue("Main-Class");
+				} finally {
+					file.close();
+				}
+				if (mainClass == null)
+					throw new IOException("Jar '" + jar + "' has no Main-Class.");
+				return new URL[] { toURL(jar) };
+			}
+
+			String[] entries = classPath.split(File.pathSeparator);
+			ArrayList<URL> urls = new ArrayList<URL>(entries.length);
+			for (String entry : entries) {
+				if (entry.length() > 0)
+					urls.add(toURL(entry));
+			}
+			return urls.toArray(new URL[urls.size()]);
+		}
+
+		private static URL toURL(String path) throws MalformedURLException {
+			return new File(path).toURI().toURL();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package transparent.core;
+
+import java.util.ArrayList;
+
+import transparent.core.database.Database;
+import transparent.core.database.Database.ResultsIterator;
+
+/**
+ * The product IDs of a module known to be stored in the database, so
+ * that product list parses only send the database IDs that are probably
+ * new. IDs are kept as 64-bit hashes in an open-addressed table, which is
+ * kept at most half full, so it takes 16 to 32 bytes per ID, and briefly
+ * 16 more while it grows. Two IDs with the same hash would cause the
+ * second to be taken for known, which for a few million IDs is vanishingly
+ * unlikely.
+ * <p>
+ * The filter is filled from the database on first use, and IDs are added
+ * as they are stored. IDs stored by other means are not seen, and are
+ * merely sent to the database again.
+ */
+class KnownProductFilter
+{
+	private static final int INITIAL_CAPACITY = 1024; /* must be a power of two */
+
+	/* the hashes of the known IDs, where 0 marks an empty slot */
+	private long[] hashes = new long[INITIAL_CAPACITY];
+	private int size = 0;
+	private boolean loaded = false;
+
+	/**
+	 * Returns the given IDs that are not known to be stored in the database,
+	 * without duplicates.
+	 */
+	public synchronized String[] filter(Module module, String[] productIds)
+	{
+		if (!loaded)
+			load(module);
+
+		ArrayList<String> unknown = new ArrayList<String>();
+		KnownProductFilter batch = new KnownProductFilter();
+		for (String productId : productIds) {
+			long hash = hash(productId);
+			if (!contains(hash) && batch.add(hash))
+				unknown.add(productId);
+		}
+		return unknown.toArray(new String[unknown.size()]);
+	}
+
+	/**
+	 * Records that the given IDs are stored in the database.
+	 */
+	public synchronized void addAll(String[] productIds)
+	{
+		for (String productId : productIds)
+			add(hash(productId));
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Adds the IDs of the module already in the database. If they cannot
+	 * be queried, every ID is sent to the database until the next try.
+	 */
+	private void load(Module module)
+	{
+		Database database = Core.getDatabase();
+		if (database == null)
+			return;
+		ResultsIterator<ProductID> stored = database.getProductIds(module);
+		if (stored == null) {
+			module.logError("KnownProductFilter", "load",
+					"Unable to query stored product IDs.");
+			return;
+		}
+
+		while (stored.hasNext()) {
+			ProductID productId = stored.next();
+			if (productId == null)
+				break;
+			add(hash(productId.getModuleProductId()));
+		}
+		loaded = true;
+	}
+
+	private boolean contains(long hash)
+	{
+		int mask = hashes.length - 1;
+		for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+			if (hashes[i] == hash)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the given hash, returning false if it was already present.
+	 */
+	private boolean add(long hash)
+	{
+		int mask = hashes.length - 1;
+		int i = (int) hash & mask;
+		for (; hashes[i] != 0; i = (i + 1) & mask) {
+			if (hashes[i] == hash)
+				return false;
+		}
+		hashes[i] = hash;
+		size++;
+
+		/* keep the table at most half full */
+		if (2 * size > hashes.length)
+			grow();
+		return true;
+	}
+
+	private void grow()
+	{
+		long[] old = hashes;
+		hashes = new long[2 * old.length];
+		int mask = hashes.length - 1;
+		for (long hash : old) {
+			if (hash == 0)
+				continue;
+			int i = (int) hash & mask;
+			while (hashes[i] != 0)
+				i = (i + 1) & mask;
+			hashes[i] = hash;
+		}
+	}
+
+	/**
+	 * The 64-bit FNV-1a hash of the given ID, followed by a final mix so
+	 * that the low bits used for indexing depend on every character.
+	 */
+	private static long hash(String productId)
+	{
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < productId.length(); i++) {
+			hash ^= productId.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return (hash == 0) ? 1 : hash;
+	}
+}
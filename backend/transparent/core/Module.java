@@ -1,12 +1,9 @@
 package transparent.core;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
 import java.math.BigInteger;
-import java.util.Locale;
 
 import transparent.core.database.Database;
 
@@ -33,19 +30,44 @@ public class Module
 	/* specifies whether websites should be downloaded in blocks or all at once */
 	private boolean useBlockedDownload;
 
+	/* specifies whether processes of this module are kept alive between tasks */
+	private boolean pooled = false;
+
+	/* the maximum number of product info requests outstanding at once */
+	private int windowSize = 1;
+
+	/* the number of shards product info parses are split into */
+	private int shardCount = 1;
+
+	/* specifies whether a Java module runs inside the core's JVM, rather than as its own process */
+	private boolean inJvm = false;
+
+	/* the largest block, in bytes, of a page sent to the module at once */
+	private int frameSize = DEFAULT_FRAME_SIZE;
+
 	/* specifies the API for communication between the modules and core */
 	private Api api;
 
 	/* unique integer identifier for the module */
 	private final long id;
 
-	/* the output log associated with this module */
-	private final PrintStream log;
+	/* the output log associated with this module, or null if logging is disabled */
+	private final AsyncLog.LogFile log;
 
 	/* indicates whether activity should be logged to standard out */
 	private boolean logActivity;
 
-	private static final NullOutputStream NULL_STREAM = new NullOutputStream();
+	/* the resources used and the work done by this module since it was loaded */
+	private final ModuleStats stats = new ModuleStats();
+
+	/* the product IDs of this module known to be in the database */
+	private final KnownProductFilter knownProducts = new KnownProductFilter();
+
+	/* the parsed product information of this module waiting to be stored */
+	private final IngestionQueue ingestionQueue = new IngestionQueue(this);
+
+	public static final int DEFAULT_FRAME_SIZE = 4096; /* in bytes */
+	public static final int MAX_FRAME_SIZE = 65535; /* in bytes */
 
 	/**
 	 * The index of this module as it is stored in the persistent database.
@@ -63,7 +85,7 @@ public class Module
 	public Module(long id, String moduleName,
 			String sourceName, String path,
 			String url, String sourceUrl,
-			OutputStream log, Api api,
+			AsyncLog.LogFile log, Api api,
 			boolean isRemote,
 			boolean blockedDownload)
 	{
@@ -76,7 +98,7 @@ public class Module
 		this.api = api;
 		this.useBlockedDownload = blockedDownload;
 		this.id = id;
-		this.log = new ModuleLogStream(log);
+		this.log = log;
 	}
 
 	/**
@@ -124,10 +146,42 @@ public class Module
 		return useBlockedDownload;
 	}
 
+	public boolean isPooled() {
+		return pooled;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	public boolean isInJvm() {
+		return inJvm;
+	}
+
+	public int getFrameSize() {
+		return frameSize;
+	}
+
 	public boolean isLoggingActivity() {
 		return logActivity;
 	}
 
+	public ModuleStats getStats() {
+		return stats;
+	}
+
+	KnownProductFilter getKnownProducts() {
+		return knownProducts;
+	}
+
+	IngestionQueue getIngestionQueue() {
+		return ingestionQueue;
+	}
+
 	public void setPath(String path) {
 		this.path = path;
 		this.persistentIndex = -1;
@@ -171,12 +225,73 @@ public class Module
 		this.useBlockedDownload = useBlockedDownload;
 	}
 
+	public void setPooled(boolean pooled) {
+		if (this.pooled != pooled)
+			this.persistentIndex = -1;
+		this.pooled = pooled;
+	}
+
+	public void setWindowSize(int windowSize) {
+		if (this.windowSize != windowSize)
+			this.persistentIndex = -1;
+		this.windowSize = windowSize;
+	}
+
+	public void setShardCount(int shardCount) {
+		if (this.shardCount != shardCount)
+			this.persistentIndex = -1;
+		this.shardCount = shardCount;
+	}
+
+	public void setInJvm(boolean inJvm) {
+		if (this.inJvm != inJvm)
+			this.persistentIndex = -1;
+		this.inJvm = inJvm;
+	}
+
+	public void setFrameSize(int frameSize) {
+		if (this.frameSize != frameSize)
+			this.persistentIndex = -1;
+		this.frameSize = frameSize;
+	}
+
 	public void setLoggingActivity(boolean logActivity) {
 		this.logActivity = logActivity;
 	}
 
-	public PrintStream getLogStream() {
-		return log;
+	/**
+	 * Returns a stream that appends to this module's log, for the module's
+	 * own error output, which is also echoed to the console while activity
+	 * is logged.
+	 */
+	public OutputStream getLogStream()
+	{
+		return new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				AsyncLog.write(log, AsyncLog.Level.ERROR, b, off, len, getActivityLabel());
+			}
+		};
+	}
+
+	/**
+	 * Indicates whether messages of the given level are logged anywhere,
+	 * so that callers can avoid building messages that would be discarded.
+	 */
+	public boolean isLogging(AsyncLog.Level level) {
+		return logActivity || AsyncLog.isEnabled(level);
+	}
+
+	private String getActivityLabel()
+	{
+		if (!logActivity)
+			return null;
+		return "Module " + getIdString() + " (name: '" + moduleName + "')";
 	}
 
 	public int getPersistentIndex() {
@@ -210,40 +325,22 @@ public class Module
 	public void logInfo(String className,
 			String methodName, String message)
 	{
-		log.println(className + '.' + methodName + ": " + message);
-		if (logActivity) {
-			Console.println("Module " + getIdString() + " (name: '"
-					+ moduleName + "') information:" + Core.NEWLINE
-					+ className + '.' + methodName + ": " + message);
-			Console.flush();
-		}
+		AsyncLog.log(log, AsyncLog.Level.INFO, className,
+				methodName, message, null, getActivityLabel());
 	}
 	
 	public void logError(String className,
 			String methodName, String message)
 	{
-		log.println(className + '.' + methodName + " ERROR: " + message);
-		if (logActivity) {
-			Console.lockConsole();
-			Console.println("Module " + getIdString() + " (name: '"
-					+ moduleName + "') reported error:");
-			Console.printError(className, methodName, message);
-			Console.unlockConsole();
-		}
+		AsyncLog.log(log, AsyncLog.Level.ERROR, className,
+				methodName, message, null, getActivityLabel());
 	}
 	
 	public void logError(String className, String methodName,
 			String message, Exception exception)
 	{
-		log.println(className + '.' + methodName + " ERROR: "
-				+ message + " Exception thrown: " + exception);
-		if (logActivity) {
-			Console.lockConsole();
-			Console.println("Module " + getIdString() + " (name: '"
-					+ moduleName + "') reported error:");
-			Console.printError(className, methodName, message, exception);
-			Console.unlockConsole();
-		}
+		AsyncLog.log(log, AsyncLog.Level.ERROR, className,
+				methodName, message, exception, getActivityLabel());
 	}
 	
 	public void logUserAgentChange(String newUserAgent)
@@ -323,33 +420,18 @@ public class Module
 			String url, String sourceUrl, Api api,
 			boolean isRemote, boolean blockedDownload)
 	{
-		PrintStream log;
-		try {
-			File logdir = new File("log");
-			if (!logdir.exists() && !logdir.mkdir()) {
-				Console.printError("Module", "load", "Unable to create log directory."
-						+ " Logging is disabled for this module. (name = " + name
-						+ ", id = " + Core.toUnsignedString(id) + ")");
-				log = new PrintStream(NULL_STREAM);
-			} else if (!logdir.isDirectory()) {
-				Console.printError("Module", "load", "'log' is not a directory."
-						+ " Logging is disabled for this module. (name = " + name
-						+ ", id = " + Core.toUnsignedString(id) + ")");
-				log = new PrintStream(NULL_STREAM);
-			} else {
-				String filename = "log/" + name + "." + Core.toUnsignedString(id) + ".log";
-				File logfile = new File(filename);
-				if (!logfile.exists()) {
-					log = new PrintStream(new FileOutputStream(filename));
-				} else {
-					log = new PrintStream(new FileOutputStream(filename, true));
-				}
-			}
-		} catch (IOException e) {
-			Console.printError("Module", "load", "Unable to initialize output log."
+		AsyncLog.LogFile log = null;
+		File logdir = new File("log");
+		if (!logdir.exists() && !logdir.mkdir()) {
+			Console.printError("Module", "load", "Unable to create log directory."
 					+ " Logging is disabled for this module. (name = " + name
-					+ ", id = " + Core.toUnsignedString(id) + ")", e);
-			log = new PrintStream(NULL_STREAM);
+					+ ", id = " + Core.toUnsignedString(id) + ")");
+		} else if (!logdir.isDirectory()) {
+			Console.printError("Module", "load", "'log' is not a directory."
+					+ " Logging is disabled for this module. (name = " + name
+					+ ", id = " + Core.toUnsignedString(id) + ")");
+		} else {
+			log = AsyncLog.open("log/" + name + "." + Core.toUnsignedString(id) + ".log");
 		}
 
 		return new Module(id, name, source, path, url, sourceUrl, log, api, isRemote, blockedDownload);
@@ -361,6 +443,11 @@ public class Module
 		String path, source, url, sourceUrl;
 		boolean blocked = true;
 		boolean remote = true;
+		boolean pooled = false;
+		int windowSize = 1;
+		int shardCount = 1;
+		boolean inJvm = false;
+		int frameSize = DEFAULT_FRAME_SIZE;
 		String name = "<unknown>";
 		Api api = null;
 		try {
@@ -374,17 +461,38 @@ public class Module
 			api = Api.load(database.getMetadata("module." + index + ".api"));
 			String blockedString = database.getMetadata("module." + index + ".blocked");
 			String remoteString = database.getMetadata("module." + index + ".remote");
+			String pooledString = database.getMetadata("module." + index + ".pooled");
+			String windowString = database.getMetadata("module." + index + ".window");
+			String shardsString = database.getMetadata("module." + index + ".shards");
+			String inJvmString = database.getMetadata("module." + index + ".in_jvm");
+			String frameString = database.getMetadata("module." + index + ".frame");
 			
 			if (blockedString.equals("0"))
 				blocked = false;
 			if (remoteString.equals("0"))
 				remote = false;
+			if (pooledString != null && pooledString.equals("1"))
+				pooled = true;
+			if (windowString != null)
+				windowSize = Math.max(1, Integer.parseInt(windowString));
+			if (shardsString != null)
+				shardCount = Math.max(1, Integer.parseInt(shardsString));
+			if (inJvmString != null && inJvmString.equals("1"))
+				inJvm = true;
+			if (frameString != null)
+				frameSize = Math.min(MAX_FRAME_SIZE,
+						Math.max(1, Integer.parseInt(frameString)));
 		} catch (RuntimeException e) {
 			Console.printError("Module", "load", "Error loading module id.", e);
 			return null;
 		}
 
 		Module module = load(id, name, source, path, url, sourceUrl, api, remote, blocked);
+		module.pooled = pooled;
+		module.windowSize = windowSize;
+		module.shardCount = shardCount;
+		module.inJvm = inJvm;
+		module.frameSize = frameSize;
 		module.persistentIndex = index;
 		module.index = index;
 		return module;
@@ -411,7 +519,22 @@ public class Module
 				remote ? "1" : "0")
 		 && database.setMetadata(
 				"module." + index + ".blocked",
-				useBlockedDownload ? "1" : "0"))
+				useBlockedDownload ? "1" : "0")
+		 && database.setMetadata(
+				"module." + index + ".pooled",
+				pooled ? "1" : "0")
+		 && database.setMetadata(
+				"module." + index + ".window",
+				Integer.toString(windowSize))
+		 && database.setMetadata(
+				"module." + index + ".shards",
+				Integer.toString(shardCount))
+		 && database.setMetadata(
+				"module." + index + ".in_jvm",
+				inJvm ? "1" : "0")
+		 && database.setMetadata(
+				"module." + index + ".frame",
+				Integer.toString(frameSize)))
 		{
 			this.persistentIndex = index;
 			this.index = index;
@@ -420,170 +543,6 @@ public class Module
 		return false;
 	}
 	
-	class ModuleLogStream extends PrintStream
-	{
-		public ModuleLogStream(OutputStream log) {
-			super(log == null ? NULL_STREAM : log);
-		}
-
-	    @Override
-	    public void print(boolean b) {
-	        super.print(b);
-	    	if (logActivity)
-		    	Console.print(b);
-	    }
-
-	    @Override
-	    public void print(char c) {
-	        super.print(c);
-	    	if (logActivity)
-		    	Console.print(c);
-	    }
-
-	    @Override
-	    public void print(int i) {
-	        super.print(i);
-	    	if (logActivity)
-		    	Console.print(i);
-	    }
-
-	    @Override
-	    public void print(long l) {
-	        super.print(l);
-	    	if (logActivity)
-		    	Console.print(l);
-	    }
-
-	    @Override
-	    public void print(float f) {
-	        super.print(f);
-	    	if (logActivity)
-		    	Console.print(f);
-	    }
-
-	    @Override
-	    public void print(double d) {
-	        super.print(d);
-	    	if (logActivity)
-		    	Console.print(d);
-	    }
-
-	    @Override
-	    public void print(char s[]) {
-	        super.print(s);
-	    	if (logActivity)
-		    	Console.print(s);
-	    }
-
-	    @Override
-	    public void print(String s) {
-	        super.print(s);
-	    	if (logActivity)
-		    	Console.print(s);
-	    }
-
-	    @Override
-	    public void print(Object obj) {
-	        super.print(obj);
-	    	if (logActivity)
-		    	Console.print(obj);
-	    }
-
-	    @Override
-	    public void println() {
-	        super.println();
-	    	if (logActivity)
-		    	Console.println();
-	    }
-
-	    @Override
-	    public void println(boolean x) {
-	        super.println(x);
-	    	if (logActivity)
-		    	Console.println(x);
-	    }
-
-	    @Override
-	    public void println(char x) {
-	        super.println(x);
-	    	if (logActivity)
-		    	Console.println(x);
-	    }
-
-	    @Override
-	    public void println(int x) {
-	        super.println(x);
-	    	if (logActivity)
-		    	Console.println(x);
-	    }
-
-	    @Override
-	    public void println(long x) {
-	        super.println(x);
-	    	if (logActivity)
-		    	Console.println(x);
-	    }
-
-	    @Override
-	    public void println(float x) {
-	        super.println(x);
-	    	if (logActivity)
-		    	Console.println(x);
-	    }
-
-	    @Override
-	    public void println(double x) {
-	        super.println(x);
-	    	if (logActivity)
-		    	Console.println(x);
-	    }
-
-	    @Override
-	    public void println(char x[]) {
-	        super.println(x);
-	    	if (logActivity)
-		    	Console.println(x);
-	    }
-
-	    @Override
-	    public void println(String x) {
-	        super.println(x);
-	    	if (logActivity)
-		    	Console.println(x);
-	    }
-
-	    @Override
-	    public void println(Object x) {
-	        super.println(x);
-	    	if (logActivity)
-		    	Console.println(x);
-	    }
-
-	    @Override
-	    public PrintStream format(String format, Object ... args) {
-	    	super.format(format, args);
-	    	if (logActivity)
-	    		Console.format(format, args);
-	    	return this;
-	    }
-
-	    @Override
-	    public PrintStream format(Locale l, String format, Object ... args) {
-	    	super.format(l, format, args);
-	    	if (logActivity)
-	    		Console.format(l, format, args);
-	    	return this;
-	    }
-
-	    @Override
-	    public PrintStream append(CharSequence csq, int start, int end) {
-	    	super.append(csq, start, end);
-	    	if (logActivity)
-	    		Console.append(csq, start, end);
-	    	return this;
-	    }
-	}
-
 	public static enum Api {
 		BINARY,
 		JSON;
@@ -0,0 +1,381 @@
+package transparent.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.ParseException;
+
+/**
+ * A running module process, along with the streams used to communicate
+ * with it. A process that completes the startup handshake may advertise
+ * that it is persistent, in which case it can serve many requests and is
+ * kept alive in the {@link ModuleProcessPool} between tasks.
+ */
+public class ModuleProcess implements Interruptable
+{
+	/* capability flags exchanged during the handshake */
+	public static final int CAPABILITY_PERSISTENT = 1;
+	public static final int CAPABILITY_WINDOWED = 2;
+	public static final int CAPABILITY_NOT_MODIFIED = 4;
+	public static final int CAPABILITY_PROTOCOL_V2 = 8;
+
+	/* sent by the module in response to a ping request */
+	public static final byte MODULE_HANDSHAKE = 4;
+
+	private static final int INPUT_CHECK_PERIOD = 200; /* in milliseconds */
+	private static final int ERROR_CHECK_PERIOD = 400; /* in milliseconds */
+	private static final long HANDSHAKE_TIMEOUT = 10000; /* in milliseconds */
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Module module;
+	private final String path;
+	private final Process process;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final InterruptableInputStream input;
+	private final CountingOutputStream output;
+	private final StreamPipe pipe;
+	private final Thread piper;
+
+	/* decodes messages from JSON modules, used only by the current owner */
+	private JsonMessageReader reader = null;
+
+	/* the keys defined so far by a module speaking the second binary protocol */
+	private final ArrayList<String> keys = new ArrayList<String>();
+
+	/* the validators of the pages sent to this process */
+	private final HttpFetcher.PageValidators validators = new HttpFetcher.PageValidators();
+
+	private volatile Interruptable owner = null;
+	private int capabilities = 0;
+	private int requestCount = 0;
+	private long lastUsed;
+
+	/* the operating system's ID of an external process, or -1 */
+	private final long pid;
+
+	/* the CPU time of the process when it was last sampled, in nanoseconds */
+	private volatile long cpuTime = -1;
+
+	private ModuleProcess(Module module, Process process)
+	{
+		this.module = module;
+		this.path = module.getPath();
+		this.process = process;
+		this.output = new CountingOutputStream(process.getOutputStream());
+		this.out = new DataOutputStream(output);
+		this.lastUsed = System.currentTimeMillis();
+
+		/* TODO: limit the amount of data we read */
+		InterruptableInputStream error;
+		if (process instanceof InJvmProcess) {
+			/* read the module's in-memory streams directly */
+			InJvmProcess local = (InJvmProcess) process;
+			this.input = new InterruptableInputStream(
+					local.getOutputBuffer(), this, INPUT_CHECK_PERIOD);
+			error = new InterruptableInputStream(
+					local.getErrorBuffer(), this, ERROR_CHECK_PERIOD);
+		} else {
+			this.input = new InterruptableInputStream(
+					process.getInputStream(), this, INPUT_CHECK_PERIOD);
+			error = new InterruptableInputStream(
+					process.getErrorStream(), this, ERROR_CHECK_PERIOD);
+		}
+		this.in = new DataInputStream(input);
+		this.pipe = new StreamPipe(error, module.getLogStream());
+		this.piper = new Thread(pipe);
+		piper.start();
+
+		this.pid = (process instanceof InJvmProcess) ? -1 : ProcessUsage.getPid(process);
+		module.getStats().addProcess(this);
+	}
+
+	/**
+	 * Starts a new process for the given module. Returns null if the
+	 * sandbox was unable to start the process.
+	 */
+	public static ModuleProcess start(Module module)
+	{
+		Process process = Core.getSandbox(module).run(module);
+		if (process == null)
+			return null;
+		return new ModuleProcess(module, process);
+	}
+
+	public Module getModule() {
+		return module;
+	}
+
+	public Process getProcess() {
+		return process;
+	}
+
+	public DataOutputStream getOutputStream() {
+		return out;
+	}
+
+	public DataInputStream getInputStream() {
+		return in;
+	}
+
+	public InterruptableInputStream getUnderlyingInputStream() {
+		return input;
+	}
+
+	/**
+	 * Returns the reader of messages from this JSON module. The reader is
+	 * kept with the process, since it may have buffered the start of the
+	 * next message.
+	 */
+	public JsonMessageReader getMessageReader()
+	{
+		if (reader == null)
+			reader = new JsonMessageReader(in);
+		return reader;
+	}
+
+	public int getCapabilities() {
+		return capabilities;
+	}
+
+	public boolean hasCapability(int capability) {
+		return (capabilities & capability) != 0;
+	}
+
+	public boolean isPersistent() {
+		return hasCapability(CAPABILITY_PERSISTENT);
+	}
+
+	public boolean isWindowed() {
+		return hasCapability(CAPABILITY_WINDOWED);
+	}
+
+	public boolean isProtocolV2() {
+		return hasCapability(CAPABILITY_PROTOCOL_V2);
+	}
+
+	/**
+	 * Returns the dictionary of keys that the module has defined since the
+	 * last handshake, which key-value responses in the second version of
+	 * the binary protocol refer to by index.
+	 */
+	public ArrayList<String> getKeyDictionary() {
+		return keys;
+	}
+
+	/**
+	 * Returns the validators of the pages this process was sent, which
+	 * requests made on its behalf may be made conditional on.
+	 */
+	public HttpFetcher.PageValidators getPageValidators() {
+		return validators;
+	}
+
+	/**
+	 * Samples and returns the CPU time, in nanoseconds, used by the process,
+	 * or returns the last sample if the process has exited. Returns -1 if
+	 * the CPU time of the process cannot be measured.
+	 */
+	public long sampleCpuTime()
+	{
+		long sample;
+		if (process instanceof InJvmProcess)
+			sample = ((InJvmProcess) process).getCpuTime();
+		else if (pid != -1)
+			sample = ProcessUsage.getCpuTime(pid);
+		else sample = -1;
+
+		if (sample > cpuTime)
+			cpuTime = sample;
+		return cpuTime;
+	}
+
+	/**
+	 * Returns the resident memory, in bytes, of an external process, or -1
+	 * if it is not known.
+	 */
+	public long getResidentSize()
+	{
+		if (pid == -1)
+			return -1;
+		return ProcessUsage.getResidentSize(pid);
+	}
+
+	public long getBytesRead() {
+		return input.getBytesRead();
+	}
+
+	public long getBytesWritten() {
+		return output.count;
+	}
+
+	public int getRequestCount() {
+		return requestCount;
+	}
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Returns true if the process was started with the module's current
+	 * command, and has not exited.
+	 */
+	public boolean isCurrent() {
+		return isAlive() && path.equals(module.getPath());
+	}
+
+	public boolean isAlive()
+	{
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Sets the {@link Interruptable} that is consulted when reads from this
+	 * process block. A null owner means only the process exiting will
+	 * interrupt reads.
+	 */
+	public void setOwner(Interruptable owner) {
+		this.owner = owner;
+	}
+
+	public void markUsed() {
+		this.requestCount++;
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	@Override
+	public boolean interrupted()
+	{
+		if (!isAlive())
+			return true;
+		Interruptable current = owner;
+		return (current != null && current.interrupted());
+	}
+
+	/**
+	 * Sends a ping request offering the given capabilities, and waits for
+	 * the module to respond with the subset of capabilities it accepts.
+	 * This doubles as a health check for idle processes. Returns false if
+	 * the module did not respond correctly within the timeout.
+	 */
+	public boolean handshake(int offered)
+	{
+		final long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+		setOwner(new Interruptable() {
+			@Override
+			public boolean interrupted() {
+				return System.currentTimeMillis() > deadline;
+			}
+		});
+
+		/* both sides start a new key dictionary with each handshake */
+		keys.clear();
+		try {
+			switch (module.getApi()) {
+			case BINARY:
+				out.writeByte(Core.MODULE_PING_REQUEST);
+				out.writeShort(offered);
+				out.flush();
+
+				int type = in.readUnsignedByte();
+				if (type != MODULE_HANDSHAKE) {
+					module.logError("ModuleProcess", "handshake",
+							"Unexpected response type " + type + " to ping request.");
+					return false;
+				}
+				capabilities = in.readUnsignedShort() & offered;
+
+				/* in the first protocol, a product ID sent ahead of a page
+				 * cannot be told apart from the page */
+				if (!hasCapability(CAPABILITY_PROTOCOL_V2))
+					capabilities &= ~CAPABILITY_WINDOWED;
+				return true;
+			case JSON:
+				JSONObject map = new JSONObject();
+				map.put("type", "ping");
+				map.put("capabilities", offered);
+				out.write(map.toJSONString().getBytes(UTF8));
+				out.write(Core.NEWLINE.getBytes(UTF8));
+				out.flush();
+
+				JsonMessageReader reader = getMessageReader();
+				if (!reader.next() || !"handshake".equals(reader.getType())) {
+					module.logError("ModuleProcess", "handshake",
+							"Unexpected response to ping request.");
+					return false;
+				}
+				Number accepted = reader.getNumber("capabilities");
+				if (accepted != null)
+					capabilities = accepted.intValue() & offered;
+				return true;
+			default:
+				module.logError("ModuleProcess", "handshake",
+						"Unrecognized module API field.");
+				return false;
+			}
+		} catch (ParseException e) {
+			module.logError("ModuleProcess", "handshake",
+					"Error during JSON parsing.", e);
+			return false;
+		} catch (IOException e) {
+			module.logError("ModuleProcess", "handshake",
+					"Module did not complete handshake.", e);
+			return false;
+		} finally {
+			setOwner(null);
+		}
+	}
+
+	/**
+	 * Kills the process and all related threads.
+	 */
+	public void destroy()
+	{
+		module.getStats().removeProcess(this);
+		pipe.stop();
+		piper.interrupt();
+		input.interrupt();
+		process.destroy();
+		try {
+			piper.join();
+		} catch (InterruptedException e) { }
+	}
+
+	/**
+	 * Counts the bytes written to the process. The count is written only
+	 * by the owner of the process, and read for statistics.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		long count = 0;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
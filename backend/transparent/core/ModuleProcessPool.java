@@ -0,0 +1,171 @@
+package transparent.core;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Keeps module processes alive across tasks, so that modules which support
+ * persistence do not pay the process startup (and, for Java modules, JVM
+ * warmup) cost on every request. Only modules marked as pooled are kept.
+ * Idle processes are health-checked before reuse, and evicted after
+ * {@link #IDLE_TIMEOUT} milliseconds.
+ */
+public class ModuleProcessPool
+{
+	private static final long IDLE_TIMEOUT = 300000; /* in milliseconds */
+	private static final int MAX_IDLE_PROCESSES = 4; /* per module */
+	private static final int MAX_REQUESTS = 10000; /* per process */
+
+	private static final ConcurrentHashMap<Long, ConcurrentLinkedDeque<ModuleProcess>> idle =
+			new ConcurrentHashMap<Long, ConcurrentLinkedDeque<ModuleProcess>>();
+
+	/**
+	 * Returns the capabilities the core offers to the given module, given
+	 * its current settings.
+	 */
+	private static int getOfferedCapabilities(Module module)
+	{
+		int offered = 0;
+		/* only a persistent process can remember pages it was sent earlier */
+		if (module.isPooled())
+			offered |= ModuleProcess.CAPABILITY_PERSISTENT
+					| ModuleProcess.CAPABILITY_NOT_MODIFIED;
+		/* windowed requests need every message to the module to be tagged,
+		 * which binary modules only do in the second protocol, so binary
+		 * modules that decline it are not windowed (see the handshake) */
+		if (module.getWindowSize() > 1)
+			offered |= ModuleProcess.CAPABILITY_WINDOWED;
+		/* the second protocol is only offered along with another capability,
+		 * so that modules set up as before are never sent a handshake */
+		if (offered != 0 && module.getApi() == Module.Api.BINARY)
+			offered |= ModuleProcess.CAPABILITY_PROTOCOL_V2;
+		return offered;
+	}
+
+	private static ConcurrentLinkedDeque<ModuleProcess> getIdle(Module module)
+	{
+		ConcurrentLinkedDeque<ModuleProcess> processes = idle.get(module.getId());
+		if (processes == null) {
+			processes = new ConcurrentLinkedDeque<ModuleProcess>();
+			ConcurrentLinkedDeque<ModuleProcess> old =
+					idle.putIfAbsent(module.getId(), processes);
+			if (old != null)
+				processes = old;
+		}
+		return processes;
+	}
+
+	/**
+	 * Returns a process ready to serve a request for the given module,
+	 * reusing an idle process if one is available and healthy. Returns
+	 * null if no process could be started.
+	 */
+	public static ModuleProcess acquire(Module module)
+	{
+		/* modules that need no capabilities are not sent a handshake */
+		int offered = getOfferedCapabilities(module);
+		if (offered == 0)
+			return ModuleProcess.start(module);
+
+		/* prefer the most recently used process, since it is the warmest */
+		ConcurrentLinkedDeque<ModuleProcess> processes = getIdle(module);
+		ModuleProcess process;
+		while ((process = processes.pollFirst()) != null) {
+			if (process.isCurrent() && process.handshake(offered)) {
+				process.markUsed();
+				return process;
+			}
+			module.logInfo("ModuleProcessPool", "acquire",
+					"Idle process failed health check, discarding...");
+			process.destroy();
+		}
+
+		process = ModuleProcess.start(module);
+		if (process == null)
+			return null;
+		if (!process.handshake(offered)) {
+			/* the module may not understand the handshake, so start over without it */
+			module.logInfo("ModuleProcessPool", "acquire",
+					"Handshake failed; falling back to a single-request process.");
+			process.destroy();
+			process = ModuleProcess.start(module);
+			if (process == null)
+				return null;
+		}
+		process.markUsed();
+		return process;
+	}
+
+	/**
+	 * Returns a process to the pool after a request. If the process did not
+	 * cleanly complete its request, or is not eligible for reuse, it is
+	 * destroyed instead.
+	 */
+	public static void release(ModuleProcess process, boolean completed)
+	{
+		Module module = process.getModule();
+		process.setOwner(null);
+		if (completed && module.isPooled() && process.isPersistent()
+				&& process.isCurrent() && process.getRequestCount() < MAX_REQUESTS
+				&& Core.getModule(module.getId()) == module)
+		{
+			ConcurrentLinkedDeque<ModuleProcess> processes = getIdle(module);
+			if (processes.size() < MAX_IDLE_PROCESSES) {
+				processes.offerFirst(process);
+				return;
+			}
+		}
+		process.destroy();
+	}
+
+	public static int getIdleCount(Module module)
+	{
+		ConcurrentLinkedDeque<ModuleProcess> processes = idle.get(module.getId());
+		if (processes == null)
+			return 0;
+		return processes.size();
+	}
+
+	/**
+	 * Destroys any idle processes that have exceeded the idle timeout or
+	 * have exited on their own.
+	 */
+	public static void evictIdle()
+	{
+		long now = System.currentTimeMillis();
+		for (ConcurrentLinkedDeque<ModuleProcess> processes : idle.values()) {
+			Iterator<ModuleProcess> iterator = processes.iterator();
+			while (iterator.hasNext()) {
+				ModuleProcess process = iterator.next();
+				if (!process.isCurrent() || now - process.getLastUsed() > IDLE_TIMEOUT) {
+					if (processes.removeFirstOccurrence(process))
+						process.destroy();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Destroys all idle processes of the given module.
+	 */
+	public static void evict(Module module) {
+		evict(module.getId());
+	}
+
+	private static void evict(long moduleId)
+	{
+		ConcurrentLinkedDeque<ModuleProcess> processes = idle.remove(moduleId);
+		if (processes == null)
+			return;
+		ModuleProcess process;
+		while ((process = processes.pollFirst()) != null)
+			process.destroy();
+	}
+
+	public static void shutdown()
+	{
+		for (Long moduleId : idle.keySet())
+			evict(moduleId);
+	}
+}
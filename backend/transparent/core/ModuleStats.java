@@ -0,0 +1,269 @@
+package transparent.core;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * Counts the resources used and the work done by a module: the CPU time
+ * and memory of its processes, the bytes exchanged with them, its HTTP
+ * requests per host, the products it parsed and the time spent writing
+ * them to the database.
+ * <p>
+ * The usage of a running process is sampled when the statistics are read,
+ * and once more when the process is destroyed; a process that exits on
+ * its own between samples has its last sampled CPU time counted.
+ */
+public class ModuleStats
+{
+	private static final int RATE_WINDOW = 60; /* in seconds */
+
+	private final long created = System.currentTimeMillis();
+
+	/* the running processes of the module, and the totals of those destroyed */
+	private final Set<ModuleProcess> processes =
+			Collections.newSetFromMap(new ConcurrentHashMap<ModuleProcess, Boolean>());
+	private final AtomicLong processCount = new AtomicLong(0);
+	private final AtomicLong finishedCpuTime = new AtomicLong(0);
+	private final AtomicLong finishedBytesIn = new AtomicLong(0);
+	private final AtomicLong finishedBytesOut = new AtomicLong(0);
+
+	private final ConcurrentHashMap<String, HostStats> hosts =
+			new ConcurrentHashMap<String, HostStats>();
+
+	private final AtomicLong products = new AtomicLong(0);
+
+	/* products parsed in each of the last seconds, and the second each
+	 * bucket counts; a count racing with the reuse of its bucket may be
+	 * lost, which is acceptable for a rate */
+	private final AtomicLongArray productBuckets = new AtomicLongArray(RATE_WINDOW);
+	private final AtomicLongArray bucketSeconds = new AtomicLongArray(RATE_WINDOW);
+
+	private final AtomicLong databaseWrites = new AtomicLong(0);
+	private final AtomicLong databaseWriteTime = new AtomicLong(0); /* in nanoseconds */
+	private final AtomicLong databaseWriteMax = new AtomicLong(0); /* in nanoseconds */
+
+	void addProcess(ModuleProcess process)
+	{
+		processes.add(process);
+		processCount.incrementAndGet();
+	}
+
+	/**
+	 * Stops sampling the given process, adding its final usage to the
+	 * module's totals.
+	 */
+	void removeProcess(ModuleProcess process)
+	{
+		if (!processes.remove(process))
+			return;
+		long cpuTime = process.sampleCpuTime();
+		if (cpuTime > 0)
+			finishedCpuTime.addAndGet(cpuTime);
+		finishedBytesIn.addAndGet(process.getBytesRead());
+		finishedBytesOut.addAndGet(process.getBytesWritten());
+	}
+
+	public void recordHttpRequest(String host)
+	{
+		HostStats stats = getHost(host);
+		stats.requests.incrementAndGet();
+	}
+
+	public void recordHttpBytes(String host, long bytes)
+	{
+		if (bytes <= 0)
+			return;
+		getHost(host).bytes.addAndGet(bytes);
+	}
+
+	private HostStats getHost(String host)
+	{
+		HostStats stats = hosts.get(host);
+		if (stats == null) {
+			HostStats created = new HostStats();
+			stats = hosts.putIfAbsent(host, created);
+			if (stats == null)
+				stats = created;
+		}
+		return stats;
+	}
+
+	public void recordProduct()
+	{
+		products.incrementAndGet();
+		long second = System.currentTimeMillis() / 1000;
+		int bucket = (int) (second % RATE_WINDOW);
+		long stamp = bucketSeconds.get(bucket);
+		if (stamp != second && bucketSeconds.compareAndSet(bucket, stamp, second))
+			productBuckets.set(bucket, 0);
+		productBuckets.incrementAndGet(bucket);
+	}
+
+	public void recordDatabaseWrite(long elapsed)
+	{
+		databaseWrites.incrementAndGet();
+		databaseWriteTime.addAndGet(elapsed);
+		long max;
+		while (elapsed > (max = databaseWriteMax.get())
+				&& !databaseWriteMax.compareAndSet(max, elapsed)) { }
+	}
+
+	/**
+	 * Returns the CPU time, in nanoseconds, used by all processes of the
+	 * module so far.
+	 */
+	public long getCpuTime()
+	{
+		long total = finishedCpuTime.get();
+		for (ModuleProcess process : processes) {
+			long cpuTime = process.sampleCpuTime();
+			if (cpuTime > 0)
+				total += cpuTime;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the total resident memory, in bytes, of the module's running
+	 * external processes. Modules running in the core's JVM share its
+	 * memory, and are not counted.
+	 */
+	public long getResidentSize()
+	{
+		long total = 0;
+		for (ModuleProcess process : processes) {
+			long size = process.getResidentSize();
+			if (size > 0)
+				total += size;
+		}
+		return total;
+	}
+
+	public int getRunningProcessCount() {
+		return processes.size();
+	}
+
+	public long getStartedProcessCount() {
+		return processCount.get();
+	}
+
+	/**
+	 * Returns the number of bytes read from the module's processes.
+	 */
+	public long getBytesIn()
+	{
+		long total = finishedBytesIn.get();
+		for (ModuleProcess process : processes)
+			total += process.getBytesRead();
+		return total;
+	}
+
+	/**
+	 * Returns the number of bytes written to the module's processes.
+	 */
+	public long getBytesOut()
+	{
+		long total = finishedBytesOut.get();
+		for (ModuleProcess process : processes)
+			total += process.getBytesWritten();
+		return total;
+	}
+
+	public Map<String, HostStats> getHosts() {
+		return Collections.unmodifiableMap(hosts);
+	}
+
+	public long getProductCount() {
+		return products.get();
+	}
+
+	/**
+	 * Returns the number of products parsed per second, over the last
+	 * complete minute, or since the statistics were created if that is
+	 * more recent.
+	 */
+	public double getProductRate()
+	{
+		long now = System.currentTimeMillis();
+		long second = now / 1000;
+		long total = 0;
+		for (int i = 1; i <= RATE_WINDOW; i++) {
+			int bucket = (int) ((second - i) % RATE_WINDOW);
+			if (bucketSeconds.get(bucket) == second - i)
+				total += productBuckets.get(bucket);
+		}
+		long seconds = Math.min(RATE_WINDOW, second - created / 1000);
+		if (seconds <= 0)
+			return 0.0;
+		return total / (double) seconds;
+	}
+
+	public long getDatabaseWriteCount() {
+		return databaseWrites.get();
+	}
+
+	/**
+	 * Returns the mean time of a database write, in nanoseconds.
+	 */
+	public long getDatabaseWriteMean()
+	{
+		long writes = databaseWrites.get();
+		if (writes == 0)
+			return 0;
+		return databaseWriteTime.get() / writes;
+	}
+
+	public long getDatabaseWriteMax() {
+		return databaseWriteMax.get();
+	}
+
+	public JSONObject toJSON()
+	{
+		JSONObject map = new JSONObject();
+		map.put("cpu_time_ms", getCpuTime() / 1000000);
+		map.put("resident_bytes", getResidentSize());
+		map.put("running_processes", getRunningProcessCount());
+		map.put("started_processes", getStartedProcessCount());
+		map.put("pipe_bytes_in", getBytesIn());
+		map.put("pipe_bytes_out", getBytesOut());
+		map.put("products", getProductCount());
+		map.put("products_per_second", getProductRate());
+		map.put("db_writes", getDatabaseWriteCount());
+		map.put("db_write_mean_us", getDatabaseWriteMean() / 1000);
+		map.put("db_write_max_us", getDatabaseWriteMax() / 1000);
+
+		JSONObject http = new JSONObject();
+		for (Map.Entry<String, HostStats> entry : hosts.entrySet()) {
+			JSONObject host = new JSONObject();
+			host.put("requests", entry.getValue().getRequests());
+			host.put("bytes", entry.getValue().getBytes());
+			http.put(entry.getKey(), host);
+		}
+		map.put("http", http);
+		return map;
+	}
+
+	public static class HostStats
+	{
+		private final AtomicLong requests = new AtomicLong(0);
+		private final AtomicLong bytes = new AtomicLong(0);
+
+		public long getRequests() {
+			return requests.get();
+		}
+
+		/**
+		 * Returns the number of bytes received from the host, as sent
+		 * over the network, before decompression.
+		 */
+		public long getBytes() {
+			return bytes.get();
+		}
+	}
+}
@@ -1,10 +1,9 @@
 package transparent.core;
 
-import transparent.core.database.Database.Relation;
-import transparent.core.database.Database.Results;
 import transparent.core.database.Database.ResultsIterator;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -13,21 +12,28 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.math.BigInteger;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.Charset;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
-import net.minidev.json.parser.JSONParser;
 import net.minidev.json.parser.ParseException;
 
 public class ModuleThread implements Runnable, Interruptable
@@ -36,6 +42,15 @@ public class ModuleThread implements Runnable, Interruptable
 	private static final byte MODULE_HTTP_GET_REQUEST = 1;
 	private static final byte MODULE_HTTP_POST_REQUEST = 2;
 	private static final byte MODULE_SET_USER_AGENT = 3;
+	private static final byte MODULE_END_OF_REQUEST = 5;
+	private static final byte MODULE_WINDOWED_RESPONSE = 6;
+	private static final byte MODULE_HTTP_BATCH_GET_REQUEST = 7;
+	private static final byte MODULE_MULTI_RESPONSE = 8;
+
+	/* in the second binary protocol, tags of the messages sent during a request */
+	private static final byte TAG_PRODUCT_ID = 1;
+	private static final byte TAG_END_OF_IDS = 2;
+	private static final byte TAG_PAGE = 3;
 
 	private static final int TYPE_LONG = 0;
 	private static final int TYPE_STRING = 1;
@@ -43,16 +58,23 @@ public class ModuleThread implements Runnable, Interruptable
 	private static final int DOWNLOAD_OK = 0;
 	private static final int DOWNLOAD_ABORTED = 1;
 	private static final int URL_NOT_FOUND = 2;
+	private static final int DOWNLOAD_NOT_MODIFIED = 3;
 
 	private static final int BUFFER_SIZE = 4096; /* in bytes */
-	private static final int CHAR_BUFFER_SIZE = 256; /* in bytes */
 	private static final int MAX_DOWNLOAD_SIZE = 10485760; /* 10 MB */
 	private static final int MAX_USHORT = 65535;
 	private static final int MAX_BATCH_SIZE = 10000;
+	private static final int MAX_BATCH_SIZE_V2 = 1048576;
 	private static final int MAX_COLUMN_COUNT = 64;
-	private static final int INPUT_SLEEP_DURATION = 200;
-	private static final int ERROR_SLEEP_DURATION = 400;
-	private static final long REQUEST_PERIOD = 1000000000; /* in nanoseconds */
+	private static final int MAX_DICTIONARY_SIZE = 4096;
+	private static final int MAX_STRING_SIZE = 1048576; /* in bytes */
+	private static final int MAX_POST_SIZE = 10485760; /* in bytes */
+	private static final int MAX_RECORDS = 1024; /* per multi-record response */
+	private static final int MAX_BATCH_URLS = 256;
+	private static final int MAX_BATCH_CONNECTIONS = 4;
+	private static final int BATCH_CHECK_PERIOD = 200; /* in milliseconds */
+	private static final int BATCH_FETCH_THREADS = 32;
+	private static final int MAX_CACHED_CHARSETS = 256;
 
 	private static final Charset ASCII = Charset.forName("US-ASCII");
 	private static final Charset UTF8 = Charset.forName("UTF-8");
@@ -60,23 +82,75 @@ public class ModuleThread implements Runnable, Interruptable
 
 	private static final String DEFAULT_USER_AGENT =
 			"Mozilla/5.0 (X11; Linux x86_64; rv:20.0) Gecko/20100101 Firefox/20.0";
-	private static final String PRICE_ALERT_URL = "http://transparent.rafiss.com/track_notify";
 	private static final Pattern ENCODING_PATTERN =
 			Pattern.compile("text/html;\\s+charset=([^\\s]+)\\s*");
 	private static final String NEWLINE = System.getProperty("line.separator");
 
-	private static final JSONParser parser =
-			new JSONParser(JSONParser.DEFAULT_PERMISSIVE_MODE);
+	/* prefixes the row ID of the last stored product in the state of a
+	 * product info parse; older states are positions in the result set */
+	private static final String ROW_ID_STATE = "id:";
+
+	/* downloads the pages of batch requests; separate from the core's
+	 * thread pool, which module threads may fill while they wait on these */
+	private static final ExecutorService batchFetchers =
+			Executors.newFixedThreadPool(BATCH_FETCH_THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "batch-fetcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/* the encoding of each content type seen so far */
+	private static final ConcurrentHashMap<String, Charset> charsets =
+			new ConcurrentHashMap<String, Charset>();
 
 	private final Module module;
 	private byte requestType;
-	private boolean alive;
+	private volatile boolean alive;
 	private boolean dummy;
-	private Process process;
+
+	/* the profile of a replay, which serves only recorded pages, or null */
+	private ReplayHarness.Profile profile = null;
+	private volatile ModuleProcess worker;
+	/* the validators of the pages the module process has, if it accepts
+	 * not modified responses, or null */
+	private HttpFetcher.PageValidators validators;
+	private boolean protocolV2;
+	private ArrayList<String> keyDictionary;
 	private ResultsIterator<ProductID> requestedProductIds;
+
+	/* the range of row IDs to request, if the product IDs were not given */
+	private boolean ranged = false;
+	private long startRowId = 0;
+	private long endRowId = -1;
+
+	/* product info requests in the order they were sent, with their row IDs,
+	 * and those still outstanding */
+	private final ArrayDeque<Integer> issuedRequests = new ArrayDeque<Integer>();
+	private final ArrayDeque<Long> issuedRowIds = new ArrayDeque<Long>();
+	private final HashMap<Integer, ProductID> outstandingRequests =
+			new HashMap<Integer, ProductID>();
+
+	/* the number of products this thread has submitted to the ingestion
+	 * queue, and the number of them stored since, which the queue counts in
+	 * the order they were submitted; each completed request maps to the
+	 * number of products submitted once it completed */
+	private long submittedProducts = 0;
+	private final AtomicLong storedProducts = new AtomicLong(0);
+	private final HashMap<Integer, Long> completedRequests = new HashMap<Integer, Long>();
 	private String userAgent;
 	private String state;
 
+	/* reused by every page sent to a JSON module */
+	private final JsonMessageWriter messageWriter = new JsonMessageWriter(4 * BUFFER_SIZE);
+	private final char[] pageChars = new char[BUFFER_SIZE];
+
+	/* progress of this thread, read by other threads */
+	private volatile int processedCount = 0;
+	private volatile boolean completed = false;
+
 	public ModuleThread(Module module, boolean dummy)
 	{
 		this.module = module;
@@ -89,83 +163,168 @@ public class ModuleThread implements Runnable, Interruptable
 
 	public void stop() {
 		this.alive = false;
+		ModuleProcess current = worker;
+		if (current != null)
+			current.getUnderlyingInputStream().interrupt();
+		module.getIngestionQueue().wake();
 	}
 
-	private void downloadPageChars(String contentType,
-			InputStream stream, OutputStream dest, boolean blocked)
-					throws IOException
+	/**
+	 * Reads a length or count from a binary module: an unsigned short in
+	 * the first version of the protocol, and a varint of at most
+	 * <code>max</code> in the second.
+	 */
+	private int readLength(DataInputStream in, int max) throws IOException
 	{
-		/* determine the encoding of the web page */
-		Charset encoding = UTF8;
-		if (contentType != null) {
-			Matcher match = ENCODING_PATTERN.matcher(contentType);
-			if (match.matches())
-				encoding = Charset.forName(match.group(1));
+		if (protocolV2)
+			return Varint.readUnsigned(in, max);
+		return in.readUnsignedShort();
+	}
+
+	private String readString(DataInputStream in, Charset charset) throws IOException
+	{
+		int length = readLength(in, MAX_STRING_SIZE);
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return new String(data, charset);
+	}
+
+	private void writeString(DataOutputStream out, String value) throws IOException
+	{
+		byte[] data = value.getBytes(UTF8);
+		if (protocolV2)
+			Varint.writeUnsigned(out, data.length);
+		else
+			out.writeShort(data.length);
+		out.write(data);
+	}
+
+	/**
+	 * Reads a key of a key-value pair. In the second version of the
+	 * protocol, a key is the index of a previously defined key plus one,
+	 * or zero followed by a new key, which is added to the dictionary
+	 * unless it is full.
+	 */
+	private String readKey(DataInputStream in) throws IOException
+	{
+		if (!protocolV2)
+			return readString(in, UTF8);
+
+		int index = Varint.readUnsigned(in, MAX_DICTIONARY_SIZE);
+		if (index > 0) {
+			if (index > keyDictionary.size())
+				throw new IOException("Undefined key index " + index + ".");
+			return keyDictionary.get(index - 1);
 		}
 
-		int total = 0;
-		if (blocked) {
-			/* download the page in blocks, sending each to the module */
-			int start = 0;
-			CountingInputStream counter = new CountingInputStream(stream);
-			InputStreamReader reader = new InputStreamReader(counter, encoding);
-			StringBuilder builder = new StringBuilder(2 * BUFFER_SIZE);
-			char[] buf = new char[CHAR_BUFFER_SIZE];
-			while (true) {
-				int read = reader.read(buf, 0, buf.length);
-				if (read == -1) break;
-				else if (counter.bytesRead() > MAX_DOWNLOAD_SIZE)
-					break;
+		String key = readString(in, UTF8);
+		if (keyDictionary.size() < MAX_DICTIONARY_SIZE)
+			keyDictionary.add(key);
+		return key;
+	}
 
-				builder.append(buf, 0, read);
-				if (counter.bytesRead() - start >= BUFFER_SIZE) {
-					JSONObject map = new JSONObject();
-					map.put("response", builder.toString());
-					dest.write(map.toJSONString().getBytes(UTF8));
-					builder = new StringBuilder(2 * BUFFER_SIZE);
-				}
+	private static JSONObject newMessage(int index)
+	{
+		JSONObject map = new JSONObject();
+		if (index != -1)
+			map.put("index", index);
+		return map;
+	}
+
+	/**
+	 * Returns the encoding named in the given content type, or UTF-8 if
+	 * none is named or it is not supported.
+	 */
+	private static Charset getCharset(String contentType)
+	{
+		if (contentType == null)
+			return UTF8;
+		Charset encoding = charsets.get(contentType);
+		if (encoding == null) {
+			encoding = UTF8;
+			Matcher match = ENCODING_PATTERN.matcher(contentType);
+			if (match.matches()) {
+				try {
+					encoding = Charset.forName(match.group(1));
+				} catch (IllegalArgumentException e) { }
 			}
+			if (charsets.size() < MAX_CACHED_CHARSETS)
+				charsets.put(contentType, encoding);
+		}
+		return encoding;
+	}
 
-			/* send the last message */
-			JSONObject map = new JSONObject();
-			map.put("response", builder.toString());
-			map.put("end", "true");
-			dest.write(map.toJSONString().getBytes(UTF8));
-			total = counter.bytesRead();
-		} else {
-			/* download the entire page, and send the whole thing */
-			ByteArrayOutputStream page = new ByteArrayOutputStream(4 * BUFFER_SIZE);
-			byte[] buf = new byte[BUFFER_SIZE];
-			int read = stream.read(buf);
-			total = read;
-			while (read != -1 && total < MAX_DOWNLOAD_SIZE) {
-				page.write(buf, 0, read);
-				read = stream.read(buf);
-				total += read;
+	private JsonMessageWriter beginPageMessage(int index)
+	{
+		JsonMessageWriter message = messageWriter.begin();
+		if (index != -1)
+			message.field("index", index);
+		return message.beginString("response");
+	}
+
+	/**
+	 * Sends the downloaded page to a JSON module. If <code>index</code> is
+	 * not -1, every message is tagged with it, so that the module can
+	 * match the page to its request in a batch. The page is escaped into
+	 * the message as it is decoded. Returns true if the whole page was
+	 * sent.
+	 */
+	private boolean downloadPageChars(String contentType,
+			InputStream stream, OutputStream dest, boolean blocked, int index)
+					throws IOException
+	{
+		CountingInputStream counter = new CountingInputStream(stream);
+		InputStreamReader reader = new InputStreamReader(counter, getCharset(contentType));
+
+		JsonMessageWriter message = beginPageMessage(index);
+		while (true) {
+			int read = reader.read(pageChars, 0, pageChars.length);
+			if (read == -1)
+				break;
+			message.appendString(pageChars, 0, read);
+			if (counter.bytesRead() >= MAX_DOWNLOAD_SIZE)
+				break;
+
+			if (blocked && message.size() >= BUFFER_SIZE) {
+				/* send this block, and continue the page in a new message */
+				message.endString().end().writeTo(dest);
+				message = beginPageMessage(index);
 			}
-			JSONObject map = new JSONObject();
-			map.put("response", new String(page.toByteArray(), encoding));
-			dest.write(map.toJSONString().getBytes(UTF8));
-			dest.write(NEWLINE.getBytes(UTF8));
 		}
 
-		if (total < MAX_DOWNLOAD_SIZE)
+		/* send the last message */
+		message.endString();
+		if (blocked)
+			message.field("end", "true");
+		message.end().writeTo(dest);
+
+		int total = counter.bytesRead();
+		boolean completed = (total < MAX_DOWNLOAD_SIZE);
+		if (completed)
 			module.logDownloadCompleted(total);
 		else {
 			module.logDownloadAborted();
-			JSONObject map = new JSONObject();
-			map.put("error", "Exceeded download size limit... aborted.");
-			dest.write(map.toJSONString().getBytes(UTF8));
-			dest.write(NEWLINE.getBytes(UTF8));
+			message = messageWriter.begin();
+			if (index != -1)
+				message.field("index", index);
+			message.field("error", "Exceeded download size limit... aborted.");
+			message.end().writeTo(dest);
 		}
 
 		dest.flush();
 		stream.close();
+		return completed;
 	}
 
-	private void downloadPageBytes(String contentType,
-			InputStream stream, DataOutputStream dest, boolean blocked)
-					throws IOException
+	/**
+	 * Sends the downloaded page to a binary module, in blocks of the
+	 * module's frame size. If <code>length</code> is known (not -1) and the
+	 * module expects the whole page at once, the page is streamed straight
+	 * through; otherwise it is first read into a pooled buffer. Returns
+	 * true if the whole page was sent.
+	 */
+	private boolean downloadPageBytes(String contentType, InputStream stream,
+			long length, DataOutputStream dest, boolean blocked) throws IOException
 	{
 		/* first pass in the content type field from the HTTP header */
 		if (contentType == null) {
@@ -177,38 +336,75 @@ public class ModuleThread implements Runnable, Interruptable
 			dest.writeBytes(contentType);
 		}
 
+		int frameSize = module.getFrameSize();
+		byte[] buf = BufferPool.acquire(frameSize);
 		int total = 0;
-		if (blocked) {
-			/* download the page in blocks, sending each to the module */
-			byte[] buf = new byte[BUFFER_SIZE];
-			while (true) {
-				int read = stream.read(buf);
-				if (read == -1) break;
-				else if (read > 0) {
-					total += read;
-					if (total > MAX_DOWNLOAD_SIZE)
+		boolean aborted = false;
+		try {
+			if (blocked) {
+				/* download the page in blocks, sending each to the module */
+				while (true) {
+					int read = stream.read(buf, 0, frameSize);
+					if (read == -1) break;
+					else if (read > 0) {
+						total += read;
+						if (total > MAX_DOWNLOAD_SIZE) {
+							aborted = true;
+							break;
+						}
+						dest.writeShort(read);
+						dest.write(buf, 0, read);
+					}
+				}
+				dest.writeShort(0);
+			} else if (length > MAX_DOWNLOAD_SIZE) {
+				/* the page is too large, so do not download any of it */
+				dest.writeInt(0);
+				aborted = true;
+			} else if (length != -1) {
+				/* the length is known, so stream the page straight through */
+				dest.writeInt((int) length);
+				while (total < length) {
+					int read = stream.read(buf, 0, (int) Math.min(frameSize, length - total));
+					if (read == -1)
 						break;
-					dest.writeShort(read);
 					dest.write(buf, 0, read);
+					total += read;
 				}
+
+				/* the page ended early, so pad it to the length already sent */
+				if (total < length) {
+					aborted = true;
+					Arrays.fill(buf, (byte) 0);
+					while (total < length) {
+						int padding = (int) Math.min(frameSize, length - total);
+						dest.write(buf, 0, padding);
+						total += padding;
+					}
+				}
+			} else {
+				/* download the entire page, and send the whole thing; the grown
+				 * buffer replaces the old one at once, since growing releases it */
+				int read;
+				while ((read = stream.read(buf, total, buf.length - total)) != -1) {
+					total += read;
+					if (total >= MAX_DOWNLOAD_SIZE) {
+						total = MAX_DOWNLOAD_SIZE;
+						aborted = true;
+						break;
+					}
+					if (total == buf.length)
+						buf = BufferPool.grow(buf, total,
+								Math.min(2 * buf.length, MAX_DOWNLOAD_SIZE + 1));
+				}
+				dest.writeInt(total);
+				dest.write(buf, 0, total);
 			}
-			dest.writeShort(0);
-		} else {
-			/* download the entire page, and send the whole thing */
-			ByteArrayOutputStream page = new ByteArrayOutputStream(4 * BUFFER_SIZE);
-			byte[] buf = new byte[BUFFER_SIZE];
-			int read = stream.read(buf);
-			total = read;
-			while (read != -1 && total < MAX_DOWNLOAD_SIZE) {
-				page.write(buf);
-				read = stream.read(buf);
-				total += read;
-			}
-			dest.writeInt(page.size());
-			page.writeTo(dest);
+		} finally {
+			BufferPool.release(buf);
 		}
 
-		if (total < MAX_DOWNLOAD_SIZE) {
+		if (!aborted) {
 			dest.writeByte(DOWNLOAD_OK);
 			module.logDownloadCompleted(total);
 		} else {
@@ -218,159 +414,319 @@ public class ModuleThread implements Runnable, Interruptable
 
 		dest.flush();
 		stream.close();
+		return !aborted;
 	}
 
-	private void alertPriceChange(long gid, String name, long newPrice)
+	/**
+	 * Tells the module that a download did not produce a page, either
+	 * because it failed or because the page was not modified, so that it
+	 * does not wait for the page. Binary modules are sent an empty page in
+	 * the format they read pages in, followed by the status.
+	 */
+	private void sendDownloadStatus(DataOutputStream dest,
+			int status, int index, boolean blocked)
 	{
 		try {
-			URLConnection connection;
-				connection = new URL(PRICE_ALERT_URL).openConnection();
-			if (!(connection instanceof HttpURLConnection)) {
-				module.logError("ModuleThread", "alertPriceChange",
-						"Unrecognized network protocol.");
-				return;
+			if (module.getApi() == Module.Api.JSON) {
+				JSONObject map = newMessage(index);
+				if (status == DOWNLOAD_NOT_MODIFIED)
+					map.put("not_modified", true);
+				else
+					map.put("error", (status == URL_NOT_FOUND)
+							? "URL not found." : "Download failed.");
+				dest.write(map.toJSONString().getBytes(UTF8));
+				dest.write(NEWLINE.getBytes(UTF8));
+			} else {
+				/* no content type, then no blocks or a length of zero */
+				dest.writeShort(0);
+				if (blocked)
+					dest.writeShort(0);
+				else
+					dest.writeInt(0);
+				dest.writeByte(status);
 			}
-	
-			HttpURLConnection http = (HttpURLConnection) connection;
-			http.setRequestProperty("User-Agent", userAgent);
-			http.setDoInput(true);
-			http.setDoOutput(true);
-			http.setUseCaches(false);
-			http.setRequestMethod("GET");
-			http.connect();
-	
-			JSONObject result = new JSONObject();
-			result.put("gid", BigInteger.valueOf(gid));
-			result.put("name", name);
-			result.put("price", Core.priceToString(newPrice));
-			result.put("module", BigInteger.valueOf(module.getId()));
-			http.getOutputStream().write(result.toJSONString().getBytes(UTF8));
-			http.getOutputStream().flush();
-			http.getOutputStream().close();
-		} catch (MalformedURLException e) {
-			module.logError("ModuleThread", "alertPriceChange", "", e);
-		} catch (IOException e) {
-			module.logError("ModuleThread", "alertPriceChange", "", e);
+			dest.flush();
+		} catch (IOException e) { }
+	}
+
+	/**
+	 * Sends the body of the given response to the module, returning true
+	 * if the whole page was sent.
+	 */
+	private boolean downloadPage(HttpFetcher.Response response,
+			DataOutputStream dest, boolean blocked) throws IOException
+	{
+		switch (module.getApi()) {
+		case BINARY:
+			return downloadPageBytes(response.getContentType(), response.getStream(),
+					response.getContentLength(), dest, blocked);
+		case JSON:
+			return downloadPageChars(response.getContentType(),
+					response.getStream(), dest, blocked, -1);
+		default:
+			module.logError("ModuleThread", "downloadPage", "Unrecognized module API field.");
+			return false;
 		}
 	}
 
-	private void httpGetRequest(
-			String url, DataOutputStream dest, boolean blocked, long prevRequest)
+	/**
+	 * Records that the module has the page of the given response, so that
+	 * it may be told when the page has not been modified.
+	 */
+	private void recordValidators(String url, HttpFetcher.Response response)
 	{
+		if (validators != null && response != null)
+			validators.record(url, response);
+	}
+
+	/**
+	 * Sends the given response to the module, or, if the request failed,
+	 * the reason it failed.
+	 */
+	private void sendResponse(String method, String url, HttpFetcher.Response response,
+			IOException error, DataOutputStream dest, boolean blocked)
+	{
+		if (error instanceof InterruptedStreamException)
+			return;
+
 		try {
-			long towait = prevRequest + REQUEST_PERIOD - System.nanoTime();
-			if (towait > 0) {
-				try {
-					Thread.sleep(towait / 1000000);
-				} catch (InterruptedException e) { }
-			}
+			beginPage(dest);
+		} catch (IOException e) {
+			module.logError("ModuleThread", method, "Could not send page.", e);
+			if (response != null)
+				close(url, response);
+			return;
+		}
 
-			module.logHttpGetRequest(url);
-			URLConnection http = new URL(url).openConnection();
-			http.setRequestProperty("User-Agent", userAgent);
-			switch (module.getApi()) {
-			case BINARY:
-				downloadPageBytes(http.getContentType(), http.getInputStream(), dest, blocked);
-				break;
-			case JSON:
-				downloadPageChars(http.getContentType(), http.getInputStream(), dest, blocked);
-				break;
-			default:
-				module.logError("ModuleThread", "httpGetRequest", "Unrecognized module API field.");
-			}
-		} catch (FileNotFoundException e) {
+		if (error instanceof FileNotFoundException) {
 			/* URL does not exist, so send empty bytes */
-			try {
-				dest.writeShort(0);
-				dest.writeShort(0);
-				dest.writeByte(URL_NOT_FOUND);
-			} catch (IOException e2) { }
+			sendDownloadStatus(dest, URL_NOT_FOUND, -1, blocked);
+			return;
+		} else if (error != null) {
+			module.logError("ModuleThread", method,
+					"Could not connect to URL '" + url + "'.", error);
+			sendDownloadStatus(dest, DOWNLOAD_ABORTED, -1, blocked);
+			return;
+		}
+
+		try {
+			if (response.isNotModified())
+				sendDownloadStatus(dest, DOWNLOAD_NOT_MODIFIED, -1, blocked);
+			else if (downloadPage(response, dest, blocked))
+				recordValidators(url, response);
 		} catch (IOException e) {
-			module.logError("ModuleThread", "httpGetRequest",
+			module.logError("ModuleThread", method,
 					"Could not download from URL '" + url + "'.", e);
+		} finally {
+			close(url, response);
 		}
 	}
 
-	private void httpPostRequest(String url, byte[] post,
-			DataOutputStream dest, boolean blocked, long prevRequest)
+	/**
+	 * Returns the page at the given URL from the {@link ResponseCache}, or
+	 * downloads it if it is not cached.
+	 */
+	private HttpFetcher.Response fetch(String url) throws IOException
 	{
+		if (profile != null) {
+			HttpFetcher.Response response = ResponseCache.replay(module, url);
+			profile.recordPage(response.getContentLength());
+			return response;
+		}
+
+		HttpFetcher.Response response = ResponseCache.get(module, url);
+		if (response != null)
+			return response;
+		URL parsed = new URL(url);
+		module.getStats().recordHttpRequest(parsed.getHost());
+		response = HttpFetcher.get(parsed, userAgent, validators, this);
+		return ResponseCache.record(module, url, response);
+	}
+
+	/**
+	 * Closes the given response, counting the bytes received from the
+	 * network for it.
+	 */
+	private void close(String url, HttpFetcher.Response response)
+	{
+		response.close();
+		long received = response.getBytesReceived();
+		if (received <= 0)
+			return;
 		try {
-			long towait = prevRequest + REQUEST_PERIOD - System.nanoTime();
-			if (towait > 0) {
-				try {
-					Thread.sleep(towait / 1000000);
-				} catch (InterruptedException e) { }
-			}
+			module.getStats().recordHttpBytes(new URL(url).getHost(), received);
+		} catch (MalformedURLException e) { }
+	}
 
-			module.logHttpPostRequest(url, post);
-			URLConnection connection = new URL(url).openConnection();
-			if (!(connection instanceof HttpURLConnection)) {
-				module.logError("ModuleThread", "httpPostRequest",
-						"Unrecognized network protocol.");
-				return;
-			}
+	private void httpGetRequest(String url, DataOutputStream dest, boolean blocked)
+	{
+		HttpFetcher.Response response = null;
+		IOException error = null;
+		try {
+			module.logHttpGetRequest(url);
+			response = fetch(url);
+		} catch (IOException e) {
+			error = e;
+		}
+		sendResponse("httpGetRequest", url, response, error, dest, blocked);
+	}
 
-			HttpURLConnection http = (HttpURLConnection) connection;
-			http.setRequestProperty("User-Agent", userAgent);
-			http.setDoInput(true);
-			http.setDoOutput(true);
-			http.setUseCaches(false);
-			http.setRequestMethod("POST");
-			http.connect();
+	private void httpPostRequest(String url, byte[] post,
+			DataOutputStream dest, boolean blocked)
+	{
+		HttpFetcher.Response response = null;
+		IOException error = null;
+		try {
+			module.logHttpPostRequest(url, post);
+			if (profile != null)
+				throw new IOException("POST requests are not recorded, and cannot be replayed.");
+			URL parsed = new URL(url);
+			module.getStats().recordHttpRequest(parsed.getHost());
+			response = HttpFetcher.post(parsed, userAgent, post, this);
+		} catch (IOException e) {
+			error = e;
+		}
+		sendResponse("httpPostRequest", url, response, error, dest, blocked);
+	}
 
-			http.getOutputStream().write(post);
-			http.getOutputStream().flush();
-			http.getOutputStream().close();
+	/**
+	 * Downloads the given URL in its entirety, for requests in a batch.
+	 * Never throws, so that every URL in a batch yields exactly one page.
+	 */
+	private FetchedPage fetchPage(int index, String url)
+	{
+		HttpFetcher.Response response = null;
+		try {
+			module.logHttpGetRequest(url);
+			response = fetch(url);
+			if (response.isNotModified())
+				return new FetchedPage(index, url, null, null, DOWNLOAD_NOT_MODIFIED);
 
-			switch (module.getApi()) {
-			case BINARY:
-				downloadPageBytes(http.getContentType(), http.getInputStream(), dest, blocked);
-				break;
-			case JSON:
-				downloadPageChars(http.getContentType(), http.getInputStream(), dest, blocked);
-				break;
-			default:
-				module.logError("ModuleThread", "httpPostRequest", "Unrecognized module API field.");
+			InputStream stream = response.getStream();
+			ByteArrayOutputStream page = new ByteArrayOutputStream(4 * BUFFER_SIZE);
+			byte[] buf = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = stream.read(buf)) != -1) {
+				page.write(buf, 0, read);
+				if (page.size() > MAX_DOWNLOAD_SIZE)
+					break;
 			}
+			return new FetchedPage(index, url, response, page.toByteArray(), DOWNLOAD_OK);
 		} catch (FileNotFoundException e) {
-			/* URL does not exist, so send empty bytes */
-			try {
-				dest.writeShort(0);
-				dest.writeShort(0);
-				dest.writeByte(URL_NOT_FOUND);
-			} catch (IOException e2) { }
-		} catch (Exception e) {
-			module.logError("ModuleThread", "httpPostRequest",
+			return new FetchedPage(index, url, null, null, URL_NOT_FOUND);
+		} catch (InterruptedStreamException e) {
+			return new FetchedPage(index, url, null, null, DOWNLOAD_ABORTED);
+		} catch (IOException e) {
+			module.logError("ModuleThread", "fetchPage",
 					"Could not download from URL '" + url + "'.", e);
-			return;
+			return new FetchedPage(index, url, null, null, DOWNLOAD_ABORTED);
+		} finally {
+			if (response != null)
+				close(url, response);
+		}
+	}
+
+	/**
+	 * Tags a page sent to a binary module speaking the second protocol,
+	 * which may find product IDs ahead of the page in its input.
+	 */
+	private void beginPage(DataOutputStream dest) throws IOException
+	{
+		if (protocolV2 && module.getApi() == Module.Api.BINARY)
+			dest.writeByte(TAG_PAGE);
+	}
+
+	private void sendFetchedPage(FetchedPage page,
+			DataOutputStream dest, boolean blocked) throws IOException
+	{
+		switch (module.getApi()) {
+		case BINARY:
+			beginPage(dest);
+			dest.writeShort(page.index);
+			if (page.data != null) {
+				if (downloadPageBytes(page.getContentType(), new ByteArrayInputStream(page.data),
+						page.data.length, dest, blocked))
+					recordValidators(page.url, page.response);
+			} else {
+				sendDownloadStatus(dest, page.status, page.index, blocked);
+			}
+			break;
+		case JSON:
+			if (page.data != null) {
+				if (downloadPageChars(page.getContentType(),
+						new ByteArrayInputStream(page.data), dest, blocked, page.index))
+					recordValidators(page.url, page.response);
+			} else {
+				sendDownloadStatus(dest, page.status, page.index, blocked);
+			}
+			break;
+		default:
+			module.logError("ModuleThread", "sendFetchedPage", "Unrecognized module API field.");
+		}
+	}
+
+	/**
+	 * Downloads the given URLs concurrently, using at most
+	 * {@link #MAX_BATCH_CONNECTIONS} connections, and sends each page to
+	 * the module as soon as it completes, tagged with its index in the
+	 * batch. Each request is made through the {@link HttpFetcher}, on the
+	 * shared batch fetch threads, so at most {@link #BATCH_FETCH_THREADS}
+	 * pages are downloaded at once across all batches.
+	 */
+	private void httpBatchGetRequest(final String[] urls,
+			DataOutputStream dest, boolean blocked) throws IOException
+	{
+		final LinkedBlockingQueue<FetchedPage> fetched =
+				new LinkedBlockingQueue<FetchedPage>();
+		final AtomicInteger next = new AtomicInteger(0);
+
+		int connections = Math.min(urls.length, MAX_BATCH_CONNECTIONS);
+		for (int i = 0; i < connections; i++) {
+			batchFetchers.execute(new Runnable() {
+				@Override
+				public void run() {
+					int index;
+					while (alive && (index = next.getAndIncrement()) < urls.length)
+						fetched.add(fetchPage(index, urls[index]));
+				}
+			});
+		}
+
+		for (int i = 0; i < urls.length; i++) {
+			FetchedPage page = null;
+			try {
+				while (page == null) {
+					if (!alive)
+						throw new InterruptedStreamException("Batch request was interrupted.");
+					page = fetched.poll(BATCH_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedStreamException(e);
+			}
+			sendFetchedPage(page, dest, blocked);
 		}
 	}
 
 	private void getProductListResponse(
-			Module module, DataInputStream in, JSONObject json) throws IOException
+			Module module, DataInputStream in, JsonMessageReader json)
+					throws IOException, ParseException
 	{
+		long parseStarted = System.nanoTime();
 		String[] productIds;
 		switch (module.getApi()) {
 		case BINARY:
-			int length = in.readUnsignedShort();
-			byte[] data = new byte[length];
-			in.readFully(data);
-			state = new String(data, UTF8);
+			state = readString(in, UTF8);
 
-			int count = in.readUnsignedShort();
-			if (count < 0 || count > MAX_BATCH_SIZE) {
+			int count = readLength(in, MAX_BATCH_SIZE_V2);
+			if (count < 0 || count > (protocolV2 ? MAX_BATCH_SIZE_V2 : MAX_BATCH_SIZE)) {
 				module.logError("ModuleThread", "getProductListResponse",
 						"Invalid product ID count.");
 				return;
 			}
 
 			productIds = new String[count];
-			for (int i = 0; i < count; i++) {
-				length = in.readUnsignedShort();
-				data = new byte[length];
-				in.readFully(data);
-				productIds[i] = new String(data, UTF8);
-			}
+			for (int i = 0; i < count; i++)
+				productIds[i] = readString(in, UTF8);
 			break;
 		case JSON:
 			Object parsed = json.get("ids");
@@ -385,9 +741,9 @@ public class ModuleThread implements Runnable, Interruptable
 			for (int i = 0; i < array.size(); i++)
 				productIds[i] = array.get(i).toString();
 
-			Object newState = json.get("state");
-			if (newState != null && newState instanceof String)
-				state = (String) newState;
+			String newState = json.getString("state");
+			if (newState != null)
+				state = newState;
 			break;
 		default:
 			module.logError("ModuleThread", "getProductListResponse",
@@ -395,23 +751,46 @@ public class ModuleThread implements Runnable, Interruptable
 			return;
 		}
 
+		if (profile != null) {
+			long parsed = System.nanoTime();
+			profile.getParse().record(parsed - parseStarted);
+			profile.recordProducts(productIds.length);
+			parseStarted = parsed;
+		}
+
 		if (dummy) return;
-		if (!Core.getDatabase().addProductIds(module, productIds)) {
-			module.logError("ModuleThread", "getProductListResponse",
-					"Error occurred while adding product IDs.");
+
+		/* only send the database the IDs it probably does not have */
+		KnownProductFilter knownProducts = module.getKnownProducts();
+		String[] newProductIds = knownProducts.filter(module, productIds);
+		if (newProductIds.length > 0) {
+			long started = System.nanoTime();
+			boolean added = Core.getDatabase().addProductIds(module, newProductIds);
+			if (profile == null)
+				module.getStats().recordDatabaseWrite(System.nanoTime() - started);
+			if (!added) {
+				module.logError("ModuleThread", "getProductListResponse",
+						"Error occurred while adding product IDs.");
+			} else {
+				knownProducts.addAll(newProductIds);
+			}
 		}
+		if (profile != null)
+			profile.getWrite().record(System.nanoTime() - parseStarted);
 	}
 
 	private void getProductInfoResponse(Module module,
-			ProductID productId, DataInputStream in, JSONObject json) throws IOException
+			ProductID productId, DataInputStream in, JsonMessageReader json)
+					throws IOException, ParseException
 	{
+		long parseStarted = System.nanoTime();
 		Object brand = null;
 		Object model = null;
 		Object price = null;
 		ArrayList<Entry<String, Object>> keyValues;
 		switch (module.getApi()) {
 		case BINARY:
-			int count = in.readUnsignedShort();
+			int count = readLength(in, MAX_USHORT);
 			if (count < 0 || count > MAX_COLUMN_COUNT) {
 				module.logError("ModuleThread", "getProductInfoResponse",
 						"Too many key-value pairs.");
@@ -421,20 +800,14 @@ public class ModuleThread implements Runnable, Interruptable
 			keyValues = new ArrayList<Entry<String, Object>>(count + 1);
 			for (int i = 0; i < count; i++)
 			{
-				int length = in.readUnsignedShort();
-				byte[] data = new byte[length];
-				in.readFully(data);
-				String key = new String(data, UTF8);
+				String key = readKey(in);
 
 				Object value;
 				int type = in.readUnsignedByte();
 				if (type == TYPE_LONG) {
-					value = in.readLong();
+					value = protocolV2 ? Varint.readSigned(in) : in.readLong();
 				} else if (type == TYPE_STRING) {
-					length = in.readUnsignedShort();
-					data = new byte[length];
-					in.readFully(data);
-					value = new String(data, UTF8);
+					value = readString(in, UTF8);
 				} else {
 					module.logError("ModuleThread", "getProductInfoResponse",
 							"Unrecognized value type flag.");
@@ -479,78 +852,168 @@ public class ModuleThread implements Runnable, Interruptable
 			return;
 		}
 
-		/* look for other products with the same (brand, model) and generate a GID */
 		if (brand == null || model == null)
 			return;
-		Long gid = null;
-		Long oldPrice = null;
-		String image = null;
-		Results results = Core.getDatabase().query(null,
-				new String[] { "gid", "price", "image" },
-				new String[] { "model", "brand" },
-				new Relation[] { Relation.EQUALS, Relation.EQUALS },
-				new Object[] { model, brand },
-				null, null, true, null, null);
-		while (results != null && results.next()) {
-			if (gid == null)
-				gid = results.getLong(1);
-			if (oldPrice == null)
-				oldPrice = results.getLong(2);
-			else
-				oldPrice = Math.min(oldPrice, results.getLong(2));
-			if (image == null)
-				image = results.getString(3);
-		}
-		if (gid == null)
-			gid = Core.random();
-		keyValues.add(new SimpleEntry<String, Object>("gid", gid));
-
-		/* check to see if the image exists, and if not, add the product to the image queue */
-		image = Core.getImage(gid, image);
-		if (image != null)
-			keyValues.add(new SimpleEntry<String, Object>("image", image));
 
-		/* parse the price of the product, and check to see if it fires any notification triggers */
+		/* parse the price of the product */
+		Long parsed = null;
 		if (price != null) {
-			long parsed = -1;
 			if (price instanceof String)
 				parsed = Core.parsePrice((String) price);
 			else if (price instanceof Number)
 				parsed = ((Number) price).longValue();
 			else
 				throw new IllegalStateException("Unexpected type for price.");
-			if ((oldPrice == null || parsed < oldPrice) && Core.checkPrice(module, gid, parsed)) {
-				alertPriceChange(gid, model + " " + brand, parsed);
-			}
-			Core.addPriceRecord(module.getId(), gid, parsed);
 		}
 
-		if (dummy) return;
-		@SuppressWarnings("unchecked")
-		Entry<String, Object>[] keyValuesArray = new Entry[keyValues.size()];
-		keyValuesArray = keyValues.toArray(keyValuesArray);
-		if (!Core.getDatabase().addProductInfo(module, productId, keyValuesArray)) {
-			module.logError("ModuleThread", "getProductInfoResponse",
-					"Error occurred while adding product information.");
+		/* replays count their products in their own profile only */
+		if (profile != null) {
+			profile.getParse().record(System.nanoTime() - parseStarted);
+			profile.recordProducts(1);
+		} else {
+			module.getStats().recordProduct();
 		}
+
+		/* look up its GID, check its price and store it behind the module's back */
+		module.getIngestionQueue().submit(new IngestionQueue.ProductRecord(productId,
+				brand, model, parsed, keyValues, userAgent, dummy, profile, storedProducts), this);
+		submittedProducts++;
 	}
 
-	private void cleanup(Process process, StreamPipe pipe, Thread piper)
+	private void sendProductId(DataOutputStream out, JSONObject map,
+			String moduleProductId, int requestId, boolean windowed) throws IOException
 	{
-		pipe.stop();
-		piper.interrupt();
-		process.destroy();
-		try {
-			piper.join();
-		} catch (InterruptedException e) { }
+		if (module.getApi() == Module.Api.BINARY && protocolV2) {
+			out.writeByte(TAG_PRODUCT_ID);
+			writeString(out, moduleProductId);
+			if (windowed)
+				Varint.writeUnsigned(out, requestId);
+		} else if (module.getApi() == Module.Api.BINARY) {
+			writeString(out, moduleProductId);
+		} else if (module.getApi() == Module.Api.JSON) {
+			map.put("id", moduleProductId);
+			if (windowed)
+				map.put("request", requestId);
+			out.write(map.toJSONString().getBytes(UTF8));
+			out.write(NEWLINE.getBytes(UTF8));
+		}
+	}
+
+	/**
+	 * Returns the given request ID, or the oldest outstanding request if
+	 * it is null. Returns null if no such request is outstanding.
+	 */
+	private Integer findRequest(Integer requestId)
+	{
+		if (requestId != null)
+			return outstandingRequests.containsKey(requestId) ? requestId : null;
+
+		/* completed requests stay queued until their products are stored */
+		for (Integer issued : issuedRequests) {
+			if (outstandingRequests.containsKey(issued))
+				return issued;
+		}
+		return null;
+	}
+
+	/**
+	 * Advances the state past every request that has been completed and
+	 * whose product has been stored, up to the oldest request that is
+	 * still outstanding or whose product is still queued for storage.
+	 * Responses may arrive out of order, and products are stored behind
+	 * the module's back, so the state never skips a product that has not
+	 * been stored yet.
+	 */
+	private void advanceState()
+	{
+		long stored = storedProducts.get();
+		while (!issuedRequests.isEmpty()) {
+			Long submitted = completedRequests.get(issuedRequests.peekFirst());
+			if (submitted == null || submitted > stored)
+				break;
+			completedRequests.remove(issuedRequests.pollFirst());
+			state = ROW_ID_STATE + issuedRowIds.pollFirst();
+		}
+	}
+
+	private void completeRequest(DataInputStream in, JsonMessageReader json,
+			Integer requestId) throws IOException, ParseException
+	{
+		requestId = findRequest(requestId);
+		if (requestId == null) {
+			module.logError("ModuleThread", "completeRequest",
+					"Response does not match any outstanding request.");
+			stop();
+			return;
+		}
+		ProductID productId = outstandingRequests.remove(requestId);
+		getProductInfoResponse(module, productId, in, json);
+		completedRequests.put(requestId, submittedProducts);
+		processedCount++;
+		advanceState();
 	}
 
 	public void setRequestType(byte requestType) {
 		this.requestType = requestType;
 	}
 
+	/**
+	 * Serves the module only pages recorded by the {@link ResponseCache},
+	 * timing the run in the given profile.
+	 */
+	public void setReplay(ReplayHarness.Profile profile) {
+		this.profile = profile;
+	}
+
 	public void setRequestedProductIds(ResultsIterator<ProductID> productIds) {
 		this.requestedProductIds = productIds;
+		this.ranged = false;
+	}
+
+	/**
+	 * Requests the product IDs whose row IDs lie in the range
+	 * [<code>startRowId</code>, <code>endRowId</code>), in order of row ID.
+	 * The IDs are queried when the thread runs, starting after the last
+	 * product stored according to the state, so that resuming does not
+	 * scan the products already parsed.
+	 */
+	public void setRequestedRange(long startRowId, long endRowId) {
+		this.startRowId = startRowId;
+		this.endRowId = endRowId;
+		this.ranged = true;
+	}
+
+	/**
+	 * Queries the requested range of product IDs, resuming after the row
+	 * ID in the state. A state left by an older version, which counts the
+	 * products parsed, is still honored by skipping that many rows.
+	 */
+	private ResultsIterator<ProductID> queryProductIds()
+	{
+		long start = startRowId;
+		int skip = 0;
+		if (state.startsWith(ROW_ID_STATE)) {
+			try {
+				start = Math.max(start,
+						Long.parseLong(state.substring(ROW_ID_STATE.length())) + 1);
+			} catch (NumberFormatException e) {
+				module.logError("ModuleThread", "queryProductIds",
+						"Unable to parse state '" + state + "'; starting over.");
+			}
+		} else if (state.length() > 0) {
+			try {
+				skip = Integer.parseInt(state);
+			} catch (NumberFormatException e) {
+				module.logError("ModuleThread", "queryProductIds",
+						"Unable to parse state '" + state + "'; starting over.");
+			}
+		}
+
+		ResultsIterator<ProductID> productIds =
+				Core.getDatabase().getProductIds(module, start, endRowId);
+		if (productIds != null && skip > 0)
+			productIds.seekRelative(skip);
+		return productIds;
 	}
 
 	public void setState(String state) {
@@ -561,16 +1024,26 @@ public class ModuleThread implements Runnable, Interruptable
 		return this.state;
 	}
 
+	/**
+	 * Returns the number of product info responses handled so far.
+	 */
+	public int getProcessedCount() {
+		return processedCount;
+	}
+
+	/**
+	 * Returns true if every requested product ID has been handled.
+	 */
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Called by the module process while a read is blocked. Exits of the
+	 * process itself are detected by {@link ModuleProcess#interrupted()}.
+	 */
 	@Override
-	public boolean interrupted()
-	{
-		try {
-			process.exitValue();
-			if (!alive)
-				module.logInfo("ModuleThread", "interrupted",
-						"Local process of module exited, interrupting thread...");
-			stop();
-		} catch (IllegalThreadStateException e) { }
+	public boolean interrupted() {
 		return !alive;
 	}
 
@@ -581,38 +1054,51 @@ public class ModuleThread implements Runnable, Interruptable
 			if (requestType != Core.PRODUCT_INFO_REQUEST) {
 				module.logError("ModuleThread", "run", "requestType not set.");
 				return;
+			} else if (ranged) {
+				requestedProductIds = queryProductIds();
+				if (requestedProductIds == null) {
+					module.logError("ModuleThread", "run", "Unable to query product IDs.");
+					return;
+				}
 			} else if (requestedProductIds == null) {
 				module.logError("ModuleThread", "run", "requestedProductIds not set.");
 				return;
 			}
 		}
 
-		process = Core.getSandbox().run(module);
-		DataOutputStream out = new DataOutputStream(process.getOutputStream());
-		InputStream underlyingStream = new InterruptableInputStream(
-				process.getInputStream(), this, INPUT_SLEEP_DURATION);
-		DataInputStream in = new DataInputStream(underlyingStream);
-
-		/* TODO: limit the amount of data we read */
-		InterruptableInputStream error = new InterruptableInputStream(
-				process.getErrorStream(), this, ERROR_SLEEP_DURATION);
-		StreamPipe pipe = new StreamPipe(error, module.getLogStream());
-		Thread piper = new Thread(pipe);
-		piper.start();
+		ModuleProcess process = ModuleProcessPool.acquire(module);
+		if (process == null) {
+			module.logError("ModuleThread", "run", "Unable to start module process.");
+			return;
+		}
+		process.setOwner(this);
+		worker = process;
+		validators = process.hasCapability(ModuleProcess.CAPABILITY_NOT_MODIFIED)
+				? process.getPageValidators() : null;
+		protocolV2 = process.isProtocolV2();
+		keyDictionary = process.getKeyDictionary();
+		if (!alive)
+			process.getUnderlyingInputStream().interrupt();
+		DataOutputStream out = process.getOutputStream();
+		DataInputStream in = process.getInputStream();
 
 		int position = 0;
-		boolean responded = true;
+		boolean exhausted = false;
+		boolean finished = false;
+		boolean windowed = process.isWindowed();
+		int window = windowed ? Math.max(1, module.getWindowSize()) : 1;
+		issuedRequests.clear();
+		issuedRowIds.clear();
+		outstandingRequests.clear();
+		completedRequests.clear();
 		ProductID requestedProductId = null;
-		long prevRequest = System.nanoTime() - REQUEST_PERIOD;
 		try {
 			JSONObject map = null;
 			switch (module.getApi()) {
 			case BINARY:
 				out.writeByte(requestType);
-				if (requestType == Core.PRODUCT_LIST_REQUEST) {
-					out.writeShort(state.length());
-					out.write(state.getBytes(UTF8));
-				}
+				if (requestType == Core.PRODUCT_LIST_REQUEST)
+					writeString(out, state);
 				break;
 			case JSON:
 				map = new JSONObject();
@@ -626,58 +1112,84 @@ public class ModuleThread implements Runnable, Interruptable
 				}
 			}
 
-			if (requestType == Core.PRODUCT_INFO_REQUEST && state.length() > 0) {
-				position = Integer.parseInt(state);
-				requestedProductIds.seekRelative(position);
-			}
-
-			while (alive)
+			while (alive && !finished)
 			{
-				/* indicate the product ID we are requesting */
-				if (requestType == Core.PRODUCT_INFO_REQUEST && responded) {
-					if (requestedProductIds.hasNext()) {
+				/* indicate the product IDs we are requesting, up to the window size */
+				if (requestType == Core.PRODUCT_INFO_REQUEST && !exhausted) {
+					while (outstandingRequests.size() < window && requestedProductIds.hasNext()) {
 						requestedProductId = requestedProductIds.next();
-						String moduleProductId = requestedProductId.getModuleProductId();
-						if (module.getApi() == Module.Api.BINARY) {
-							out.writeShort(moduleProductId.length());
-							out.write(moduleProductId.getBytes(UTF8));
-						} else if (module.getApi() == Module.Api.JSON) {
-							map.put("id", moduleProductId);
-							out.write(map.toJSONString().getBytes(UTF8));
-							out.write(NEWLINE.getBytes(UTF8));
-						}
-					} else {
-						if (module.getApi() == Module.Api.BINARY)
+						sendProductId(out, map, requestedProductId.getModuleProductId(),
+								position, windowed);
+						issuedRequests.addLast(position);
+						issuedRowIds.addLast(requestedProductId.getRowId());
+						outstandingRequests.put(position, requestedProductId);
+						position++;
+					}
+
+					if (outstandingRequests.isEmpty()) {
+						exhausted = true;
+						completed = true;
+						if (module.getApi() == Module.Api.BINARY && protocolV2)
+							out.writeByte(TAG_END_OF_IDS);
+						else if (module.getApi() == Module.Api.BINARY)
 							out.writeShort(0);
 						else if (module.getApi() == Module.Api.JSON) {
 							out.write(new JSONObject().toJSONString().getBytes(UTF8));
 							out.write(NEWLINE.getBytes(UTF8));
 						}
-						break;
+
+						/* a persistent module acknowledges the end of the request */
+						if (!process.isPersistent())
+							break;
 					}
-					responded = false;
 				}
 				out.flush();
 
 				/* read input from the module */
 				if (module.getApi() == Module.Api.JSON) {
-					Object parsed = null;
+					JsonMessageReader response = process.getMessageReader();
 					try {
-						parsed = parser.parse(in);
+						if (!response.next())
+							throw new IOException("Module closed its output.");
 					} catch (ParseException e) {
 						module.logError("ModuleThread", "run", "Error during JSON parsing.", e);
 						stop();
 						break;
 					}
-					if (!(parsed instanceof JSONObject)) {
-						module.logError("ModuleThread", "run", "Expected JSON map.");
+
+					String type = response.getType();
+					if (type == null) {
+						module.logError("ModuleThread", "run", "Expected JSON map with a type.");
 						stop();
 						break;
-					}
+					} else if (type.equals("batch_get")) {
+						if (module.isRemote()) {
+							module.logError("ModuleThread", "run",
+									"Remote modules cannot make HTTP requests.");
+							stop();
+							break;
+						}
+
+						Object urls = response.get("urls");
+						if (!(urls instanceof JSONArray) || ((JSONArray) urls).isEmpty()
+								|| ((JSONArray) urls).size() > MAX_BATCH_URLS) {
+							module.logError("ModuleThread", "run",
+									"Expected JSON array of URLs.");
+							stop();
+							break;
+						}
 
-					JSONObject response = (JSONObject) parsed;
-					String type = response.get("type").toString().trim().toLowerCase();
-					if (type.equals("get") || type.equals("post")) {
+						JSONArray array = (JSONArray) urls;
+						String[] urlStrings = new String[array.size()];
+						for (int i = 0; i < array.size(); i++)
+							urlStrings[i] = array.get(i).toString();
+						String userAgent = response.getString("user_agent");
+						if (userAgent != null) {
+							this.userAgent = userAgent;
+							module.logUserAgentChange(this.userAgent);
+						}
+						httpBatchGetRequest(urlStrings, out, module.blockedDownload());
+					} else if (type.equals("get") || type.equals("post")) {
 						if (module.isRemote()) {
 							module.logError("ModuleThread", "run",
 									"Remote modules cannot make HTTP requests.");
@@ -685,26 +1197,36 @@ public class ModuleThread implements Runnable, Interruptable
 							break;
 						}
 
-						String url = response.get("url").toString();
-						Object userAgent = response.get("user_agent");
+						String url = response.getString("url");
+						if (url == null) {
+							module.logError("ModuleThread", "run", "Expected URL in HTTP request.");
+							stop();
+							break;
+						}
+						String userAgent = response.getString("user_agent");
 						if (userAgent != null)
-							this.userAgent = userAgent.toString();
+							this.userAgent = userAgent;
 						module.logUserAgentChange(this.userAgent);
 						if (type.equals("post")) {
-							String post = response.get("post").toString();
-							httpPostRequest(url, post.getBytes(UTF8), out, module.blockedDownload(), prevRequest);
+							String post = response.getString("post");
+							if (post == null)
+								post = "";
+							httpPostRequest(url, post.getBytes(UTF8), out, module.blockedDownload());
 						} else {
-							httpGetRequest(url, out, module.blockedDownload(), prevRequest);
+							httpGetRequest(url, out, module.blockedDownload());
 						}
 					} else if (type.equals("response")) {
 						if (requestType == Core.PRODUCT_LIST_REQUEST)
 							getProductListResponse(module, in, response);
 						else if (requestType == Core.PRODUCT_INFO_REQUEST) {
-							getProductInfoResponse(module, requestedProductId, in, response);
-							state = String.valueOf(position);
-							position++;
+							Number requestId = response.getNumber("request");
+							if (requestId != null)
+								completeRequest(in, response, requestId.intValue());
+							else
+								completeRequest(in, response, null);
 						}
-						responded = true;
+					} else if (type.equals("end")) {
+						finished = true;
 					}
 				} else {
 					switch (in.readUnsignedByte()) {
@@ -714,10 +1236,7 @@ public class ModuleThread implements Runnable, Interruptable
 									"Remote modules cannot make HTTP requests.");
 							stop();
 						} else {
-							int length = in.readUnsignedShort();
-							byte[] data = new byte[length];
-							in.readFully(data);
-							this.userAgent = new String(data, UTF8);
+							this.userAgent = readString(in, UTF8);
 							module.logUserAgentChange(this.userAgent);
 						}
 						break;
@@ -728,12 +1247,29 @@ public class ModuleThread implements Runnable, Interruptable
 									"Remote modules cannot make HTTP requests.");
 							stop();
 						} else {
-							int length = in.readUnsignedShort();
-							byte[] data = new byte[length];
-							in.readFully(data);
-							String url = new String(data, ASCII);
-							httpGetRequest(url, out, module.blockedDownload(), prevRequest);
-							prevRequest = System.nanoTime();
+							String url = readString(in, ASCII);
+							httpGetRequest(url, out, module.blockedDownload());
+						}
+						break;
+
+					case MODULE_HTTP_BATCH_GET_REQUEST:
+						if (module.isRemote()) {
+							module.logError("ModuleThread", "run",
+									"Remote modules cannot make HTTP requests.");
+							stop();
+						} else {
+							int count = readLength(in, MAX_USHORT);
+							if (count == 0 || count > MAX_BATCH_URLS) {
+								module.logError("ModuleThread", "run",
+										"Invalid batch request URL count.");
+								stop();
+								break;
+							}
+
+							String[] urls = new String[count];
+							for (int i = 0; i < count; i++)
+								urls[i] = readString(in, ASCII);
+							httpBatchGetRequest(urls, out, module.blockedDownload());
 						}
 						break;
 
@@ -743,30 +1279,55 @@ public class ModuleThread implements Runnable, Interruptable
 									"Remote modules cannot make HTTP requests.");
 							stop();
 						} else {
-							int length = in.readUnsignedShort();
-							byte[] data = new byte[length];
-							in.readFully(data);
-							String url = new String(data, ASCII);
+							String url = readString(in, ASCII);
 
 							/* read the POST data */
-							length = in.readInt();
-							data = new byte[length];
+							int length = protocolV2
+									? Varint.readUnsigned(in, MAX_POST_SIZE) : in.readInt();
+							byte[] data = new byte[length];
 							in.readFully(data);
 						
-							httpPostRequest(url, data, out, module.blockedDownload(), prevRequest);
-							prevRequest = System.nanoTime();
+							httpPostRequest(url, data, out, module.blockedDownload());
 						}
 						break;
 
 					case MODULE_RESPONSE:
 						if (requestType == Core.PRODUCT_LIST_REQUEST)
 							getProductListResponse(module, in, null);
-						else if (requestType == Core.PRODUCT_INFO_REQUEST) {
-							getProductInfoResponse(module, requestedProductId, in, null);
-							state = String.valueOf(position);
-							position++;
+						else if (requestType == Core.PRODUCT_INFO_REQUEST)
+							completeRequest(in, null, null);
+						break;
+
+					case MODULE_WINDOWED_RESPONSE:
+						if (requestType != Core.PRODUCT_INFO_REQUEST || !windowed) {
+							module.logError("ModuleThread", "run",
+									"Unexpected windowed response.");
+							stop();
+						} else {
+							completeRequest(in, null, Varint.readUnsigned(in, Integer.MAX_VALUE));
+						}
+						break;
+
+					case MODULE_MULTI_RESPONSE:
+						if (!protocolV2 || requestType != Core.PRODUCT_INFO_REQUEST) {
+							module.logError("ModuleThread", "run",
+									"Unexpected multi-record response.");
+							stop();
+						} else {
+							/* each record answers a request, as a response would */
+							int records = Varint.readUnsigned(in, MAX_RECORDS);
+							for (int i = 0; i < records && alive; i++) {
+								if (windowed)
+									completeRequest(in, null,
+											Varint.readUnsigned(in, Integer.MAX_VALUE));
+								else
+									completeRequest(in, null, null);
+							}
 						}
-						responded = true;
+						break;
+
+					case MODULE_END_OF_REQUEST:
+						finished = true;
 						break;
 
 					default:
@@ -776,19 +1337,33 @@ public class ModuleThread implements Runnable, Interruptable
 					}
 				}
 			}
-			String productIdString = "";
-			if (requestedProductId != null)
-				productIdString = ", module_product_id: " + requestedProductId.getModuleProductId();
-			module.logInfo("ModuleThread", "run",
-					"Module exited. (state: '" + state + "'" + productIdString + ")");
+			if (module.isLogging(AsyncLog.Level.INFO)) {
+				String productIdString = "";
+				if (requestedProductId != null)
+					productIdString = ", module_product_id: " + requestedProductId.getModuleProductId();
+				module.logInfo("ModuleThread", "run",
+						"Module exited. (state: '" + state + "'" + productIdString + ")");
+			}
 		} catch (InterruptedStreamException e) {
-			/* we have been told to die, so do so gracefully */
-			String productIdString = "";
-			if (requestedProductId != null)
-				productIdString = ", module_product_id: " + requestedProductId.getModuleProductId();
-			module.logInfo("ModuleThread", "run",
-					"Thread interrupted during IO, cleaning up module... (state: '"
-							+ state + "'" + productIdString + ")");
+			/* we have been told to die, or the module has finished, so do so
+			 * gracefully; a persistent module only exits by itself if it fails */
+			if (alive && process.isPersistent() && !process.isAlive()) {
+				String productIdString = "";
+				if (requestedProductId != null)
+					productIdString = ", module_product_id: " + requestedProductId.getModuleProductId();
+				module.logError("ModuleThread", "run",
+						"Persistent module exited unexpectedly. (state: '"
+								+ state + "'" + productIdString + ")");
+			} else if (module.isLogging(AsyncLog.Level.INFO)) {
+				String productIdString = "";
+				if (requestedProductId != null)
+					productIdString = ", module_product_id: " + requestedProductId.getModuleProductId();
+				module.logInfo("ModuleThread", "run",
+						"Thread interrupted during IO, cleaning up module... (state: '"
+								+ state + "'" + productIdString + ")");
+			}
+		} catch (ParseException e) {
+			module.logError("ModuleThread", "run", "Error during JSON parsing.", e);
 		} catch (IOException e) {
 			/* we cannot communicate with the module, so just kill it */
 			String productIdString = "";
@@ -799,28 +1374,35 @@ public class ModuleThread implements Runnable, Interruptable
 							+ state + "'" + productIdString + ") IOException: " + e.getMessage());
 		}
 
-		/* destroy the process and all related threads */
-		cleanup(process, pipe, piper);
+		/* return the process to the pool, or destroy it */
+		worker = null;
+		ModuleProcessPool.release(process, finished && alive);
+
+		/* finish once the parsed products are stored */
+		module.getIngestionQueue().flush();
+		advanceState();
 	}
 }
 
-class CountingInputStream extends InputStream
+class FetchedPage
 {
-	private InputStream stream;
-	private int count = 0;
-
-	public CountingInputStream(InputStream stream) {
-		this.stream = stream;
-	}
-
-	@Override
-	public int read() throws IOException {
-		count++;
-		return stream.read();
+	final int index;
+	final String url;
+	final HttpFetcher.Response response;
+	final byte[] data;
+	final int status;
+
+	public FetchedPage(int index, String url,
+			HttpFetcher.Response response, byte[] data, int status)
+	{
+		this.index = index;
+		this.url = url;
+		this.response = response;
+		this.data = data;
+		this.status = status;
 	}
 
-	public int bytesRead() {
-		return count;
+	public String getContentType() {
+		return (response == null) ? null : response.getContentType();
 	}
 }
-
@@ -0,0 +1,142 @@
+package transparent.core;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Reads the CPU time and resident memory of external processes from
+ * <code>/proc</code>. On systems without it, or for processes whose ID
+ * cannot be found, usage is reported as unknown (-1).
+ */
+class ProcessUsage
+{
+	/* the units of /proc, read from the system once; where getconf cannot
+	 * tell, USER_HZ = 100 and 4 KB pages, the usual Linux values, are
+	 * assumed, and the figures are wrong on systems that differ */
+	private static final long CLOCK_TICK =
+			1000000000L / getConfiguration("CLK_TCK", 100); /* in nanoseconds */
+	private static final long PAGE_SIZE = getConfiguration("PAGESIZE", 4096); /* in bytes */
+
+	/* the fields of /proc/[pid]/stat after the command name */
+	private static final int UTIME_FIELD = 11;
+	private static final int STIME_FIELD = 12;
+
+	private ProcessUsage() { }
+
+	/**
+	 * Returns the operating system's ID of the given process, or -1 if it
+	 * is not known.
+	 */
+	public static long getPid(Process process)
+	{
+		try {
+			/* available since Java 9 */
+			Method pid = Process.class.getMethod("pid");
+			return ((Number) pid.invoke(process)).longValue();
+		} catch (Exception e) { }
+
+		try {
+			Field pid = process.getClass().getDeclaredField("pid");
+			pid.setAccessible(true);
+			return pid.getInt(process);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the CPU time, in nanoseconds, used so far by the given
+	 * process, or -1 if it is not known.
+	 */
+	public static long getCpuTime(long pid)
+	{
+		String stat = readLine("/proc/" + pid + "/stat");
+		if (stat == null)
+			return -1;
+
+		/* the command name may contain spaces, so skip past its parenthesis */
+		int end = stat.lastIndexOf(')');
+		if (end == -1)
+			return -1;
+		String[] fields = stat.substring(end + 2).split(" ");
+		if (fields.length <= STIME_FIELD)
+			return -1;
+		try {
+			long ticks = Long.parseLong(fields[UTIME_FIELD])
+					+ Long.parseLong(fields[STIME_FIELD]);
+			return ticks * CLOCK_TICK;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the resident set size, in bytes, of the given process, or -1
+	 * if it is not known.
+	 */
+	public static long getResidentSize(long pid)
+	{
+		String statm = readLine("/proc/" + pid + "/statm");
+		if (statm == null)
+			return -1;
+		String[] fields = statm.split(" ");
+		if (fields.length < 2)
+			return -1;
+		try {
+			return Long.parseLong(fields[1]) * PAGE_SIZE;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the value of the given system configuration variable, as
+	 * printed by <code>getconf</code>, or the given default if it cannot
+	 * be read.
+	 */
+	private static long getConfiguration(String name, long defaultValue)
+	{
+		BufferedReader reader = null;
+		try {
+			Process process = new ProcessBuilder("getconf", name).start();
+			reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			String line = reader.readLine();
+			if (process.waitFor() != 0 || line == null)
+				return defaultValue;
+			long value = Long.parseLong(line.trim());
+			return (value > 0) ? value : defaultValue;
+		} catch (IOException e) {
+			return defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return defaultValue;
+		} finally {
+			try {
+				if (reader != null)
+					reader.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	private static String readLine(String path)
+	{
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(path));
+			return reader.readLine();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				if (reader != null)
+					reader.close();
+			} catch (IOException e) { }
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package transparent.core;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import transparent.core.database.Database;
+
+/**
+ * Limits the rate of outbound HTTP requests to each host, shared by every
+ * thread in the core. Each host is limited by the generic cell rate
+ * algorithm: a request may start once the host's theoretical arrival time
+ * is within the burst tolerance of the current time. Reservations are made
+ * with a single compare-and-set, so no locks are held while waiting.
+ * <p>
+ * The rate of each host adapts to how the host responds. A 429 or 503
+ * response, or a reply slower than {@link #SLOW_RESPONSE}, halves the
+ * rate; every other response adds {@link #RATE_INCREASE} requests per
+ * second back, up to the configured rate.
+ */
+public class RateLimiter
+{
+	private static final String DEFAULT_HOST = "default";
+	private static final String RATE_LIMIT_COUNT = "ratelimits.count";
+
+	private static final double DEFAULT_RATE = 1.0; /* in requests per second */
+	private static final int DEFAULT_BURST = 2;
+	private static final double MIN_RATE = 0.05; /* in requests per second */
+	private static final double RATE_DECREASE = 0.5; /* multiplier */
+	private static final double RATE_INCREASE = 0.05; /* in requests per second */
+	private static final long SLOW_RESPONSE = 10000000000L; /* in nanoseconds */
+	private static final long CHECK_PERIOD = 200000000; /* in nanoseconds */
+	private static final long NANOS_PER_SECOND = 1000000000;
+
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private static final ConcurrentHashMap<String, Limit> limits =
+			new ConcurrentHashMap<String, Limit>();
+	private static final ConcurrentHashMap<String, Limit> configured =
+			new ConcurrentHashMap<String, Limit>();
+	private static volatile Limit defaultLimit = new Limit(DEFAULT_RATE, DEFAULT_BURST);
+
+	private static Limit getLimit(String host)
+	{
+		Limit limit = limits.get(host);
+		if (limit == null) {
+			Limit config = configured.get(host);
+			if (config == null)
+				config = defaultLimit;
+			limit = new Limit(config.rate, config.burst);
+			Limit old = limits.putIfAbsent(host, limit);
+			if (old != null)
+				limit = old;
+		}
+		return limit;
+	}
+
+	/**
+	 * Waits until a request to the host of the given URL may start. Returns
+	 * false if the given {@link Interruptable} (which may be null) was
+	 * interrupted while waiting.
+	 */
+	public static boolean acquire(URL url, Interruptable interruptable)
+	{
+		long delay = getLimit(url.getHost()).reserve();
+		long deadline = System.nanoTime() + delay;
+		try {
+			while (delay > 0) {
+				if (interruptable != null && interruptable.interrupted())
+					return false;
+				long sleep = Math.min(delay, CHECK_PERIOD);
+				Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+				delay = deadline - System.nanoTime();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Adapts the rate of the host of the given URL to the response
+	 * received on the given connection, which was opened at time
+	 * <code>started</code> (from {@link System#nanoTime()}). Returns the
+	 * HTTP status code, or -1 if the connection is not HTTP.
+	 */
+	public static int complete(URL url, URLConnection connection, long started)
+			throws IOException
+	{
+		int status = -1;
+		if (connection instanceof HttpURLConnection)
+			status = ((HttpURLConnection) connection).getResponseCode();
+		else
+			connection.connect();
+
+		Limit limit = getLimit(url.getHost());
+		if (status == HTTP_TOO_MANY_REQUESTS
+				|| status == HttpURLConnection.HTTP_UNAVAILABLE
+				|| System.nanoTime() - started > SLOW_RESPONSE)
+			limit.decrease();
+		else
+			limit.increase();
+		return status;
+	}
+
+	/**
+	 * Sets the configured rate and burst of the given host, or of all
+	 * hosts without their own configuration if <code>host</code> is
+	 * "default".
+	 */
+	public static void configure(String host, double rate, int burst)
+	{
+		Limit config = new Limit(rate, burst);
+		if (host.equals(DEFAULT_HOST)) {
+			defaultLimit = config;
+			for (Map.Entry<String, Limit> entry : limits.entrySet()) {
+				if (!configured.containsKey(entry.getKey()))
+					entry.getValue().configure(rate, burst);
+			}
+		} else {
+			configured.put(host, config);
+			getLimit(host).configure(rate, burst);
+		}
+	}
+
+	public static Map<String, Limit> getLimits() {
+		return limits;
+	}
+
+	public static Limit getDefaultLimit() {
+		return defaultLimit;
+	}
+
+	public static boolean load(Database database)
+	{
+		String countString = database.getMetadata(RATE_LIMIT_COUNT);
+		if (countString == null)
+			return true;
+
+		try {
+			int count = Integer.parseInt(countString);
+			for (int i = 0; i < count; i++) {
+				String[] tokens = database.getMetadata(
+						"ratelimits." + i).split(" ");
+				configure(tokens[0], Double.parseDouble(tokens[1]),
+						Integer.parseInt(tokens[2]));
+			}
+			return true;
+		} catch (RuntimeException e) {
+			Console.printError("RateLimiter", "load", "Unable to parse rate limits.", e);
+			return false;
+		}
+	}
+
+	public static boolean save(Database database)
+	{
+		boolean success = database.setMetadata("ratelimits.0", DEFAULT_HOST
+				+ " " + defaultLimit.rate + " " + defaultLimit.burst);
+		int index = 1;
+		for (Map.Entry<String, Limit> entry : configured.entrySet()) {
+			Limit config = entry.getValue();
+			success &= database.setMetadata("ratelimits." + index, entry.getKey()
+					+ " " + config.rate + " " + config.burst);
+			index++;
+		}
+		return success && database.setMetadata(RATE_LIMIT_COUNT, Integer.toString(index));
+	}
+
+	public static class Limit
+	{
+		private volatile double rate; /* configured, in requests per second */
+		private volatile int burst;
+
+		/* the current interval between requests, in nanoseconds */
+		private final AtomicLong interval;
+
+		/* the theoretical arrival time of the next request, in nanoseconds */
+		private final AtomicLong arrival = new AtomicLong(System.nanoTime());
+
+		public Limit(double rate, int burst) {
+			this.rate = rate;
+			this.burst = burst;
+			this.interval = new AtomicLong(toInterval(rate));
+		}
+
+		private static long toInterval(double rate) {
+			return (long) (NANOS_PER_SECOND / rate);
+		}
+
+		/**
+		 * Reserves the next request slot, and returns the number of
+		 * nanoseconds until it begins.
+		 */
+		long reserve()
+		{
+			while (true) {
+				long now = System.nanoTime();
+				long current = arrival.get();
+				long period = interval.get();
+				long start = Math.max(current, now);
+				if (arrival.compareAndSet(current, start + period))
+					return start - (burst - 1) * period - now;
+			}
+		}
+
+		void decrease()
+		{
+			long max = toInterval(MIN_RATE);
+			while (true) {
+				long current = interval.get();
+				long next = Math.min(max, (long) (current / RATE_DECREASE));
+				if (current == next || interval.compareAndSet(current, next))
+					return;
+			}
+		}
+
+		void increase()
+		{
+			long min = toInterval(rate);
+			while (true) {
+				long current = interval.get();
+				double currentRate = (double) NANOS_PER_SECOND / current;
+				long next = Math.max(min, toInterval(currentRate + RATE_INCREASE));
+				if (current == next || interval.compareAndSet(current, next))
+					return;
+			}
+		}
+
+		void configure(double rate, int burst) {
+			this.rate = rate;
+			this.burst = burst;
+			this.interval.set(toInterval(rate));
+		}
+
+		public double getRate() {
+			return rate;
+		}
+
+		public int getBurst() {
+			return burst;
+		}
+
+		/**
+		 * Returns the current, adapted rate in requests per second.
+		 */
+		public double getCurrentRate() {
+			return (double) NANOS_PER_SECOND / interval.get();
+		}
+	}
+}
@@ -0,0 +1,699 @@
+package transparent.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import transparent.core.PriceHistory.PriceRecord;
+import transparent.core.database.Database;
+import transparent.core.database.Database.ResultsIterator;
+
+/**
+ * Chooses which products of a module to fetch next, so that product info
+ * requests are spent where prices actually change. A product is due once
+ * the number of price changes it is expected to have missed since it was
+ * last fetched, which is its observed rate of change, from its
+ * {@link PriceHistory}, times the time since it was fetched, reaches
+ * {@link #MIN_SCORE}. The rate is weighted by demand for the product, from
+ * views of the product and price subscriptions, which decays over time.
+ * Products are kept in the order they become due, so that choosing them
+ * does not look at the products that are not. Products that were never
+ * fetched come first.
+ * <p>
+ * The products of each module are loaded from the database once, and
+ * products added later are found by row ID. When products were fetched,
+ * and how often their prices change, is kept in <code>recrawl/</code>,
+ * so that it survives restarts. Each file is a log that changes are
+ * appended to, where later lines replace earlier ones, and it is
+ * rewritten once it grows to {@link #COMPACT_RATIO} times its live lines.
+ */
+public class RecrawlScheduler
+{
+	private static final String RECRAWL_PATH = "recrawl/";
+	private static final String DEMAND_FILE = RECRAWL_PATH + "demand";
+
+	private static final String RECRAWL_BUDGET = "recrawl.budget";
+	private static final String RECRAWL_LIST_PERIOD = "recrawl.list_period";
+
+	private static final int DEFAULT_BUDGET = 1000; /* in products per refresh */
+	private static final long DEFAULT_LIST_PERIOD = 86400000; /* 1 day, in milliseconds */
+	private static final long PRIOR_PERIOD = 604800000; /* 1 week, in milliseconds */
+	private static final long DEMAND_HALF_LIFE = 604800000; /* 1 week, in milliseconds */
+	private static final double MIN_SCORE = 0.1; /* in expected missed price changes */
+	private static final double MIN_DEMAND = 0.01;
+	private static final int COMPACT_RATIO = 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* the waiting time of a refresh that found nothing worth fetching */
+	public static final long IDLE_DELAY = 600000; /* 10 minutes, in milliseconds */
+
+	/* the demand added by a view of a product, and by a price subscription */
+	public static final double VIEW_DEMAND = 1.0;
+	public static final double SUBSCRIPTION_DEMAND = 10.0;
+
+	private static volatile int budget = DEFAULT_BUDGET;
+	private static volatile long listPeriod = DEFAULT_LIST_PERIOD;
+
+	private static final ConcurrentHashMap<Long, Schedule> schedules =
+			new ConcurrentHashMap<Long, Schedule>();
+
+	/* the demand for each product group, keyed by GID */
+	private static final ConcurrentHashMap<Long, Demand> demand =
+			new ConcurrentHashMap<Long, Demand>();
+
+	/* the GIDs whose demand changed since it was last written */
+	private static final Set<Long> changedDemand =
+			Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+	/* the number of lines in the demand file, or -1 if it must be rewritten */
+	private static int demandLines = 0;
+
+	private static final Comparator<Product> BY_DUE = new Comparator<Product>() {
+		@Override
+		public int compare(Product first, Product second) {
+			if (first.due != second.due)
+				return (first.due < second.due) ? -1 : 1;
+			if (first.rowId != second.rowId)
+				return (first.rowId < second.rowId) ? -1 : 1;
+			return 0;
+		}
+	};
+
+	/**
+	 * Returns the number of products each refresh of a module requests.
+	 */
+	public static int getBudget() {
+		return budget;
+	}
+
+	public static void setBudget(int newBudget) {
+		budget = newBudget;
+	}
+
+	/**
+	 * Returns the time, in milliseconds, between product list parses of a
+	 * module that is being refreshed.
+	 */
+	public static long getListPeriod() {
+		return listPeriod;
+	}
+
+	public static void setListPeriod(long period) {
+		listPeriod = period;
+	}
+
+	/**
+	 * Returns up to <code>count</code> product IDs of the given module
+	 * that are due, longest due first. The chosen products count as
+	 * fetched from now on, so that they are not chosen again while they
+	 * are being fetched, unless this is a dummy run, which leaves the
+	 * schedule as it is.
+	 */
+	public static ResultsIterator<ProductID> select(
+			Module module, int count, boolean dummy)
+	{
+		Schedule schedule = getSchedule(module);
+		synchronized (schedule) {
+			loadNewProducts(module, schedule);
+
+			long now = System.currentTimeMillis();
+			ArrayList<Product> chosen = new ArrayList<Product>();
+			for (Product product : schedule.queue) {
+				if (chosen.size() >= count || product.due > now)
+					break;
+				chosen.add(product);
+			}
+
+			ArrayList<ProductID> productIds = new ArrayList<ProductID>(chosen.size());
+			for (Product product : chosen) {
+				productIds.add(new ProductID(product.rowId, product.moduleProductId));
+				if (dummy)
+					continue;
+				schedule.queue.remove(product);
+				product.lastFetched = now;
+				product.due = due(product, now);
+				schedule.queue.add(product);
+				schedule.changed.add(product);
+			}
+			return new ProductIdList(productIds);
+		}
+	}
+
+	/**
+	 * Records that the given product was fetched, along with the price
+	 * history of the product from this module, if it has a price.
+	 */
+	public static void recordFetch(Module module, ProductID productId,
+			long gid, List<PriceRecord> history)
+	{
+		Schedule schedule = getSchedule(module);
+		synchronized (schedule) {
+			long now = System.currentTimeMillis();
+			Product product = schedule.products.get(productId.getRowId());
+			if (product == null) {
+				/* found again by row ID later, so the row ID bound stays */
+				product = new Product(productId.getRowId(), productId.getModuleProductId());
+				schedule.products.put(product.rowId, product);
+			} else {
+				schedule.queue.remove(product);
+				removeGid(schedule, product);
+			}
+			product.gid = gid;
+			product.lastFetched = now;
+			if (history != null && !history.isEmpty())
+				product.rate = estimateRate(history);
+			product.due = due(product, now);
+			schedule.queue.add(product);
+			addGid(schedule, product);
+			schedule.changed.add(product);
+		}
+	}
+
+	/**
+	 * Adds the given amount of demand for the product group with the
+	 * given GID, which the caller has checked exists, and moves the
+	 * products of the group up by it.
+	 */
+	public static void recordDemand(long gid, double amount)
+	{
+		long now = System.currentTimeMillis();
+		Demand current = demand.get(gid);
+		if (current == null) {
+			Demand created = new Demand();
+			current = demand.putIfAbsent(gid, created);
+			if (current == null)
+				current = created;
+		}
+		current.add(amount, now);
+		changedDemand.add(gid);
+
+		for (Schedule schedule : schedules.values()) {
+			synchronized (schedule) {
+				List<Product> products = schedule.byGid.get(gid);
+				if (products == null)
+					continue;
+				for (Product product : products) {
+					schedule.queue.remove(product);
+					product.due = due(product, now);
+					schedule.queue.add(product);
+				}
+			}
+		}
+	}
+
+	public static void recordListParse(Module module)
+	{
+		Schedule schedule = getSchedule(module);
+		synchronized (schedule) {
+			schedule.lastListParse = System.currentTimeMillis();
+			schedule.listParseChanged = true;
+		}
+	}
+
+	/**
+	 * Returns true if the product list of the given module has not been
+	 * parsed for longer than the list period.
+	 */
+	public static boolean isListParseDue(Module module)
+	{
+		Schedule schedule = getSchedule(module);
+		synchronized (schedule) {
+			return System.currentTimeMillis() - schedule.lastListParse >= listPeriod;
+		}
+	}
+
+	/**
+	 * Returns the number of products of the given module known to the
+	 * scheduler.
+	 */
+	public static int getProductCount(Module module)
+	{
+		Schedule schedule = getSchedule(module);
+		synchronized (schedule) {
+			return schedule.products.size();
+		}
+	}
+
+	/**
+	 * The time at which a product is expected to have missed
+	 * {@link #MIN_SCORE} price changes, at its rate weighted by the
+	 * current demand for it.
+	 */
+	private static long due(Product product, long now)
+	{
+		if (product.lastFetched == 0)
+			return 0;
+		double wait = MIN_SCORE / (product.rate * (1.0 + getDemand(product.gid, now)));
+		return product.lastFetched + (long) Math.min(wait, Long.MAX_VALUE - product.lastFetched);
+	}
+
+	private static void addGid(Schedule schedule, Product product)
+	{
+		if (product.gid == 0)
+			return;
+		List<Product> products = schedule.byGid.get(product.gid);
+		if (products == null) {
+			products = new ArrayList<Product>(1);
+			schedule.byGid.put(product.gid, products);
+		}
+		products.add(product);
+	}
+
+	private static void removeGid(Schedule schedule, Product product)
+	{
+		List<Product> products = schedule.byGid.get(product.gid);
+		if (products == null)
+			return;
+		products.remove(product);
+		if (products.isEmpty())
+			schedule.byGid.remove(product.gid);
+	}
+
+	/**
+	 * Estimates the rate, in changes per millisecond, at which the price
+	 * in the given history changes. A product is assumed to change once
+	 * per {@link #PRIOR_PERIOD} until its history says otherwise.
+	 */
+	private static double estimateRate(List<PriceRecord> history)
+	{
+		int changes = 0;
+		long previous = history.get(0).getPrice();
+		for (int i = 1; i < history.size(); i++) {
+			long price = history.get(i).getPrice();
+			if (price != previous)
+				changes++;
+			previous = price;
+		}
+		long span = history.get(history.size() - 1).getTime() - history.get(0).getTime();
+		return (changes + 1.0) / (Math.max(span, 0) + PRIOR_PERIOD);
+	}
+
+	private static double getDemand(long gid, long now)
+	{
+		if (gid == 0)
+			return 0.0;
+		Demand current = demand.get(gid);
+		if (current == null)
+			return 0.0;
+		return current.get(now);
+	}
+
+	private static double decay(long elapsed) {
+		return Math.pow(0.5, elapsed / (double) DEMAND_HALF_LIFE);
+	}
+
+	private static Schedule getSchedule(Module module)
+	{
+		Schedule schedule = schedules.get(module.getId());
+		if (schedule != null)
+			return schedule;
+
+		/* hold the lock while loading, so no one sees the schedule empty */
+		Schedule created = new Schedule(module.getId());
+		synchronized (created) {
+			schedule = schedules.putIfAbsent(module.getId(), created);
+			if (schedule != null)
+				return schedule;
+			loadSchedule(created);
+		}
+		return created;
+	}
+
+	/**
+	 * Adds the products of the module whose row IDs are above those seen
+	 * so far.
+	 */
+	private static void loadNewProducts(Module module, Schedule schedule)
+	{
+		Database database = Core.getDatabase();
+		if (database == null)
+			return;
+		ResultsIterator<ProductID> productIds =
+				database.getProductIds(module, schedule.maxRowId + 1, -1);
+		if (productIds == null) {
+			module.logError("RecrawlScheduler", "loadNewProducts",
+					"Unable to query new product IDs.");
+			return;
+		}
+
+		while (productIds.hasNext()) {
+			ProductID productId = productIds.next();
+			if (productId == null)
+				break;
+			if (!schedule.products.containsKey(productId.getRowId())) {
+				Product product = new Product(
+						productId.getRowId(), productId.getModuleProductId());
+				schedule.products.put(product.rowId, product);
+				schedule.queue.add(product);
+				schedule.changed.add(product);
+			}
+			schedule.maxRowId = Math.max(schedule.maxRowId, productId.getRowId());
+		}
+	}
+
+	public static boolean load(Database database)
+	{
+		boolean success = true;
+		if (database != null) {
+			try {
+				String budgetString = database.getMetadata(RECRAWL_BUDGET);
+				if (budgetString != null)
+					budget = Integer.parseInt(budgetString);
+				String periodString = database.getMetadata(RECRAWL_LIST_PERIOD);
+				if (periodString != null)
+					listPeriod = Long.parseLong(periodString);
+			} catch (RuntimeException e) {
+				Console.printError("RecrawlScheduler", "load",
+						"Unable to parse recrawl settings.", e);
+				success = false;
+			}
+		}
+		return loadDemand() && success;
+	}
+
+	public static boolean save(Database database)
+	{
+		return database.setMetadata(RECRAWL_BUDGET, Integer.toString(budget))
+			&& database.setMetadata(RECRAWL_LIST_PERIOD, Long.toString(listPeriod));
+	}
+
+	/**
+	 * Reads the saved demand, where each line holds a GID, its demand,
+	 * and the time it was last updated.
+	 */
+	private static boolean loadDemand()
+	{
+		List<String[]> lines = readLines(DEMAND_FILE, 3);
+		if (lines == null)
+			return false;
+		try {
+			for (String[] tokens : lines) {
+				if (tokens.length != 3)
+					throw new NumberFormatException("Expected 3 fields.");
+				Demand loaded = new Demand();
+				loaded.value = Double.parseDouble(tokens[1]);
+				loaded.updated = Long.parseLong(tokens[2]);
+				demand.put(Long.parseLong(tokens[0]), loaded);
+			}
+			demandLines = lines.size();
+			return true;
+		} catch (NumberFormatException e) {
+			Console.printError("RecrawlScheduler", "loadDemand",
+					"Unable to parse demand file.", e);
+			demand.clear();
+			demandLines = -1;
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the saved schedule of a module. A line with one field holds
+	 * the time of the last product list parse, and every other line a
+	 * product.
+	 */
+	private static void loadSchedule(Schedule schedule)
+	{
+		List<String[]> lines = readLines(RECRAWL_PATH + Core.toUnsignedString(schedule.moduleId), 5);
+		if (lines == null || lines.isEmpty())
+			return;
+		try {
+			for (String[] tokens : lines) {
+				if (tokens.length == 1) {
+					schedule.lastListParse = Long.parseLong(tokens[0]);
+					continue;
+				} else if (tokens.length != 5) {
+					throw new NumberFormatException("Expected 1 or 5 fields.");
+				}
+				Product product = new Product(Long.parseLong(tokens[0]), tokens[4]);
+				product.lastFetched = Long.parseLong(tokens[1]);
+				product.rate = Double.parseDouble(tokens[2]);
+				product.gid = Long.parseLong(tokens[3]);
+				schedule.products.put(product.rowId, product);
+				schedule.maxRowId = Math.max(schedule.maxRowId, product.rowId);
+			}
+			schedule.lines = lines.size();
+		} catch (RuntimeException e) {
+			Console.printError("RecrawlScheduler", "loadSchedule",
+					"Unable to parse schedule of module "
+					+ Core.toUnsignedString(schedule.moduleId) + ".", e);
+			schedule.products.clear();
+			schedule.maxRowId = -1;
+			schedule.lines = -1;
+		}
+
+		long now = System.currentTimeMillis();
+		for (Product product : schedule.products.values()) {
+			product.due = due(product, now);
+			schedule.queue.add(product);
+			addGid(schedule, product);
+		}
+	}
+
+	/**
+	 * Appends the changes to schedules and demand since they were last
+	 * written to disk, rewriting the files that have grown too long.
+	 */
+	public static synchronized boolean flush()
+	{
+		boolean success = true;
+		for (Schedule schedule : schedules.values()) {
+			List<String> lines;
+			boolean compact;
+			synchronized (schedule) {
+				if (schedule.changed.isEmpty() && !schedule.listParseChanged && schedule.lines >= 0)
+					continue;
+				compact = schedule.lines < 0 || schedule.lines + schedule.changed.size()
+						> COMPACT_RATIO * (schedule.products.size() + 1);
+				Collection<Product> products = compact ? schedule.products.values() : schedule.changed;
+				lines = new ArrayList<String>(products.size() + 1);
+				if (compact || schedule.listParseChanged)
+					lines.add(Long.toString(schedule.lastListParse));
+				for (Product product : products) {
+					lines.add(product.rowId + "\t" + product.lastFetched + "\t"
+							+ product.rate + "\t" + product.gid + "\t" + product.moduleProductId);
+				}
+				schedule.changed.clear();
+				schedule.listParseChanged = false;
+			}
+			boolean written = writeLines(RECRAWL_PATH
+					+ Core.toUnsignedString(schedule.moduleId), lines, !compact);
+			synchronized (schedule) {
+				/* a failed write may have left part of the lines, so rewrite it all next time */
+				if (!written)
+					schedule.lines = -1;
+				else if (compact)
+					schedule.lines = lines.size();
+				else if (schedule.lines >= 0)
+					schedule.lines += lines.size();
+			}
+			success &= written;
+		}
+
+		if (!changedDemand.isEmpty() || demandLines < 0) {
+			long now = System.currentTimeMillis();
+			List<Long> gids = new ArrayList<Long>(changedDemand);
+			changedDemand.removeAll(gids);
+			boolean compact = demandLines < 0
+					|| demandLines + gids.size() > COMPACT_RATIO * (demand.size() + 1);
+			if (compact)
+				gids = new ArrayList<Long>(demand.keySet());
+
+			List<String> lines = new ArrayList<String>(gids.size());
+			for (Long gid : gids) {
+				Demand current = demand.get(gid);
+				if (current == null)
+					continue;
+				double value = current.get(now);
+				if (compact && value < MIN_DEMAND) {
+					demand.remove(gid, current);
+					continue;
+				}
+				lines.add(gid + "\t" + value + "\t" + now);
+			}
+			if (!writeLines(DEMAND_FILE, lines, !compact)) {
+				demandLines = -1;
+				success = false;
+			} else {
+				demandLines = compact ? lines.size() : demandLines + lines.size();
+			}
+		}
+		return success;
+	}
+
+	/**
+	 * Returns up to <code>fields</code> tab-separated fields of each line
+	 * of the given file, or an empty list if it does not exist. Returns
+	 * null on error.
+	 */
+	private static List<String[]> readLines(String path, int fields)
+	{
+		ArrayList<String[]> lines = new ArrayList<String[]>();
+		File file = new File(path);
+		if (!file.exists())
+			return lines;
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line.split("\t", fields));
+			return lines;
+		} catch (IOException e) {
+			Console.printError("RecrawlScheduler", "readLines",
+					"Unable to read '" + path + "'.", e);
+			return null;
+		} finally {
+			try {
+				if (reader != null)
+					reader.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * Appends the given lines to the given file, or replaces its contents
+	 * with them if <code>append</code> is false.
+	 */
+	private static boolean writeLines(String path, List<String> lines, boolean append)
+	{
+		new File(RECRAWL_PATH).mkdirs();
+		File temp = new File(path + ".tmp");
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(append
+					? new FileOutputStream(path, true) : new FileOutputStream(temp), UTF8);
+			for (String line : lines) {
+				writer.write(line);
+				writer.write('\n');
+			}
+			writer.close();
+			writer = null;
+			if (!append && !temp.renameTo(new File(path)))
+				throw new IOException("Unable to replace '" + path + "'.");
+			return true;
+		} catch (IOException e) {
+			Console.printError("RecrawlScheduler", "writeLines",
+					"Unable to write '" + path + "'.", e);
+			return false;
+		} finally {
+			try {
+				if (writer != null)
+					writer.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * The products of a module, guarded by the schedule's lock.
+	 */
+	private static class Schedule
+	{
+		final long moduleId;
+		final HashMap<Long, Product> products = new HashMap<Long, Product>();
+
+		/* the products in the order they become due */
+		final TreeSet<Product> queue = new TreeSet<Product>(BY_DUE);
+
+		/* the products of each product group, so that demand can move them */
+		final HashMap<Long, List<Product>> byGid = new HashMap<Long, List<Product>>();
+
+		/* the products that changed since the schedule was last written */
+		final HashSet<Product> changed = new HashSet<Product>();
+
+		long maxRowId = -1;
+		long lastListParse = 0;
+		boolean listParseChanged = false;
+		int lines = 0; /* in the saved file, or -1 if it must be rewritten */
+
+		Schedule(long moduleId) {
+			this.moduleId = moduleId;
+		}
+	}
+
+	private static class Product
+	{
+		final long rowId;
+		final String moduleProductId;
+		long gid = 0;
+		long lastFetched = 0; /* never, if 0 */
+		double rate = 1.0 / PRIOR_PERIOD; /* in price changes per millisecond */
+		long due = 0; /* only changed while out of the queue */
+
+		Product(long rowId, String moduleProductId) {
+			this.rowId = rowId;
+			this.moduleProductId = moduleProductId;
+		}
+	}
+
+	private static class Demand
+	{
+		double value = 0.0;
+		long updated = 0;
+
+		synchronized void add(double amount, long now) {
+			value = get(now) + amount;
+			updated = now;
+		}
+
+		synchronized double get(long now) {
+			return value * decay(now - updated);
+		}
+	}
+
+	/**
+	 * The chosen product IDs, as returned by the database.
+	 */
+	private static class ProductIdList implements ResultsIterator<ProductID>
+	{
+		private final List<ProductID> productIds;
+		private int position = 0;
+
+		ProductIdList(List<ProductID> productIds) {
+			this.productIds = productIds;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return position < productIds.size();
+		}
+
+		@Override
+		public ProductID next() {
+			if (position >= productIds.size())
+				return null;
+			return productIds.get(position++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Cannot remove chosen product IDs.");
+		}
+
+		@Override
+		public boolean seekRelative(int offset)
+		{
+			int target = position + offset;
+			if (target < 0 || target > productIds.size())
+				return false;
+			position = target;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package transparent.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import transparent.core.database.Database.ResultsIterator;
+
+/**
+ * Runs a module against pages recorded by the {@link ResponseCache},
+ * without touching the network, and reports how fast it went. The run is
+ * a dummy run, so product information is not written to the database
+ * unless asked for, and every page the module requests must have been
+ * recorded, in {@link ResponseCache.Mode#RECORD} mode, beforehand.
+ * <p>
+ * The time of a run is split into three phases: protocol, the time spent
+ * exchanging messages and pages with the module, which includes the
+ * module's own parsing of pages; parse, the time the core spends reading
+ * the module's responses; and write, the time spent storing what was
+ * parsed.
+ */
+public class ReplayHarness
+{
+	private ReplayHarness() { }
+
+	/**
+	 * Replays the given request type on the given module in the
+	 * background, printing a report once it finishes. For product info
+	 * requests, up to <code>count</code> of the module's stored products
+	 * are requested.
+	 */
+	public static void start(final Module module, final byte requestType,
+			final int count, final boolean dummy)
+	{
+		Core.execute(new Runnable() {
+			@Override
+			public void run() {
+				Profile profile = replay(module, requestType, count, dummy);
+				if (profile != null)
+					print(module, profile);
+			}
+		});
+	}
+
+	/**
+	 * Replays the given request type on the given module, returning its
+	 * profile, or null if it could not be started.
+	 */
+	public static Profile replay(Module module, byte requestType, int count, boolean dummy)
+	{
+		ModuleThread thread = new ModuleThread(module, dummy);
+		thread.setRequestType(requestType);
+		if (requestType == Core.PRODUCT_INFO_REQUEST) {
+			if (Core.getDatabase() == null) {
+				Console.printError("ReplayHarness", "replay", "No database to query product IDs.");
+				return null;
+			}
+			ResultsIterator<ProductID> productIds = Core.getDatabase().getProductIds(module);
+			if (productIds == null) {
+				Console.printError("ReplayHarness", "replay", "Unable to query product IDs.");
+				return null;
+			}
+			thread.setRequestedProductIds(new LimitedIterator(productIds, count));
+		}
+
+		Profile profile = new Profile();
+		thread.setReplay(profile);
+		profile.started = System.nanoTime();
+		thread.run();
+		profile.finished = System.nanoTime();
+		return profile;
+	}
+
+	private static void print(Module module, Profile profile)
+	{
+		double seconds = profile.getElapsed() / 1e9;
+		Console.lockConsole();
+		Console.println("Replay of module " + module.getIdString()
+				+ " (" + module.getModuleName() + ") finished.");
+		Console.println(Console.GRAY + "  elapsed: " + Console.DEFAULT
+				+ String.format("%.3f s", seconds));
+		Console.println(Console.GRAY + "  products: " + Console.DEFAULT + profile.getProductCount()
+				+ String.format(" (%.2f/s)", profile.getProductCount() / seconds));
+		Console.println(Console.GRAY + "  pages: " + Console.DEFAULT + profile.getPageCount()
+				+ ", " + profile.getPageBytes() + " bytes"
+				+ String.format(" (%.2f MB/s)", profile.getPageBytes() / seconds / 1048576));
+		printPhase("protocol", profile.getProtocolTime(), profile.getProductCount(), -1);
+		printPhase("parse", profile.parse);
+		printPhase("write", profile.write);
+		Console.unlockConsole();
+	}
+
+	private static void printPhase(String name, Phase phase) {
+		printPhase(name, phase.getTotal(), phase.getCount(), phase.getMax());
+	}
+
+	private static void printPhase(String name, long total, long count, long max)
+	{
+		String line = Console.GRAY + "  " + name + ": " + Console.DEFAULT
+				+ (total / 1000000) + " ms";
+		if (count > 0)
+			line += ", mean " + (total / count / 1000) + " us";
+		if (max >= 0)
+			line += ", max " + (max / 1000) + " us";
+		Console.println(line);
+	}
+
+	/**
+	 * The time spent in each phase of a replay, and the work done.
+	 */
+	public static class Profile
+	{
+		private long started;
+		private long finished;
+		private final AtomicLong products = new AtomicLong(0);
+		private final AtomicLong pages = new AtomicLong(0);
+		private final AtomicLong pageBytes = new AtomicLong(0);
+
+		/* parsing is timed per response, and writing per product */
+		final Phase parse = new Phase();
+		final Phase write = new Phase();
+
+		void recordPage(long bytes) {
+			pages.incrementAndGet();
+			if (bytes > 0)
+				pageBytes.addAndGet(bytes);
+		}
+
+		void recordProducts(int count) {
+			products.addAndGet(count);
+		}
+
+		public long getElapsed() {
+			return finished - started;
+		}
+
+		/**
+		 * Returns the time, in nanoseconds, the module thread spent on
+		 * anything but parsing responses.
+		 */
+		public long getProtocolTime() {
+			return Math.max(0, getElapsed() - parse.getTotal());
+		}
+
+		public long getProductCount() {
+			return products.get();
+		}
+
+		public long getPageCount() {
+			return pages.get();
+		}
+
+		public long getPageBytes() {
+			return pageBytes.get();
+		}
+
+		public Phase getParse() {
+			return parse;
+		}
+
+		public Phase getWrite() {
+			return write;
+		}
+	}
+
+	public static class Phase
+	{
+		private final AtomicLong count = new AtomicLong(0);
+		private final AtomicLong total = new AtomicLong(0); /* in nanoseconds */
+		private final AtomicLong max = new AtomicLong(0); /* in nanoseconds */
+
+		void record(long elapsed)
+		{
+			count.incrementAndGet();
+			total.addAndGet(elapsed);
+			long current;
+			while (elapsed > (current = max.get())
+					&& !max.compareAndSet(current, elapsed)) { }
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotal() {
+			return total.get();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+	}
+
+	/**
+	 * Returns at most the given number of IDs from another iterator.
+	 */
+	private static class LimitedIterator implements ResultsIterator<ProductID>
+	{
+		private final ResultsIterator<ProductID> iterator;
+		private int remaining;
+
+		LimitedIterator(ResultsIterator<ProductID> iterator, int limit) {
+			this.iterator = iterator;
+			this.remaining = limit;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return remaining > 0 && iterator.hasNext();
+		}
+
+		@Override
+		public ProductID next() {
+			if (remaining <= 0)
+				return null;
+			remaining--;
+			return iterator.next();
+		}
+
+		@Override
+		public void remove() {
+			iterator.remove();
+		}
+
+		@Override
+		public boolean seekRelative(int offset)
+		{
+			if (!iterator.seekRelative(offset))
+				return false;
+			remaining -= offset;
+			return true;
+		}
+	}
+}
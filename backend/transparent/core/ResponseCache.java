@@ -0,0 +1,657 @@
+package transparent.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import transparent.core.database.Database;
+
+/**
+ * A disk-backed cache of HTTP responses, consulted before modules' pages
+ * are downloaded. Response bodies are stored under the SHA-1 hash of their
+ * contents, so identical pages share a single file, and an index maps
+ * each URL to its body. The least recently used URLs are evicted once the
+ * bodies exceed the maximum cache size.
+ * <p>
+ * In {@link Mode#ON} mode, a response is cached only if its URL matches
+ * one of the requesting module's rules, and is served for as long as that
+ * rule's TTL. {@link Mode#RECORD} mode downloads and stores every page,
+ * and {@link Mode#REPLAY} mode serves only from the cache, never touching
+ * the network, so that recorded crawls can be replayed offline.
+ */
+public class ResponseCache
+{
+	public enum Mode {
+		OFF,
+		ON,
+		RECORD,
+		REPLAY
+	}
+
+	private static final String CACHE_PATH = "cache/";
+	private static final String OBJECT_PATH = CACHE_PATH + "objects/";
+	private static final String TEMP_PATH = CACHE_PATH + "tmp/";
+	private static final String INDEX_FILE = CACHE_PATH + "index";
+
+	private static final String CACHE_MODE = "cache.mode";
+	private static final String CACHE_SIZE = "cache.size";
+	private static final String RULE_COUNT = "cache.rules.count";
+
+	private static final long DEFAULT_MAX_SIZE = 1073741824; /* 1 GB */
+	private static final int MAX_ENTRY_SIZE = 10485760; /* 10 MB */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static volatile Mode mode = Mode.OFF;
+	private static volatile long maxSize = DEFAULT_MAX_SIZE;
+
+	/* the caching rules of each module, in the order they are matched */
+	private static final ConcurrentHashMap<Long, CopyOnWriteArrayList<Rule>> rules =
+			new ConcurrentHashMap<Long, CopyOnWriteArrayList<Rule>>();
+
+	/* URLs in least recently used order, and the bodies they refer to,
+	 * all guarded by the index lock */
+	private static final LinkedHashMap<String, Entry> index =
+			new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+	private static final HashMap<String, Body> bodies = new HashMap<String, Body>();
+	private static long totalSize = 0;
+	private static boolean dirty = false;
+
+	private static final AtomicLong hits = new AtomicLong(0);
+	private static final AtomicLong misses = new AtomicLong(0);
+
+	/**
+	 * Returns the cached response for the given URL, or null if the page
+	 * should be downloaded. In replay mode, a page that was never recorded
+	 * results in an {@link IOException}.
+	 */
+	public static HttpFetcher.Response get(Module module, String url) throws IOException {
+		return get(module, url, mode);
+	}
+
+	/**
+	 * Returns the recorded response for the given URL, as in replay mode,
+	 * whatever the cache mode.
+	 */
+	public static HttpFetcher.Response replay(Module module, String url) throws IOException {
+		return get(module, url, Mode.REPLAY);
+	}
+
+	private static HttpFetcher.Response get(Module module,
+			String url, Mode current) throws IOException
+	{
+		if (current == Mode.OFF || current == Mode.RECORD)
+			return null;
+
+		long ttl = 0;
+		if (current == Mode.ON) {
+			ttl = getTtl(module, url);
+			if (ttl <= 0)
+				return null;
+		}
+
+		Entry entry;
+		synchronized (index) {
+			entry = index.get(url);
+		}
+		if (entry != null && (current == Mode.REPLAY
+				|| System.currentTimeMillis() - entry.stored <= ttl))
+		{
+			try {
+				InputStream stream = new BufferedInputStream(
+						new FileInputStream(OBJECT_PATH + entry.hash));
+				hits.incrementAndGet();
+				return new HttpFetcher.Response(HttpURLConnection.HTTP_OK,
+						entry.contentType, entry.size, stream);
+			} catch (FileNotFoundException e) {
+				module.logError("ResponseCache", "get",
+						"Cached body of URL '" + url + "' is missing.");
+				remove(url, entry);
+			}
+		}
+
+		misses.incrementAndGet();
+		if (current == Mode.REPLAY)
+			throw new IOException("No recorded response for URL '" + url + "'.");
+		return null;
+	}
+
+	/**
+	 * Returns the given freshly downloaded response, such that its body is
+	 * stored in the cache as it is read, if the cache mode and the module's
+	 * rules call for it. The body is only stored once it has been read to
+	 * the end.
+	 */
+	public static HttpFetcher.Response record(Module module,
+			String url, HttpFetcher.Response response)
+	{
+		Mode current = mode;
+		if (current == Mode.OFF || current == Mode.REPLAY
+				|| response.getStatus() != HttpURLConnection.HTTP_OK)
+			return response;
+		if (current == Mode.ON && getTtl(module, url) <= 0)
+			return response;
+
+		try {
+			return response.withStream(new Recorder(
+					url, response.getContentType(), response.getStream()));
+		} catch (IOException e) {
+			module.logError("ResponseCache", "record",
+					"Unable to create temporary file.", e);
+			return response;
+		}
+	}
+
+	/**
+	 * Returns the TTL of the given URL for the given module in
+	 * milliseconds, or 0 if it should not be cached.
+	 */
+	private static long getTtl(Module module, String url)
+	{
+		List<Rule> moduleRules = rules.get(module.getId());
+		if (moduleRules == null)
+			return 0;
+		for (Rule rule : moduleRules) {
+			if (rule.pattern.matcher(url).matches())
+				return rule.ttl * 1000;
+		}
+		return 0;
+	}
+
+	private static void commit(String url, String contentType,
+			String hash, File temp, long size)
+	{
+		synchronized (index) {
+			Body body = bodies.get(hash);
+			if (body == null) {
+				if (!temp.renameTo(new File(OBJECT_PATH + hash))) {
+					temp.delete();
+					return;
+				}
+				body = new Body(size);
+				bodies.put(hash, body);
+				totalSize += size;
+			} else {
+				temp.delete();
+			}
+
+			body.references++;
+			Entry old = index.put(url, new Entry(
+					hash, contentType, size, System.currentTimeMillis()));
+			if (old != null)
+				release(old.hash);
+			dirty = true;
+			evict();
+		}
+	}
+
+	/* must be called while holding the index lock */
+	private static void release(String hash)
+	{
+		Body body = bodies.get(hash);
+		if (body == null)
+			return;
+		body.references--;
+		if (body.references <= 0) {
+			bodies.remove(hash);
+			totalSize -= body.size;
+			new File(OBJECT_PATH + hash).delete();
+		}
+	}
+
+	/* must be called while holding the index lock */
+	private static void evict()
+	{
+		Iterator<Map.Entry<String, Entry>> iterator = index.entrySet().iterator();
+		while (totalSize > maxSize && iterator.hasNext()) {
+			Entry entry = iterator.next().getValue();
+			iterator.remove();
+			release(entry.hash);
+			dirty = true;
+		}
+	}
+
+	private static void remove(String url, Entry entry)
+	{
+		synchronized (index) {
+			if (index.get(url) == entry) {
+				index.remove(url);
+				release(entry.hash);
+				dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Removes every cached response.
+	 */
+	public static void clear()
+	{
+		synchronized (index) {
+			for (Entry entry : index.values())
+				release(entry.hash);
+			index.clear();
+			dirty = true;
+		}
+		hits.set(0);
+		misses.set(0);
+	}
+
+	public static Mode getMode() {
+		return mode;
+	}
+
+	public static void setMode(Mode mode) {
+		ResponseCache.mode = mode;
+	}
+
+	public static long getMaxSize() {
+		return maxSize;
+	}
+
+	public static void setMaxSize(long maxSize)
+	{
+		ResponseCache.maxSize = maxSize;
+		synchronized (index) {
+			evict();
+		}
+	}
+
+	/**
+	 * Adds a rule caching the matching URLs of the given module for
+	 * <code>ttl</code> seconds, replacing any rule with the same pattern.
+	 * A TTL of zero removes the rule. Throws
+	 * {@link PatternSyntaxException} if the pattern is invalid.
+	 */
+	public static void setRule(long moduleId, String pattern, long ttl)
+	{
+		Rule rule = new Rule(Pattern.compile(pattern), ttl);
+		CopyOnWriteArrayList<Rule> moduleRules = rules.get(moduleId);
+		if (moduleRules == null) {
+			moduleRules = new CopyOnWriteArrayList<Rule>();
+			CopyOnWriteArrayList<Rule> old = rules.putIfAbsent(moduleId, moduleRules);
+			if (old != null)
+				moduleRules = old;
+		}
+
+		for (Rule existing : moduleRules) {
+			if (existing.pattern.pattern().equals(pattern))
+				moduleRules.remove(existing);
+		}
+		if (ttl > 0)
+			moduleRules.add(rule);
+	}
+
+	public static Map<Long, ? extends List<Rule>> getRules() {
+		return rules;
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	public static int getEntryCount()
+	{
+		synchronized (index) {
+			return index.size();
+		}
+	}
+
+	public static long getTotalSize()
+	{
+		synchronized (index) {
+			return totalSize;
+		}
+	}
+
+	/**
+	 * Loads the cache settings from the given database (which may be
+	 * null), and the index from disk.
+	 */
+	public static boolean load(Database database)
+	{
+		boolean success = true;
+		if (database != null) {
+			try {
+				String modeString = database.getMetadata(CACHE_MODE);
+				if (modeString != null)
+					mode = Mode.valueOf(modeString.toUpperCase());
+				String sizeString = database.getMetadata(CACHE_SIZE);
+				if (sizeString != null)
+					maxSize = Long.parseLong(sizeString);
+
+				String countString = database.getMetadata(RULE_COUNT);
+				int count = (countString == null) ? 0 : Integer.parseInt(countString);
+				for (int i = 0; i < count; i++) {
+					String[] tokens = database.getMetadata(
+							"cache.rules." + i).split(" ", 3);
+					setRule(Long.parseLong(tokens[0]),
+							tokens[2], Long.parseLong(tokens[1]));
+				}
+			} catch (RuntimeException e) {
+				Console.printError("ResponseCache", "load",
+						"Unable to parse cache settings.", e);
+				success = false;
+			}
+		}
+		return loadIndex() && success;
+	}
+
+	public static boolean save(Database database)
+	{
+		boolean success = database.setMetadata(CACHE_MODE, mode.toString().toLowerCase());
+		success &= database.setMetadata(CACHE_SIZE, Long.toString(maxSize));
+		int index = 0;
+		for (Map.Entry<Long, CopyOnWriteArrayList<Rule>> entry : rules.entrySet()) {
+			for (Rule rule : entry.getValue()) {
+				success &= database.setMetadata("cache.rules." + index, entry.getKey()
+						+ " " + rule.ttl + " " + rule.pattern.pattern());
+				index++;
+			}
+		}
+		return success && database.setMetadata(RULE_COUNT, Integer.toString(index));
+	}
+
+	private static boolean loadIndex()
+	{
+		new File(OBJECT_PATH).mkdirs();
+		new File(TEMP_PATH).mkdirs();
+
+		/* remove partially recorded bodies */
+		File[] temps = new File(TEMP_PATH).listFiles();
+		if (temps != null) {
+			for (File temp : temps)
+				temp.delete();
+		}
+
+		File file = new File(INDEX_FILE);
+		if (!file.exists())
+			return true;
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			synchronized (index) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] tokens = line.split("\t", 4);
+					if (tokens.length != 4)
+						continue;
+					File object = new File(OBJECT_PATH + tokens[0]);
+					if (!object.exists())
+						continue;
+
+					Body body = bodies.get(tokens[0]);
+					if (body == null) {
+						body = new Body(object.length());
+						bodies.put(tokens[0], body);
+						totalSize += body.size;
+					}
+					body.references++;
+					String contentType = tokens[2].isEmpty() ? null : tokens[2];
+					Entry old = index.put(tokens[3], new Entry(tokens[0],
+							contentType, body.size, Long.parseLong(tokens[1])));
+					if (old != null)
+						release(old.hash);
+				}
+
+				/* remove bodies that were stored after the index was last saved */
+				File[] objects = new File(OBJECT_PATH).listFiles();
+				if (objects != null) {
+					for (File object : objects) {
+						if (!bodies.containsKey(object.getName()))
+							object.delete();
+					}
+				}
+				evict();
+			}
+			return true;
+		} catch (IOException e) {
+			Console.printError("ResponseCache", "loadIndex",
+					"Unable to read cache index.", e);
+			return false;
+		} catch (NumberFormatException e) {
+			Console.printError("ResponseCache", "loadIndex",
+					"Unable to parse cache index.", e);
+			return false;
+		} finally {
+			try {
+				if (reader != null)
+					reader.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * Writes the index to disk, if it has changed since it was last
+	 * written.
+	 */
+	public static boolean flush()
+	{
+		List<String> lines;
+		synchronized (index) {
+			if (!dirty)
+				return true;
+			lines = new ArrayList<String>(index.size());
+			for (Map.Entry<String, Entry> pair : index.entrySet()) {
+				Entry entry = pair.getValue();
+				lines.add(entry.hash + "\t" + entry.stored + "\t"
+						+ (entry.contentType == null ? "" : entry.contentType)
+						+ "\t" + pair.getKey());
+			}
+			dirty = false;
+		}
+
+		File temp = new File(INDEX_FILE + ".tmp");
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(temp), UTF8);
+			for (String line : lines) {
+				writer.write(line);
+				writer.write('\n');
+			}
+			writer.close();
+			writer = null;
+			if (!temp.renameTo(new File(INDEX_FILE)))
+				throw new IOException("Unable to replace cache index.");
+			return true;
+		} catch (IOException e) {
+			Console.printError("ResponseCache", "flush",
+					"Unable to write cache index.", e);
+			synchronized (index) {
+				dirty = true;
+			}
+			return false;
+		} finally {
+			try {
+				if (writer != null)
+					writer.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		char[] chars = new char[2 * bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
+	public static class Rule
+	{
+		private final Pattern pattern;
+		private final long ttl; /* in seconds */
+
+		public Rule(Pattern pattern, long ttl) {
+			this.pattern = pattern;
+			this.ttl = ttl;
+		}
+
+		public String getPattern() {
+			return pattern.pattern();
+		}
+
+		public long getTtl() {
+			return ttl;
+		}
+	}
+
+	private static class Entry
+	{
+		final String hash;
+		final String contentType;
+		final long size;
+		final long stored; /* in milliseconds since the epoch */
+
+		public Entry(String hash, String contentType, long size, long stored) {
+			this.hash = hash;
+			this.contentType = contentType;
+			this.size = size;
+			this.stored = stored;
+		}
+	}
+
+	private static class Body
+	{
+		final long size;
+		int references = 0;
+
+		public Body(long size) {
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Copies a response body to a temporary file as it is read, and adds
+	 * it to the cache once the end of the body is reached.
+	 */
+	private static class Recorder extends FilterInputStream
+	{
+		private final String url;
+		private final String contentType;
+		private final File temp;
+		private final FileOutputStream out;
+		private final MessageDigest digest;
+		private long size = 0;
+		private boolean done = false;
+
+		public Recorder(String url, String contentType, InputStream in) throws IOException
+		{
+			super(in);
+			this.url = url;
+			this.contentType = contentType;
+			try {
+				this.digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+			new File(TEMP_PATH).mkdirs();
+			this.temp = File.createTempFile("response", null, new File(TEMP_PATH));
+			this.out = new FileOutputStream(temp);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int read = in.read();
+			if (read == -1)
+				finish();
+			else if (!done)
+				write(new byte[] { (byte) read }, 0, 1);
+			return read;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int read = in.read(b, off, len);
+			if (read == -1)
+				finish();
+			else if (!done)
+				write(b, off, read);
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			abandon();
+			return in.skip(n);
+		}
+
+		@Override
+		public void close() throws IOException {
+			abandon();
+			in.close();
+		}
+
+		private void write(byte[] b, int off, int len) throws IOException
+		{
+			size += len;
+			if (size > MAX_ENTRY_SIZE) {
+				abandon();
+				return;
+			}
+			try {
+				out.write(b, off, len);
+				digest.update(b, off, len);
+			} catch (IOException e) {
+				abandon();
+			}
+		}
+
+		private void finish()
+		{
+			if (done)
+				return;
+			done = true;
+			try {
+				out.close();
+				commit(url, contentType, toHex(digest.digest()), temp, size);
+			} catch (IOException e) {
+				temp.delete();
+			}
+		}
+
+		private void abandon()
+		{
+			if (done)
+				return;
+			done = true;
+			try {
+				out.close();
+			} catch (IOException e) { }
+			temp.delete();
+		}
+	}
+}
@@ -240,6 +240,10 @@ public class Server implements Container
 				rows.put(Core.toUnsignedString(module_id), row);
 			}
 
+			/* only count views of products that exist, so demand stays bounded */
+			if (!rows.isEmpty())
+				RecrawlScheduler.recordDemand(gid, RecrawlScheduler.VIEW_DEMAND);
+
 			if (brand != null && model != null)
 				rows.put("name", brand + " " + model);
 			else if (name != null)
@@ -448,6 +452,8 @@ public class Server implements Container
 			}
 
 			Core.addPriceTrack(gid, modules, price);
+			if (isKnownGid(gid))
+				RecrawlScheduler.recordDemand(gid, RecrawlScheduler.SUBSCRIPTION_DEMAND);
 			JSONObject result = new JSONObject();
 			result.put("success", "true");
 			body.println(result.toJSONString());
@@ -549,6 +555,20 @@ public class Server implements Container
 			body.println(result.toJSONString());
 		}
 
+		private void parseStats(PrintStream body)
+		{
+			JSONObject result = new JSONObject();
+			for (Module module : Core.getModules()) {
+				JSONObject stats = module.getStats().toJSON();
+				stats.put("name", module.getModuleName());
+				stats.put("ingestion_queue", module.getIngestionQueue().size());
+				result.put(module.getIdString(), stats);
+			}
+			if (Core.getDatabase() != null)
+				result.put("database", new JSONObject(Core.getDatabase().getStatistics()));
+			body.println(result.toJSONString());
+		}
+
 		@Override
 		public void run() {
 			PrintStream body = null;
@@ -568,6 +588,8 @@ public class Server implements Container
 					parseUnsubscribe(body);
 				else if (url.equals("/history") || url.equals("/history/"))
 					parseHistory(body);
+				else if (url.equals("/stats") || url.equals("/stats/"))
+					parseStats(body);
 				else
 					body.println(error("Page not found."));
 				body.close();
@@ -637,6 +659,21 @@ public class Server implements Container
 		}
 	}
 
+	/**
+	 * Returns true if some product belongs to the product group with the
+	 * given GID.
+	 */
+	private static boolean isKnownGid(long gid)
+	{
+		Results results = Core.getDatabase().query(
+				null, new String[] { "gid" },
+				new String[] { "gid" },
+				new Relation[] { Relation.EQUALS },
+				new Object[] { gid },
+				null, null, true, 0, 1);
+		return results != null && results.next();
+	}
+
 	private static Map<Long, JSONArray> query(String name, String[] select,
 			String[] whereClause, Relation[] whereRelation, Object[] whereArgs,
 			String sort, boolean ascending, Integer page, Integer pageSize)
@@ -27,6 +27,8 @@ public class StreamPipe implements Runnable
 		do {
 			try {
 				int read = in.read(buffer);
+				if (read == -1)
+					break;
 				out.write(buffer, 0, read);
 			} catch (IOException e) {
 				break;
@@ -7,11 +7,13 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import transparent.core.database.Database;
+import transparent.core.database.Database.ResultsIterator;
 
 enum TaskType {
 	PRODUCT_LIST_PARSE,
 	PRODUCT_INFO_PARSE,
-	IMAGE_FETCH
+	IMAGE_FETCH,
+	PRODUCT_REFRESH
 }
 
 public class Task implements Comparable<Task>, Callable<Object>
@@ -25,6 +27,9 @@ public class Task implements Comparable<Task>, Callable<Object>
 	private boolean dummy;
 	private String state;
 
+	/* the shards of a sharded product info parse, or null if not sharded */
+	private Shard[] shards = null;
+
 	/* this id is transient and is regenerated every time the task is loaded */
 	private int id;
 
@@ -119,10 +124,73 @@ public class Task implements Comparable<Task>, Callable<Object>
 		return this.state;
 	}
 
+	/**
+	 * Returns the shards of this task, or null if this task is not sharded.
+	 */
+	public Shard[] getShards() {
+		return shards;
+	}
+
+	/**
+	 * Splits the product IDs of the module into <code>count</code> ranges
+	 * of row IDs of roughly equal width. The first and last shards are
+	 * left open, so that products added later are still covered. Returns
+	 * null if the module has no products.
+	 */
+	private Shard[] createShards(int count)
+	{
+		long[] bounds = Core.getDatabase().getRowIdBounds(module);
+		if (bounds == null)
+			return null;
+
+		long width = (bounds[1] - bounds[0]) / count + 1;
+		Shard[] created = new Shard[count];
+		for (int i = 0; i < count; i++) {
+			long start = (i == 0) ? 0 : bounds[0] + i * width;
+			long end = (i == count - 1) ? -1 : bounds[0] + (i + 1) * width;
+			created[i] = new Shard(i, start, end, false, "");
+		}
+		return created;
+	}
+
+	/**
+	 * Runs every unfinished shard in its own thread, and waits for all of
+	 * them to exit.
+	 */
+	private void runShards() throws InterruptedException
+	{
+		Thread[] threads = new Thread[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			Shard shard = shards[i];
+			if (shard.isFinished())
+				continue;
+
+			ModuleThread thread = new ModuleThread(module, dummy);
+			thread.setState(shard.getState());
+			thread.setRequestType(Core.PRODUCT_INFO_REQUEST);
+			thread.setRequestedRange(shard.getStart(), shard.getEnd());
+			shard.wrapper = thread;
+			if (stopped) {
+				thread.stop();
+				continue;
+			}
+
+			threads[i] = new Thread(thread,
+					"Task " + id + " shard " + i);
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			if (thread != null)
+				thread.join();
+		}
+	}
+
 	private static Task load(String data)
 	{
-		String[] tokens = data.split("\\.");
-		if (tokens.length != 5 && tokens.length != 6) {
+		String[] tokens = data.split("\\.", -1);
+		if (tokens.length != 5 && tokens.length != 6
+		 && (tokens.length < 7 || (tokens.length - 7) % 4 != 0)) {
 			Console.printError("Task", "load", "Unable to parse string.");
 			return null;
 		}
@@ -134,6 +202,8 @@ public class Task implements Comparable<Task>, Callable<Object>
 			type = TaskType.PRODUCT_INFO_PARSE;
 		else if (tokens[0].equals("2"))
 			type = TaskType.IMAGE_FETCH;
+		else if (tokens[0].equals("3"))
+			type = TaskType.PRODUCT_REFRESH;
 		else {
 			Console.printError("Task", "load", "Unable to parse task type.");
 			return null;
@@ -147,6 +217,23 @@ public class Task implements Comparable<Task>, Callable<Object>
 		Task task = new Task(type, Core.getModule(id), time, reschedules, dummy, null);
 		if (tokens.length > 5)
 			task.state = unescape(tokens[5]);
+		if (tokens.length > 6) {
+			int count = Integer.parseInt(tokens[6]);
+			if (count != (tokens.length - 7) / 4) {
+				Console.printError("Task", "load", "Unable to parse shards.");
+				return null;
+			}
+
+			task.shards = new Shard[count];
+			for (int i = 0; i < count; i++) {
+				int offset = 7 + 4 * i;
+				task.shards[i] = new Shard(i,
+						Long.parseLong(tokens[offset]),
+						Long.parseLong(tokens[offset + 1]),
+						!tokens[offset + 2].equals("0"),
+						unescape(tokens[offset + 3]));
+			}
+		}
 		return task;
 	}
 
@@ -177,6 +264,9 @@ public class Task implements Comparable<Task>, Callable<Object>
 		case IMAGE_FETCH:
 			typeString = "2";
 			break;
+		case PRODUCT_REFRESH:
+			typeString = "3";
+			break;
 		default:
 			Console.printError("Task", "save", "Unrecognized type.");
 			return null;
@@ -184,8 +274,20 @@ public class Task implements Comparable<Task>, Callable<Object>
 
 		String reschedulesString = reschedules ? "1" : "0";
 		String dummyString = dummy ? "1" : "0";
-		return typeString + "." + module.getIdString() + "." + time
+		String data = typeString + "." + module.getIdString() + "." + time
 				+ "." + reschedulesString + "." + dummyString + "." + escape(state);
+		if (shards == null)
+			return data;
+
+		StringBuilder builder = new StringBuilder(data);
+		builder.append('.').append(shards.length);
+		for (Shard shard : shards) {
+			builder.append('.').append(shard.getStart());
+			builder.append('.').append(shard.getEnd());
+			builder.append('.').append(shard.isFinished() ? "1" : "0");
+			builder.append('.').append(escape(shard.getState()));
+		}
+		return builder.toString();
 	}
 
 	public boolean save(Database database, boolean isRunning, int index)
@@ -215,6 +317,12 @@ public class Task implements Comparable<Task>, Callable<Object>
 	public void stop(boolean cancelRescheduling) {
 		if (wrapper != null)
 			wrapper.stop();
+		if (shards != null) {
+			for (Shard shard : shards) {
+				if (shard.wrapper != null)
+					shard.wrapper.stop();
+			}
+		}
 		if (cancelRescheduling)
 			this.stopped = true;
 	}
@@ -236,20 +344,30 @@ public class Task implements Comparable<Task>, Callable<Object>
 				wrapper.setState(state);
 				wrapper.setRequestType(Core.PRODUCT_LIST_REQUEST);
 				wrapper.run();
+				if (!dummy)
+					RecrawlScheduler.recordListParse(module);
 				Core.stopTask(this, false);
 				if (reschedules && !stopped) {
-					Core.queueTask(new Task(TaskType.PRODUCT_INFO_PARSE,
+					Core.queueTask(new Task(TaskType.PRODUCT_REFRESH,
 							module, System.currentTimeMillis(), true, dummy, null));
 					if (!Core.saveQueue())
 						Console.printError("Task", "call", "Unable to save tasks.");
 				}
 				return null;
 			case PRODUCT_INFO_PARSE:
-				wrapper = new ModuleThread(module, dummy);
-				wrapper.setState(state);
-				wrapper.setRequestType(Core.PRODUCT_INFO_REQUEST);
-				wrapper.setRequestedProductIds(Core.getDatabase().getProductIds(module));
-				wrapper.run();
+				/* only split tasks that have not already started unsharded */
+				if (shards == null && module.getShardCount() > 1 && state.length() == 0)
+					shards = createShards(module.getShardCount());
+
+				if (shards != null) {
+					runShards();
+				} else {
+					wrapper = new ModuleThread(module, dummy);
+					wrapper.setState(state);
+					wrapper.setRequestType(Core.PRODUCT_INFO_REQUEST);
+					wrapper.setRequestedRange(0, -1);
+					wrapper.run();
+				}
 				Core.stopTask(this, false);
 				if (reschedules && !stopped) {
 					Core.queueTask(new Task(TaskType.PRODUCT_LIST_PARSE,
@@ -258,6 +376,31 @@ public class Task implements Comparable<Task>, Callable<Object>
 						Console.printError("Task", "call", "Unable to save tasks.");
 				}
 				return null;
+			case PRODUCT_REFRESH:
+				/* fetch the products most likely to have changed, rather than all of them */
+				ResultsIterator<ProductID> productIds =
+						RecrawlScheduler.select(module, RecrawlScheduler.getBudget(), dummy);
+				boolean idle = !productIds.hasNext();
+				if (!idle) {
+					wrapper = new ModuleThread(module, dummy);
+					wrapper.setRequestType(Core.PRODUCT_INFO_REQUEST);
+					wrapper.setRequestedProductIds(productIds);
+					wrapper.run();
+				}
+				Core.stopTask(this, false);
+				if (reschedules && !stopped) {
+					if (RecrawlScheduler.isListParseDue(module)) {
+						Core.queueTask(new Task(TaskType.PRODUCT_LIST_PARSE,
+								module, System.currentTimeMillis(), true, dummy, null));
+					} else {
+						long delay = idle ? RecrawlScheduler.IDLE_DELAY : 0;
+						Core.queueTask(new Task(TaskType.PRODUCT_REFRESH,
+								module, System.currentTimeMillis() + delay, true, dummy, null));
+					}
+					if (!Core.saveQueue())
+						Console.printError("Task", "call", "Unable to save tasks.");
+				}
+				return null;
 			case IMAGE_FETCH:
 				Core.fetchImages(this, module);
 				Core.stopTask(this, false);
@@ -321,4 +464,64 @@ public class Task implements Comparable<Task>, Callable<Object>
 		}
 		return builder.toString();
 	}
+
+	/**
+	 * A range of row IDs of a sharded product info parse, which is parsed
+	 * by its own module thread and keeps its own module state.
+	 */
+	static class Shard
+	{
+		private final int index;
+		private final long start;
+		private final long end;
+		private boolean finished;
+		private String state;
+		private volatile ModuleThread wrapper;
+
+		public Shard(int index, long start, long end, boolean finished, String state)
+		{
+			this.index = index;
+			this.start = start;
+			this.end = end;
+			this.finished = finished;
+			this.state = state;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Returns the first row ID in this shard.
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * Returns the row ID after the last row ID in this shard, or -1 if
+		 * the shard is unbounded.
+		 */
+		public long getEnd() {
+			return end;
+		}
+
+		public boolean isFinished() {
+			if (wrapper != null && wrapper.isCompleted())
+				finished = true;
+			return finished;
+		}
+
+		public int getProcessedCount() {
+			if (wrapper == null)
+				return 0;
+			return wrapper.getProcessedCount();
+		}
+
+		public String getState() {
+			if (wrapper != null)
+				state = wrapper.getState();
+			return state;
+		}
+	}
 }
@@ -0,0 +1,61 @@
+package transparent.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reads and writes the variable-length integers of the second version of
+ * the binary module protocol. An unsigned value is written seven bits at
+ * a time, least significant first, with the high bit of each byte set if
+ * more bytes follow. Signed values are first zigzag-encoded, so that
+ * small negative values stay short.
+ */
+class Varint
+{
+	private static final int MAX_BYTES = 10;
+
+	private Varint() { }
+
+	public static long readUnsigned(DataInput in) throws IOException
+	{
+		long value = 0;
+		for (int i = 0; i < MAX_BYTES; i++) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << (7 * i);
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint.");
+	}
+
+	/**
+	 * Reads an unsigned value that must not exceed <code>max</code>.
+	 */
+	public static int readUnsigned(DataInput in, int max) throws IOException
+	{
+		long value = readUnsigned(in);
+		if (value < 0 || value > max)
+			throw new IOException("Value " + value + " exceeds " + max + ".");
+		return (int) value;
+	}
+
+	public static long readSigned(DataInput in) throws IOException
+	{
+		long value = readUnsigned(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	public static void writeUnsigned(DataOutput out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	public static void writeSigned(DataOutput out, long value) throws IOException {
+		writeUnsigned(out, (value << 1) ^ (value >> 63));
+	}
+}
@@ -0,0 +1,340 @@
+package transparent.core.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import transparent.core.Console;
+
+/**
+ * A pool of database connections, each with its own cache of prepared
+ * statements, so that threads query the database in parallel rather than
+ * one at a time over a single connection.
+ * <p>
+ * A connection is borrowed for the length of one operation and returned
+ * with {@link #release(PooledConnection)}. Connections idle for longer
+ * than the validation interval are checked before they are lent out, and
+ * connections held for longer than the leak threshold are reported once
+ * each, along with what the borrowing thread is doing at that point.
+ * Borrowing only records the time and the thread, so that leak detection
+ * costs nothing until a connection is actually held too long.
+ * <p>
+ * The pool is configured by the following optional properties of the
+ * database configuration file: <code>pool.min</code>, <code>pool.max</code>,
+ * <code>pool.max_wait</code> (in milliseconds),
+ * <code>pool.validation_interval</code> (in milliseconds),
+ * <code>pool.leak_threshold</code> (in milliseconds, or 0 to disable) and
+ * <code>pool.statement_cache</code> (in statements per connection).
+ */
+public class ConnectionPool
+{
+	private static final int DEFAULT_MIN_SIZE = 2;
+	private static final int DEFAULT_MAX_SIZE = 16;
+	private static final long DEFAULT_MAX_WAIT = 10000; /* in milliseconds */
+	private static final long DEFAULT_VALIDATION_INTERVAL = 30000; /* in milliseconds */
+	private static final long DEFAULT_LEAK_THRESHOLD = 60000; /* in milliseconds */
+	private static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+	private static final int VALIDATION_TIMEOUT = 5; /* in seconds */
+	private static final long EVICTION_PERIOD = 60000; /* in milliseconds */
+
+	private final String host;
+	private final String username;
+	private final String password;
+	private final long validationInterval;
+	private final long leakThreshold;
+	private final int statementCacheSize;
+
+	private final GenericObjectPool<PooledConnection> pool;
+
+	/* the connections currently lent out */
+	private final ConcurrentHashMap<PooledConnection, Boolean> borrowed =
+			new ConcurrentHashMap<PooledConnection, Boolean>();
+	private final Timer leakDetector;
+
+	private final AtomicLong borrows = new AtomicLong(0);
+	private final AtomicLong waitTime = new AtomicLong(0); /* in nanoseconds */
+	private final AtomicLong maxWaitTime = new AtomicLong(0); /* in nanoseconds */
+	private final AtomicLong timeouts = new AtomicLong(0);
+	private final AtomicLong leaks = new AtomicLong(0);
+	private final AtomicLong created = new AtomicLong(0);
+	private final AtomicLong statementHits = new AtomicLong(0);
+	private final AtomicLong statementMisses = new AtomicLong(0);
+
+	public ConnectionPool(String host, String username,
+			String password, Properties properties) throws SQLException
+	{
+		this.host = host;
+		this.username = username;
+		this.password = password;
+
+		int minSize = getInt(properties, "pool.min", DEFAULT_MIN_SIZE);
+		int maxSize = getInt(properties, "pool.max", DEFAULT_MAX_SIZE);
+		long maxWait = getLong(properties, "pool.max_wait", DEFAULT_MAX_WAIT);
+		this.validationInterval = getLong(properties,
+				"pool.validation_interval", DEFAULT_VALIDATION_INTERVAL);
+		this.leakThreshold = getLong(properties, "pool.leak_threshold", DEFAULT_LEAK_THRESHOLD);
+		this.statementCacheSize = getInt(properties,
+				"pool.statement_cache", DEFAULT_STATEMENT_CACHE_SIZE);
+		if (minSize < 0 || maxSize <= 0 || minSize > maxSize)
+			throw new IllegalArgumentException("Invalid connection pool size.");
+		if (statementCacheSize <= 0)
+			throw new IllegalArgumentException("Statement cache size must be positive.");
+
+		pool = new GenericObjectPool<PooledConnection>(new Factory());
+		pool.setMaxActive(maxSize);
+		pool.setMaxIdle(maxSize);
+		pool.setMinIdle(minSize);
+		pool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+		pool.setMaxWait(maxWait);
+		pool.setTestOnBorrow(true);
+		pool.setTestWhileIdle(true);
+		pool.setTimeBetweenEvictionRunsMillis(EVICTION_PERIOD);
+		pool.setLifo(true);
+
+		/* open one connection now, so that bad settings fail early */
+		release(borrow());
+
+		if (leakThreshold > 0) {
+			leakDetector = new Timer("connection-leak-detector", true);
+			leakDetector.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					findLeaks();
+				}
+			}, leakThreshold, leakThreshold / 2);
+		} else {
+			leakDetector = null;
+		}
+	}
+
+	/**
+	 * Borrows a connection, waiting for one to be returned if all are in
+	 * use.
+	 */
+	public PooledConnection borrow() throws SQLException
+	{
+		long started = System.nanoTime();
+		PooledConnection connection;
+		try {
+			connection = pool.borrowObject();
+		} catch (SQLException e) {
+			throw e;
+		} catch (NoSuchElementException e) {
+			timeouts.incrementAndGet();
+			throw new SQLException("Timed out while waiting for a database connection.", e);
+		} catch (Exception e) {
+			throw new SQLException("Unable to borrow a database connection.", e);
+		}
+
+		long waited = System.nanoTime() - started;
+		borrows.incrementAndGet();
+		waitTime.addAndGet(waited);
+		long max;
+		while (waited > (max = maxWaitTime.get())
+				&& !maxWaitTime.compareAndSet(max, waited)) { }
+
+		connection.borrowedAt = System.currentTimeMillis();
+		connection.borrower = (leakThreshold > 0) ? Thread.currentThread() : null;
+		connection.reported = false;
+		borrowed.put(connection, Boolean.TRUE);
+		return connection;
+	}
+
+	/**
+	 * Returns the given connection to the pool. Does nothing if it is null,
+	 * so that it can be called from a <code>finally</code> block.
+	 */
+	public void release(PooledConnection connection)
+	{
+		if (connection == null)
+			return;
+		borrowed.remove(connection);
+		connection.lastUsed = System.currentTimeMillis();
+		connection.borrower = null;
+		try {
+			if (connection.connection.isClosed())
+				pool.invalidateObject(connection);
+			else
+				pool.returnObject(connection);
+		} catch (Exception e) {
+			Console.printError("ConnectionPool", "release", "", e);
+		}
+	}
+
+	public void close()
+	{
+		if (leakDetector != null)
+			leakDetector.cancel();
+		try {
+			pool.close();
+		} catch (Exception e) {
+			Console.printError("ConnectionPool", "close", "", e);
+		}
+	}
+
+	private void findLeaks()
+	{
+		long now = System.currentTimeMillis();
+		for (PooledConnection connection : borrowed.keySet()) {
+			Thread borrower = connection.borrower;
+			if (connection.reported || borrower == null
+					|| now - connection.borrowedAt < leakThreshold)
+				continue;
+			connection.reported = true;
+			leaks.incrementAndGet();
+
+			/* the stack is only taken here, rather than on every borrow */
+			Exception holder = new Exception("Held by thread '" + borrower.getName() + "'.");
+			holder.setStackTrace(borrower.getStackTrace());
+			Console.printError("ConnectionPool", "findLeaks", "Connection held for "
+					+ (now - connection.borrowedAt) + " ms, possibly leaked.", holder);
+		}
+	}
+
+	/**
+	 * Returns the statistics of the pool, in a fixed order.
+	 */
+	public Map<String, Long> getStatistics()
+	{
+		long borrowCount = borrows.get();
+		LinkedHashMap<String, Long> statistics = new LinkedHashMap<String, Long>();
+		statistics.put("active_connections", (long) pool.getNumActive());
+		statistics.put("idle_connections", (long) pool.getNumIdle());
+		statistics.put("created_connections", created.get());
+		statistics.put("borrows", borrowCount);
+		statistics.put("wait_mean_us", (borrowCount == 0) ? 0 : waitTime.get() / borrowCount / 1000);
+		statistics.put("wait_max_us", maxWaitTime.get() / 1000);
+		statistics.put("wait_timeouts", timeouts.get());
+		statistics.put("leaks", leaks.get());
+		statistics.put("statement_cache_hits", statementHits.get());
+		statistics.put("statement_cache_misses", statementMisses.get());
+		return statistics;
+	}
+
+	private static int getInt(Properties properties, String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	private static long getLong(Properties properties, String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		return (value == null) ? defaultValue : Long.parseLong(value.trim());
+	}
+
+	private class Factory extends BasePoolableObjectFactory<PooledConnection>
+	{
+		@Override
+		public PooledConnection makeObject() throws SQLException {
+			Connection connection = DriverManager.getConnection(host, username, password);
+			created.incrementAndGet();
+			return new PooledConnection(connection);
+		}
+
+		@Override
+		public void destroyObject(PooledConnection connection) throws SQLException {
+			connection.close();
+		}
+
+		@Override
+		public boolean validateObject(PooledConnection connection)
+		{
+			/* a connection used recently is assumed to be alive */
+			if (System.currentTimeMillis() - connection.lastUsed < validationInterval)
+				return true;
+			try {
+				return connection.connection.isValid(VALIDATION_TIMEOUT);
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * A connection lent out by the pool, along with its prepared
+	 * statements, which are kept open for reuse. Statements prepared
+	 * through {@link #prepare(String)} belong to the connection, and must
+	 * not be closed; the least recently used are closed once there are
+	 * more than the cache holds.
+	 */
+	public class PooledConnection
+	{
+		private final Connection connection;
+		private final LinkedHashMap<String, PreparedStatement> statements;
+		private long lastUsed = System.currentTimeMillis();
+
+		/* the time and thread of the current borrowing, for leak reports */
+		private volatile long borrowedAt;
+		private volatile Thread borrower;
+		private volatile boolean reported;
+
+		private PooledConnection(Connection connection)
+		{
+			this.connection = connection;
+			this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+				{
+					if (size() <= statementCacheSize)
+						return false;
+					closeStatement(eldest.getValue());
+					return true;
+				}
+			};
+		}
+
+		public Connection getConnection() {
+			return connection;
+		}
+
+		/**
+		 * Returns a prepared statement for the given SQL, reusing the one
+		 * prepared last time if it is still cached. Its parameters are
+		 * cleared.
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException
+		{
+			PreparedStatement statement = statements.get(sql);
+			if (statement != null) {
+				statementHits.incrementAndGet();
+				statement.clearParameters();
+				return statement;
+			}
+
+			statementMisses.incrementAndGet();
+			statement = connection.prepareStatement(sql);
+			statements.put(sql, statement);
+			return statement;
+		}
+
+		private void close() throws SQLException
+		{
+			Iterator<PreparedStatement> iterator = statements.values().iterator();
+			while (iterator.hasNext()) {
+				closeStatement(iterator.next());
+				iterator.remove();
+			}
+			connection.close();
+		}
+
+		private void closeStatement(PreparedStatement statement) {
+			try {
+				statement.close();
+			} catch (SQLException e) { }
+		}
+	}
+}
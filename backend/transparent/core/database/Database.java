@@ -7,6 +7,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
 
 /**
@@ -24,6 +25,22 @@ public interface Database {
 
 	public ResultsIterator<ProductID> getProductIds(Module module);
 
+	/**
+	 * Returns the product IDs of the given module whose row IDs lie in
+	 * the range [<code>startRowId</code>, <code>endRowId</code>), in
+	 * order of row ID. An <code>endRowId</code> of -1 leaves the range
+	 * unbounded above. Since rows are found by their IDs, resuming a scan
+	 * after the last row ID seen costs no more than starting one.
+	 */
+	public ResultsIterator<ProductID> getProductIds(
+			Module module, long startRowId, long endRowId);
+
+	/**
+	 * Returns the smallest and largest row IDs of the products of the
+	 * given module, or null if the module has no products.
+	 */
+	public long[] getRowIdBounds(Module module);
+
 	@SuppressWarnings("unchecked") /* needed to suppress varargs warning */
 	public boolean addProductInfo(Module module,
 								  ProductID moduleProductId,
@@ -46,6 +63,12 @@ public interface Database {
 
 	public boolean isReservedKey(String key);
 
+	/**
+	 * Returns statistics of the database connections, such as how long
+	 * threads waited for one, by name in a fixed order.
+	 */
+	public Map<String, Long> getStatistics();
+
 	/* TODO: add API for deleting (both metadata and non-metadata) */
 
     public void close();
@@ -3,6 +3,7 @@ package transparent.core.database;
 import transparent.core.Console;
 import transparent.core.Module;
 import transparent.core.ProductID;
+import transparent.core.database.ConnectionPool.PooledConnection;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -11,9 +12,9 @@ import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.sql.CallableStatement;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -27,6 +28,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MariaDBDriver implements transparent.core.database.Database {
 
@@ -45,6 +53,23 @@ public class MariaDBDriver implements transparent.core.database.Database {
 
 	private static final int MAX_SEARCH_MATCHES = 2000;
 
+	private static final long COLUMN_SAVE_TIMEOUT = 10000; /* in milliseconds */
+	private static final long MIN_COLUMN_SAVE_RETRY = 1000; /* in milliseconds */
+	private static final long MAX_COLUMN_SAVE_RETRY = 60000; /* in milliseconds */
+
+	/* the text of statements by shape, so that statements which differ only
+	 * in their values are built once and share a prepared statement */
+	private static final int MAX_STATEMENT_SHAPES = 1024;
+	private static final ConcurrentHashMap<QueryShape, String> STATEMENTS =
+			new ConcurrentHashMap<QueryShape, String>();
+
+	/* the limits of a multi-row insert of product IDs, which must stay
+	 * below the server's max_allowed_packet, 1 MB by default */
+	private static final int MAX_INSERT_ROWS = 1000;
+	private static final long MAX_INSERT_BYTES = 262144; /* in bytes */
+	private static final int INSERT_ROW_OVERHEAD = 64; /* in bytes */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
 	private static final Map<String, Column> RESERVED_COLUMNS;
 	static {
 		Map<String, Column> reserved = new HashMap<String, Column>();
@@ -55,8 +80,11 @@ public class MariaDBDriver implements transparent.core.database.Database {
 		RESERVED_COLUMNS = Collections.unmodifiableMap(reserved);
 	}
 
-	/* NOTE: All static columns are added before dynamic columns */
-	private static Map<String, Column> COLUMNS = new LinkedHashMap<String, Column>();
+	/* NOTE: All static columns are added before dynamic columns. Once the
+	 * columns are loaded, the map is replaced rather than modified, so that
+	 * it can be read without locking */
+	private static volatile Map<String, Column> COLUMNS = new LinkedHashMap<String, Column>();
+	private static final Object COLUMNS_LOCK = new Object();
 	static {
 		COLUMNS.put(ENTITY_ID_COL.getName(), ENTITY_ID_COL);
 		COLUMNS.put(MODULE_ID_COL.getName(), MODULE_ID_COL);
@@ -65,7 +93,26 @@ public class MariaDBDriver implements transparent.core.database.Database {
 		COLUMNS.put(NAME_COL.getName(), NAME_COL);
 	}
 
-    private final Connection connection;
+    /* the results of queries are read in full by the driver, so they remain
+     * readable after their connection is returned to the pool */
+    private final ConnectionPool pool;
+
+	/* the columns are saved in the background whenever one is added, and a
+	 * failed save is retried with backoff until one succeeds; the version
+	 * counts the columns added, so that saves that would write nothing new
+	 * are skipped */
+	private final ScheduledThreadPoolExecutor columnSaver =
+			new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "column-saver");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private final AtomicLong columnVersion = new AtomicLong(0);
+	private final AtomicBoolean columnSaveRetrying = new AtomicBoolean(false);
+	private long savedColumnVersion = 0; /* guarded by this */
 
     public MariaDBDriver() throws SQLException, IOException, ClassNotFoundException {
         Properties properties = new Properties();
@@ -80,47 +127,100 @@ public class MariaDBDriver implements transparent.core.database.Database {
 		Class.forName(driver);
 
         Console.println("Connecting to database...");
-        connection = DriverManager.getConnection(host, username, password);
+        pool = new ConnectionPool(host, username, password, properties);
         Console.println("Successfully connected to database...");
 
+		/* close() saves the columns itself, rather than waiting out a retry */
+		columnSaver.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
 		loadColumns();
     }
 
     @Override
     public boolean addProductIds(Module module, String... moduleProductIds) {
-        CallableStatement statement = null;
-        String query = "{ CALL " + DATABASE_NAME +  ".AddProductId(?, ?) }";
+        /* each batch is a single statement, and so is applied atomically */
+        int start = 0;
+        while (start < moduleProductIds.length) {
+            int end = start;
+            long bytes = 0;
+            while (end < moduleProductIds.length && end - start < MAX_INSERT_ROWS
+                    && (end == start || bytes < MAX_INSERT_BYTES))
+            {
+                bytes += moduleProductIds[end].length() * 3 + INSERT_ROW_OVERHEAD;
+                end++;
+            }
 
-        try {
-            statement = connection.prepareCall(query);
+            if (!insertProductIds(module, moduleProductIds, start, end))
+                return false;
+            start = end;
+        }
+        return true;
+    }
 
-            for (String moduleProductId : moduleProductIds) {
-                statement.setLong(1, module.getId());
-                statement.setString(2, moduleProductId);
-                statement.executeUpdate();
-            }
+    /**
+     * Adds the product IDs in [<code>start</code>, <code>end</code>) with
+     * a single multi-row <code>INSERT IGNORE</code>, which skips the IDs
+     * already in the unique (module_id, module_product_hash) key. Its text
+     * differs with the number of rows, so it is prepared for this insert
+     * only, rather than pushing the connection's reused statements out of
+     * its statement cache.
+     */
+    private boolean insertProductIds(Module module,
+            String[] moduleProductIds, int start, int end)
+    {
+        StringBuilder query = new StringBuilder(
+                "INSERT IGNORE INTO Entity (`module_id`, `module_product_id`,"
+                + " `module_product_hash`, `dynamic_cols`) VALUES ");
+        for (int i = start; i < end; i++) {
+            if (i > start)
+                query.append(',');
+            query.append("(?, ?, ?, COLUMN_CREATE(1, NULL))");
+        }
 
+        PooledConnection connection = null;
+        PreparedStatement statement = null;
+        try {
+            connection = pool.borrow();
+            statement = connection.getConnection().prepareStatement(query.toString());
+            int index = 1;
+            for (int i = start; i < end; i++) {
+                statement.setLong(index++, module.getId());
+                statement.setString(index++, moduleProductIds[i]);
+                statement.setBytes(index++, hashProductId(moduleProductIds[i]));
+            }
+            statement.executeUpdate();
             return true;
         } catch (SQLException e) {
-            e.printStackTrace();
             module.logError("MariaDBDriver", "addProductIds", "", e);
-            return true;
+            return false;
         } finally {
             try {
-                if (statement != null) {
+                if (statement != null)
                     statement.close();
-                }
-            } catch (SQLException e) {
-                module.logError("MariaDBDriver", "addProductIds", "", e);
-            }
+            } catch (SQLException e) { }
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Returns the MD5 hash of the UTF-8 encoding of the given product ID,
+     * as <code>UNHEX(MD5(CONVERT(module_product_id USING utf8)))</code>
+     * computes it in the database.
+     */
+    private static byte[] hashProductId(String moduleProductId) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(moduleProductId.getBytes(UTF8));
+        } catch (NoSuchAlgorithmException e) {
+            /* every Java platform is required to support MD5 */
+            throw new IllegalStateException(e);
         }
     }
 
     @Override
     public ResultSetIterator getProductIds(Module module) {
-        PreparedStatement statement = null;
+        PooledConnection connection = null;
         try {
-            statement = buildSelectStatement(null,
+            connection = pool.borrow();
+            PreparedStatement statement = buildSelectStatement(connection, null,
 											 new Column[] { ENTITY_ID_COL, MODULE_PRODUCT_ID_COL },
                                              new Column[] { MODULE_ID_COL },
 											 new Relation[] { Relation.EQUALS },
@@ -132,163 +232,213 @@ public class MariaDBDriver implements transparent.core.database.Database {
             module.logError("MariaDBDriver", "getProductIds", "", e);
             return null;
         } finally {
-            if (statement != null) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                    module.logError("MariaDBDriver", "getProductIds", "", e);
-                }
-            }
+            pool.release(connection);
         }
     }
 
-	private final boolean addProductInfoHelper(Module module, ProductID productId, Entry<String, Object>... keyValues) {
-		PreparedStatement statement = null;
+    @Override
+    public ResultSetIterator getProductIds(Module module, long startRowId, long endRowId) {
+        PooledConnection connection = null;
+        try {
+			Column[] whereClause;
+			Relation[] whereRelation;
+			Object[] whereArgs;
+			if (endRowId == -1) {
+				whereClause = new Column[] { MODULE_ID_COL, ENTITY_ID_COL };
+				whereRelation = new Relation[] { Relation.EQUALS, Relation.GREATER_THAN };
+				whereArgs = new Object[] { module.getId(), startRowId - 1 };
+			} else {
+				whereClause = new Column[] { MODULE_ID_COL, ENTITY_ID_COL, ENTITY_ID_COL };
+				whereRelation = new Relation[] {
+						Relation.EQUALS, Relation.GREATER_THAN, Relation.LESS_THAN };
+				whereArgs = new Object[] { module.getId(), startRowId - 1, endRowId };
+			}
+
+            connection = pool.borrow();
+            PreparedStatement statement = buildSelectStatement(connection, null,
+											 new Column[] { ENTITY_ID_COL, MODULE_PRODUCT_ID_COL },
+                                             whereClause, whereRelation, whereArgs,
+                                             null, ENTITY_ID_COL, true, null, null);
+            return new ResultSetIterator(module, statement.executeQuery());
+        } catch (SQLException e) {
+            module.logError("MariaDBDriver", "getProductIds", "", e);
+            return null;
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    @Override
+    public long[] getRowIdBounds(Module module) {
+        PooledConnection connection = null;
+        try {
+			String query = "SELECT MIN(" + ENTITY_ID_COL.getName() + "),MAX("
+					+ ENTITY_ID_COL.getName() + ") FROM " + ENTITY_TABLE
+					+ " WHERE " + MODULE_ID_COL.getName() + "=?";
+            connection = pool.borrow();
+            PreparedStatement statement = connection.prepare(query);
+			statement.setLong(1, module.getId());
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next() || resultSet.getObject(1) == null)
+				return null;
+			return new long[] { resultSet.getLong(1), resultSet.getLong(2) };
+        } catch (SQLException e) {
+            module.logError("MariaDBDriver", "getRowIdBounds", "", e);
+            return null;
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    @Override
+    @SafeVarargs
+    public final boolean addProductInfo(Module module,
+                                        ProductID productId,
+                                        Entry<String, Object>... keyValues)
+	{
+		if (keyValues.length == 0)
+			return true;
+
+		PooledConnection connection = null;
         try {
 			Column[] setClause = new Column[keyValues.length];
 			Object[] setArgs = new Object[keyValues.length];
             for (int i = 0; i < keyValues.length; i++)
 			{
 				Entry<String, Object> pair = keyValues[i];
-				setClause[i] = COLUMNS.get(pair.getKey());
-				if (setClause[i] == null) {
-					if (pair.getValue() instanceof String) {
-						setClause[i] = new Column(pair.getKey(), Type.STRING, false);
-						COLUMNS.put(setClause[i].getName(), setClause[i]);
-					} else if (pair.getValue() instanceof Number) {
-						setClause[i] = new Column(pair.getKey(), Type.NUMBER, false);
-						COLUMNS.put(setClause[i].getName(), setClause[i]);
-					} else
-						throw new IllegalArgumentException("Unrecognized value type at index "  + i + ".");
-				}
+				setClause[i] = getColumn(pair.getKey(), pair.getValue());
+				if (setClause[i] == null)
+					throw new IllegalArgumentException("Unrecognized value type at index "  + i + ".");
 				setArgs[i] = pair.getValue();
 			}
 
-            statement = buildUpdateStatement(setClause, setArgs,
+            connection = pool.borrow();
+            PreparedStatement statement = buildUpdateStatement(connection, setClause, setArgs,
 											 new Column[] { ENTITY_ID_COL },
 											 new Relation[] { Relation.EQUALS },
 											 new Object[] { productId.getRowId() });
-			saveColumns();
             statement.executeUpdate();
         } catch (SQLException e) {
 			StringBuilder builder = new StringBuilder();
-			if (keyValues.length == 0)
-				builder.append("keyValues: {}");
-			else {
-				builder.append("keyValues: {");
-				builder.append(keyValues[0].getKey() + ":");
-				if (keyValues[0].getValue() instanceof String)
-					builder.append("'" + keyValues[0].getValue() + "'");
-				for (int i = 1; i < keyValues.length; i++) {
-					builder.append("," + keyValues[i].getKey() + ":");
-					if (keyValues[i].getValue() instanceof String)
-						builder.append("'" + keyValues[i].getValue() + "'");
-				}
-				builder.append("}");
+			builder.append("keyValues: {");
+			builder.append(keyValues[0].getKey() + ":");
+			if (keyValues[0].getValue() instanceof String)
+				builder.append("'" + keyValues[0].getValue() + "'");
+			for (int i = 1; i < keyValues.length; i++) {
+				builder.append("," + keyValues[i].getKey() + ":");
+				if (keyValues[i].getValue() instanceof String)
+					builder.append("'" + keyValues[i].getValue() + "'");
 			}
+			builder.append("}");
             module.logError("MariaDBDriver", "addProductInfo", builder.toString(), e);
             return false;
         } finally {
-            if (statement != null) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                    module.logError("MariaDBDriver", "addProductInfo", "", e);
-                }
-            }
+            pool.release(connection);
         }
 
         return true;
-	}
+    }
 
-    @Override
-    @SafeVarargs
-    public final boolean addProductInfo(Module module,
-                                        ProductID productId,
-                                        Entry<String, Object>... keyValues)
-{
-		Column[] setClause = new Column[keyValues.length];
-		Object[] setArgs = new Object[keyValues.length];
-        for (int i = 0; i < keyValues.length; i++)
-		{
-			Entry<String, Object> pair = keyValues[i];
-			setClause[i] = COLUMNS.get(pair.getKey());
-			if (setClause[i] == null) {
-				if (pair.getValue() instanceof String) {
-					setClause[i] = new Column(pair.getKey(), Type.STRING, false);
-					COLUMNS.put(setClause[i].getName(), setClause[i]);
-				} else if (pair.getValue() instanceof Number) {
-					setClause[i] = new Column(pair.getKey(), Type.NUMBER, false);
-					COLUMNS.put(setClause[i].getName(), setClause[i]);
-				} else
-					throw new IllegalArgumentException("Unrecognized value type at index "  + i + ".");
-			}
-			setArgs[i] = pair.getValue();
-		}
-
-		int dynamicCount = 0;
-		int startIndex = 0;
-		boolean broken = false;
-		ArrayList<Column> setArray = new ArrayList<Column>();
-		for (int i = 0; i < setClause.length; i++) {
-			if (!setClause[i].isStatic())
-				dynamicCount++;
-			if (dynamicCount == 3) {
-				broken = true;
-				Entry<String, Object>[] newKeyValues = Arrays.copyOfRange(keyValues, startIndex, i + 1);
-				addProductInfoHelper(module, productId, newKeyValues);
-				startIndex = i + 1;
-			}
+	/**
+	 * Returns the column with the given name, adding a dynamic column of
+	 * the type of the given value if there is none. Returns null if the
+	 * value has no column type.
+	 */
+	private Column getColumn(String name, Object value)
+	{
+		Column column = COLUMNS.get(name);
+		if (column != null)
+			return column;
+
+		synchronized (COLUMNS_LOCK) {
+			column = COLUMNS.get(name);
+			if (column != null)
+				return column;
+			if (value instanceof String)
+				column = new Column(name, Type.STRING, false);
+			else if (value instanceof Number)
+				column = new Column(name, Type.NUMBER, false);
+			else
+				return null;
+
+			Map<String, Column> columns = new LinkedHashMap<String, Column>(COLUMNS);
+			columns.put(name, column);
+			COLUMNS = columns;
+			columnVersion.incrementAndGet();
 		}
-		if (broken) {
-			Entry<String, Object>[] newKeyValues = Arrays.copyOfRange(keyValues, startIndex, setClause.length);
-			if (newKeyValues.length > 0)
-				return addProductInfoHelper(module, productId, newKeyValues);
+
+		saveColumnsLater(0);
+		return column;
+	}
+
+	/**
+	 * Saves the columns in the background after the given delay. If the
+	 * save fails, it is tried again after twice the delay, up to
+	 * {@link #MAX_COLUMN_SAVE_RETRY}, with only one such retry pending at
+	 * a time.
+	 */
+	private void saveColumnsLater(final long delay)
+	{
+		try {
+			columnSaver.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (saveColumns()) {
+						if (delay > 0)
+							columnSaveRetrying.set(false);
+						return;
+					}
+					if (delay > 0 || columnSaveRetrying.compareAndSet(false, true))
+						saveColumnsLater(Math.min(Math.max(2 * delay, MIN_COLUMN_SAVE_RETRY),
+								MAX_COLUMN_SAVE_RETRY));
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			/* the driver is closing, and saves the columns itself */
 		}
-		return true;
-    }
+	}
 
     @Override
     public String getMetadata(String key) {
-        PreparedStatement statement = null;
-
+        PooledConnection connection = null;
         try {
-			String query = "SELECT `meta_value` FROM Metadata WHERE `meta_key`=?";
-            statement = connection.prepareStatement(query);
-			statement.setString(1, key);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                return resultSet.getString(1);
-            } else {
-                return null;
-            }
+            connection = pool.borrow();
+            return getMetadata(connection, key);
         } catch (SQLException e) {
             Console.printError("MariaDBDriver", "getMetadata", "", e);
             return null;
         } finally {
-            if (statement != null) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                    Console.printError("MariaDBDriver", "getMetadata", "", e);
-                }
-            }
+            pool.release(connection);
+        }
+    }
+
+    private String getMetadata(PooledConnection connection, String key) throws SQLException {
+		String query = "SELECT `meta_value` FROM Metadata WHERE `meta_key`=?";
+        PreparedStatement statement = connection.prepare(query);
+		statement.setString(1, key);
+        ResultSet resultSet = statement.executeQuery();
+        if (resultSet.next()) {
+            return resultSet.getString(1);
+        } else {
+            return null;
         }
     }
 
     @Override
     public boolean setMetadata(String key, String value) {
-        PreparedStatement statement = null;
+        PooledConnection connection = null;
         try {
-            if (getMetadata(key) != null) {
-				String query = "UPDATE Metadata SET `meta_value`=? WHERE `meta_key`=?";
-		        statement = connection.prepareStatement(query);
-				statement.setString(1, value);
-				statement.setString(2, key);
-                statement.executeUpdate();
-            } else {
+            connection = pool.borrow();
+			String update = "UPDATE Metadata SET `meta_value`=? WHERE `meta_key`=?";
+	        PreparedStatement updateStatement = connection.prepare(update);
+			updateStatement.setString(1, value);
+			updateStatement.setString(2, key);
+
+			/* an update that changes nothing may count no rows, so check
+			 * that the key is missing before inserting it */
+            if (updateStatement.executeUpdate() == 0 && getMetadata(connection, key) == null) {
 				String query = "INSERT INTO Metadata VALUES(?,?)";
-		        statement = connection.prepareStatement(query);
+		        PreparedStatement statement = connection.prepare(query);
 				statement.setString(1, key);
 				statement.setString(2, value);
                 statement.executeUpdate();
@@ -299,23 +449,28 @@ public class MariaDBDriver implements transparent.core.database.Database {
             Console.printError("MariaDBDriver", "setMetadata", "", e);
             return false;
         } finally {
-            if (statement != null) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                    Console.printError("MariaDBDriver", "setMetadata", "", e);
-                }
-            }
+            pool.release(connection);
         }
     }
 
     @Override
-    public void close() {
-        try {
-            connection.close();
-        } catch (SQLException e) {
-            Console.printError("MariaDBDriver", "close", "", e);
-        }
+    public void close()
+	{
+		columnSaver.shutdown();
+		try {
+			columnSaver.awaitTermination(COLUMN_SAVE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		saveColumns();
+        pool.close();
+    }
+
+    @Override
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>(pool.getStatistics());
+        statistics.put("statement_shapes", (long) STATEMENTS.size());
+        return statistics;
     }
 
     @Override
@@ -330,7 +485,7 @@ public class MariaDBDriver implements transparent.core.database.Database {
 						 Integer startRow,
 						 Integer rowCount)
 	{
-        PreparedStatement statement = null;
+        PooledConnection connection = null;
         try {
 			Column[] selectColumns = null;
 			if (select != null) {
@@ -357,7 +512,8 @@ public class MariaDBDriver implements transparent.core.database.Database {
 				}
 			}
 
-			statement = buildSelectStatement(query,
+			connection = pool.borrow();
+			PreparedStatement statement = buildSelectStatement(connection, query,
 											 selectColumns,
 											 whereColumns,
 											 whereRelation,
@@ -371,13 +527,7 @@ public class MariaDBDriver implements transparent.core.database.Database {
             Console.printError("MariaDBDriver", "queryWithAttributes", "", e);
             return null;
         } finally {
-            try {
-                if (statement != null) {
-                    statement.close();
-                }
-            } catch (SQLException e) {
-                Console.printError("MariaDBDriver", "queryWithAttributes", "", e);
-            }
+            pool.release(connection);
         }
     }
 
@@ -403,25 +553,46 @@ public class MariaDBDriver implements transparent.core.database.Database {
 		}
 	}
 
-	private void saveColumns()
+	/**
+	 * Saves the columns, unless they have not changed since they were last
+	 * saved. Columns are only ever appended, so the columns are written
+	 * before their count; if only the first write succeeds, the columns
+	 * that were saved before are still loaded. Returns false if the save
+	 * failed.
+	 */
+	private synchronized boolean saveColumns()
 	{
-		if (!setMetadata("column_count", String.valueOf(COLUMNS.size()))) {
-			Console.printError("MariaDBDriver", "saveColumns",
-				"Unable to save column count.");
-		}
+		/* read the version first, so the columns are at least as new */
+		long version = columnVersion.get();
+		Map<String, Column> columns = COLUMNS;
+		if (version <= savedColumnVersion)
+			return true;
 
 		try {
 			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
 			DataOutputStream out = new DataOutputStream(bytes);
-			for (Column col : COLUMNS.values()) {
+			for (Column col : columns.values()) {
 					col.save(out);
 			}
 			out.flush();
-			setMetadata("columns", bytes.toString());
+			if (!setMetadata("columns", bytes.toString())) {
+				Console.printError("MariaDBDriver", "saveColumns",
+					"Unable to save columns.");
+				return false;
+			}
 		} catch (IOException e) {
 			Console.printError("MariaDBDriver", "saveColumns",
 				"Unable to save columns.", e);
+			return false;
+		}
+
+		if (!setMetadata("column_count", String.valueOf(columns.size()))) {
+			Console.printError("MariaDBDriver", "saveColumns",
+				"Unable to save column count.");
+			return false;
 		}
+		savedColumnVersion = version;
+		return true;
 	}
 
 	private Object checkType(Column clause, Object arg) {
@@ -437,8 +608,7 @@ public class MariaDBDriver implements transparent.core.database.Database {
 		}
 	}
 
-	private void appendWhereStatement(StringBuilder builder,
-									  List<Object> parameters,
+	private void appendWhereStatement(QueryBuilder builder,
 									  Column[] whereClause,
 									  Relation[] whereRelation,
 									  Object[] whereArgs)
@@ -454,10 +624,10 @@ public class MariaDBDriver implements transparent.core.database.Database {
 			for (int i = 0; i < whereClause.length; i++) {
 				if (whereArgs[i] instanceof String || whereArgs[i] instanceof Number)
 				{
-					whereClause[i].appendQueryString(builder, parameters);
-					builder.append(whereRelation[i]);
+					whereClause[i].appendQueryString(builder);
+					builder.append(whereRelation[i].toString());
 					builder.append("?");
-					parameters.add(checkType(whereClause[i], whereArgs[i]));
+					builder.addParameter(checkType(whereClause[i], whereArgs[i]));
 				}
 				else if (whereArgs[i] instanceof String[] || whereArgs[i] instanceof Number[])
 				{
@@ -467,7 +637,7 @@ public class MariaDBDriver implements transparent.core.database.Database {
 						throw new IllegalArgumentException("Arrays must be non-empty.");
 					}
 
-					whereClause[i].appendQueryString(builder, parameters);
+					whereClause[i].appendQueryString(builder);
 					switch (whereRelation[i]) {
 					case EQUALS:
 						break;
@@ -478,11 +648,17 @@ public class MariaDBDriver implements transparent.core.database.Database {
 						throw new IllegalArgumentException("Can only use EQUALS or "
 								+ "NOT_EQUALS relations for array values.");
 					}
+
+					/* pad the list with its last value, which changes nothing */
 					builder.append(" IN (?");
-					parameters.add(checkType(whereClause[i], whereArg[0]));
-					for (int j = 1; j < whereArg.length; j++) {
+					Object last = checkType(whereClause[i], whereArg[0]);
+					builder.addParameter(last);
+					int arity = getArity(whereArg.length);
+					for (int j = 1; j < arity; j++) {
+						if (j < whereArg.length)
+							last = checkType(whereClause[i], whereArg[j]);
 						builder.append(",?");
-						parameters.add(checkType(whereClause[i], whereArg[j]));
+						builder.addParameter(last);
 					}
 					builder.append(") ");
 				} else {
@@ -496,7 +672,56 @@ public class MariaDBDriver implements transparent.core.database.Database {
 		}
 	}
 
-    private PreparedStatement buildSelectStatement(String query,
+	/**
+	 * Returns the number of placeholders used for an IN list of the given
+	 * length, the next power of two, so that lists of similar lengths
+	 * share a statement.
+	 */
+	private static int getArity(int length) {
+		return (length <= 1) ? 1 : Integer.highestOneBit(length - 1) << 1;
+	}
+
+	private static int[] getArities(Object[] whereArgs)
+	{
+		if (whereArgs == null)
+			return null;
+		int[] arities = new int[whereArgs.length];
+		for (int i = 0; i < whereArgs.length; i++) {
+			if (whereArgs[i] instanceof Object[])
+				arities[i] = getArity(((Object[]) whereArgs[i]).length);
+		}
+		return arities;
+	}
+
+	/**
+	 * Returns a prepared statement with the text built for the given
+	 * shape, or with the text cached for it, bound to the parameters
+	 * collected by the builder.
+	 */
+	private PreparedStatement prepare(PooledConnection connection,
+									  QueryShape shape, QueryBuilder builder) throws SQLException
+	{
+		String sql = builder.getText();
+		if (builder.isBuildingText()) {
+			if (STATEMENTS.size() >= MAX_STATEMENT_SHAPES)
+				STATEMENTS.clear();
+			STATEMENTS.put(shape, sql);
+		}
+
+		PreparedStatement statement = connection.prepare(sql);
+		List<Object> parameters = builder.getParameters();
+		for (int i = 0; i < parameters.size(); i++) {
+			if (parameters.get(i) instanceof String) {
+				statement.setString(i + 1, (String) parameters.get(i));
+			} else if (parameters.get(i) instanceof Number) {
+				statement.setLong(i + 1, ((Number) parameters.get(i)).longValue());
+			}
+		}
+		return statement;
+	}
+
+    private PreparedStatement buildSelectStatement(PooledConnection connection,
+												   String query,
 												   Column[] select,
 												   Column[] whereClause,
 												   Relation[] whereRelation,
@@ -507,21 +732,24 @@ public class MariaDBDriver implements transparent.core.database.Database {
 												   Integer startRow,
 												   Integer rowCount) throws SQLException
 	{
-        StringBuilder builder = new StringBuilder();
-		List<Object> parameters = new ArrayList<Object>();
+		boolean limit = (startRow != null || rowCount != null);
+		QueryShape shape = new QueryShape("SELECT", query != null, select,
+				whereClause, whereRelation, getArities(whereArgs),
+				groupBy, orderBy, orderAsc, limit);
+		QueryBuilder builder = new QueryBuilder(STATEMENTS.get(shape));
 
         builder.append("SELECT ");
 
 		if (select != null && select.length > 0) {
-			select[0].appendQueryString(builder, parameters);
+			select[0].appendQueryString(builder);
 		    for (int i = 1; i < select.length; i++) {
 		        builder.append(",");
-				select[i].appendQueryString(builder, parameters);
+				select[i].appendQueryString(builder);
 		    }
 		} else {
 			for (Column col : COLUMNS.values()) {
 				if (col.isStatic()) {
-					col.appendQueryString(builder, parameters);
+					col.appendQueryString(builder);
 					builder.append(",");
 				} else {
 					break;
@@ -541,21 +769,21 @@ public class MariaDBDriver implements transparent.core.database.Database {
 			builder.append(" FROM ");
 			builder.append(NAME_INDEX_TABLE);
 			builder.append(" WHERE query=?) t1 USING (");
-			parameters.add(query + ";mode=any;limit=" + MAX_SEARCH_MATCHES);
+			builder.addParameter(query + ";mode=any;limit=" + MAX_SEARCH_MATCHES);
 			builder.append(ENTITY_ID_COL.getName());
 			builder.append(") ");
 		}
 
-		appendWhereStatement(builder, parameters, whereClause, whereRelation, whereArgs);
+		appendWhereStatement(builder, whereClause, whereRelation, whereArgs);
 		
 		if (groupBy != null) {
 			builder.append(" GROUP BY ");
-			groupBy.appendQueryString(builder, parameters);
+			groupBy.appendQueryString(builder);
 		}
 
         if (orderBy != null) {
 			builder.append(" ORDER BY ");
-			orderBy.appendQueryString(builder, parameters);
+			orderBy.appendQueryString(builder);
 
 			if (orderAsc) {
 				builder.append(" ASC");
@@ -564,91 +792,69 @@ public class MariaDBDriver implements transparent.core.database.Database {
 			}
         }
 
-        if (startRow == null) {
-			if (rowCount != null) {
-	            builder.append(" LIMIT 1,");
-				builder.append(rowCount);
-			}
-        } else {
-			if (rowCount == null) {
-	            builder.append(" LIMIT ");
-	            builder.append(startRow);
-	            builder.append(',');
-	            builder.append(1 << 64 - 1);
-			} else {
-	            builder.append(" LIMIT ");
-	            builder.append(startRow);
-	            builder.append(',');
-	            builder.append(rowCount);
-			}
+		/* the offset and count are bound, so that pages share a statement */
+        if (limit) {
+            builder.append(" LIMIT ?,?");
+            builder.addParameter((startRow == null) ? 1 : startRow);
+            builder.addParameter((rowCount == null) ? Long.MAX_VALUE : rowCount);
         }
 
-        PreparedStatement statement = connection.prepareStatement(builder.toString());
-
-		int index = 1;
-		for (int i = 0; i < parameters.size(); i++) {
-			if (parameters.get(i) instanceof String) {
-				statement.setString(index++, (String) parameters.get(i));
-			} else {
-				statement.setLong(index++, ((Number) parameters.get(i)).longValue());
-			}
-		}
-
-        return statement;
+        return prepare(connection, shape, builder);
     }
 
-    private PreparedStatement buildUpdateStatement(Column[] setClause,
+    private PreparedStatement buildUpdateStatement(PooledConnection connection,
+												   Column[] setClause,
                                                    Object[] setArgs,
 												   Column[] whereClause,
 												   Relation[] whereRelation,
                                                    Object[] whereArgs) throws SQLException
 	{
-        StringBuilder builder = new StringBuilder("UPDATE ");
-		List<Object> parameters = new ArrayList<Object>();
+		if (setClause == null || setClause.length == 0)
+			throw new IllegalArgumentException("Must have at least one set clause.");
+
+		QueryShape shape = new QueryShape("UPDATE", setClause,
+				whereClause, whereRelation, getArities(whereArgs));
+		QueryBuilder builder = new QueryBuilder(STATEMENTS.get(shape));
 
+        builder.append("UPDATE ");
         builder.append(ENTITY_TABLE);
         builder.append(" SET ");
 
-		if (setClause == null || setClause.length == 0)
-			throw new IllegalArgumentException("Must have at least one set clause.");
-
-		StringBuilder dynamicBuilder = new StringBuilder(DYNAMIC_COLS);
-		List<Object> dynamicParameters = new ArrayList<Object>();
-		dynamicBuilder.append("=COLUMN_ADD(");
-		dynamicBuilder.append(DYNAMIC_COLS);
+		boolean first = true;
         for (int i = 0; i < setClause.length; i++) {
 			if (setClause[i].isStatic()) {
-				setClause[i].appendQueryString(builder, parameters);
-				builder.append("=?,");
-				parameters.add(checkType(setClause[i], setArgs[i]));
-			} else {
-	            dynamicBuilder.append(",'");
-				dynamicBuilder.append(setClause[i].getName());
-	            dynamicBuilder.append("',?");
-				dynamicParameters.add(checkType(setClause[i], setArgs[i]));
+				if (!first)
+					builder.append(",");
+				setClause[i].appendQueryString(builder);
+				builder.append("=?");
+				builder.addParameter(checkType(setClause[i], setArgs[i]));
+				first = false;
 			}
         }
-		dynamicBuilder.append(") ");
-		if (dynamicParameters.size() == 0)
-			builder.deleteCharAt(builder.length() - 1);
-		else {
-			builder.append(dynamicBuilder);
-			parameters.addAll(dynamicParameters);
-		}
-
-		appendWhereStatement(builder, parameters, whereClause, whereRelation, whereArgs);
-
-        PreparedStatement statement = connection.prepareStatement(builder.toString());
 
-		for (int i = 0; i < parameters.size(); i++) {
-			if (parameters.get(i) instanceof String) {
-				statement.setString(i + 1, (String) parameters.get(i));
-			} else if (parameters.get(i) instanceof Number) {
-				statement.setLong(i + 1, ((Number) parameters.get(i)).longValue());
+		boolean dynamic = false;
+        for (int i = 0; i < setClause.length; i++) {
+			if (setClause[i].isStatic())
+				continue;
+			if (!dynamic) {
+				if (!first)
+					builder.append(",");
+				builder.append(DYNAMIC_COLS);
+				builder.append("=COLUMN_ADD(");
+				builder.append(DYNAMIC_COLS);
+				dynamic = true;
 			}
-		}
+            builder.append(",'");
+			builder.append(setClause[i].getName());
+            builder.append("',?");
+			builder.addParameter(checkType(setClause[i], setArgs[i]));
+        }
+		if (dynamic)
+			builder.append(") ");
+
+		appendWhereStatement(builder, whereClause, whereRelation, whereArgs);
 
-        return statement;
+        return prepare(connection, shape, builder);
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -753,17 +959,17 @@ public class MariaDBDriver implements transparent.core.database.Database {
 			return this.name;
 		}
 
-		public void appendQueryString(StringBuilder builder, List<Object> parameters)
+		public void appendQueryString(QueryBuilder builder)
 		{
 			if (isStatic) {
-				builder.append('`');
+				builder.append("`");
 				builder.append(name);
-				builder.append('`');
+				builder.append("`");
 			} else {
 				builder.append("COLUMN_GET(");
 				builder.append(DYNAMIC_COLS);
 				builder.append(",?");
-				parameters.add(name);
+				builder.addParameter(name);
 				switch (type) {
 				case NUMBER:
 					builder.append(" AS INT) ");
@@ -787,6 +993,86 @@ public class MariaDBDriver implements transparent.core.database.Database {
 			String name = in.readUTF();
 			return new Column(name, type, isStatic);
 		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof Column))
+				return false;
+			Column column = (Column) other;
+			return name.equals(column.name)
+				&& type == column.type && isStatic == column.isStatic;
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+	}
+
+	/**
+	 * What determines the text of a statement: its kind, columns,
+	 * relations, IN list arities, ordering and whether it is limited.
+	 * Values, including the offset and count of a limit, are bound as
+	 * parameters and are not part of the shape.
+	 */
+	private static class QueryShape
+	{
+		private final Object[] parts;
+		private final int hash;
+
+		public QueryShape(Object... parts) {
+			this.parts = parts;
+			this.hash = Arrays.deepHashCode(parts);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof QueryShape
+				&& Arrays.deepEquals(parts, ((QueryShape) other).parts);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Collects the text and parameters of a statement. If the text of the
+	 * statement is already known, only its parameters are collected.
+	 */
+	private static class QueryBuilder
+	{
+		private final String text;
+		private final StringBuilder builder;
+		private final List<Object> parameters = new ArrayList<Object>();
+
+		public QueryBuilder(String text) {
+			this.text = text;
+			this.builder = (text == null) ? new StringBuilder() : null;
+		}
+
+		public void append(String string) {
+			if (builder != null)
+				builder.append(string);
+		}
+
+		public void addParameter(Object parameter) {
+			parameters.add(parameter);
+		}
+
+		public boolean isBuildingText() {
+			return builder != null;
+		}
+
+		public String getText() {
+			return (builder == null) ? text : builder.toString();
+		}
+
+		public List<Object> getParameters() {
+			return parameters;
+		}
 	}
 
 	private static class MariaDBResults implements Results {
@@ -13,6 +13,8 @@ CREATE TABLE IF NOT EXISTS scratch2.Entity (
     `entity_id` INT UNSIGNED PRIMARY KEY AUTO_INCREMENT NOT NULL,
 	`module_id` BIGINT NOT NULL, INDEX(`module_id`),
     `module_product_id` TEXT, INDEX(`module_product_id`(10)),
+	`module_product_hash` BINARY(16) NOT NULL,
+	UNIQUE KEY `module_product` (`module_id`, `module_product_hash`),
 	`gid` BIGINT, INDEX(`gid`),
 	`name` VARCHAR(2048), INDEX(`name`(10)),
 	`dynamic_cols` BLOB
@@ -34,16 +36,10 @@ CREATE PROCEDURE scratch2.AddProductId(
     IN moduleProductId TEXT)
     SQL SECURITY INVOKER
 BEGIN
-    DECLARE generatedEntityId INT;
-
-	SELECT `entity_id` from Entity WHERE
-		`module_product_id`=moduleProductId AND
-		`module_id`=moduleIdLong INTO generatedEntityId;
-
-    IF generatedEntityId IS NULL THEN
-        INSERT INTO Entity
-			VALUES(NULL, moduleIdLong, moduleProductId, NULL, NULL, COLUMN_CREATE(1, NULL));
-    END IF;
+	INSERT IGNORE INTO Entity
+		(`module_id`, `module_product_id`, `module_product_hash`, `dynamic_cols`)
+		VALUES(moduleIdLong, moduleProductId,
+			UNHEX(MD5(CONVERT(moduleProductId USING utf8))), COLUMN_CREATE(1, NULL));
 END//
 
 DELIMITER ;
@@ -0,0 +1,37 @@
+-- Adds the unique (module_id, module_product_hash) key used by the batched
+-- inserts of MariaDBDriver.addProductIds to a database created by an older
+-- init.sql. Duplicate product IDs of a module, which the old AddProductId
+-- procedure could insert when called concurrently, are removed, keeping
+-- the row with the lowest entity_id.
+
+ALTER TABLE scratch2.Entity
+	ADD COLUMN `module_product_hash` BINARY(16) NOT NULL AFTER `module_product_id`;
+
+UPDATE scratch2.Entity
+	SET `module_product_hash` = UNHEX(MD5(CONVERT(`module_product_id` USING utf8)));
+
+DELETE duplicate FROM scratch2.Entity AS duplicate
+	JOIN scratch2.Entity AS original
+	ON duplicate.`module_id` = original.`module_id`
+		AND duplicate.`module_product_hash` = original.`module_product_hash`
+		AND duplicate.`entity_id` > original.`entity_id`;
+
+ALTER TABLE scratch2.Entity
+	ADD UNIQUE KEY `module_product` (`module_id`, `module_product_hash`);
+
+DELIMITER //
+
+DROP PROCEDURE IF EXISTS scratch2.AddProductId;
+
+CREATE PROCEDURE scratch2.AddProductId(
+	IN moduleIdLong BIGINT,
+    IN moduleProductId TEXT)
+    SQL SECURITY INVOKER
+BEGIN
+	INSERT IGNORE INTO Entity
+		(`module_id`, `module_product_id`, `module_product_hash`, `dynamic_cols`)
+		VALUES(moduleIdLong, moduleProductId,
+			UNHEX(MD5(CONVERT(moduleProductId USING utf8))), COLUMN_CREATE(1, NULL));
+END//
+
+DELIMITER ;
@@ -1,32 +1,19 @@
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
-public class AmazonParser
-{
-	private static final byte PRODUCT_LIST_REQUEST = 0;
-	private static final byte PRODUCT_INFO_REQUEST = 1;
-	private static final byte MODULE_RESPONSE = 0;
-	private static final byte MODULE_HTTP_GET_REQUEST = 1;
-
-	private static final int TYPE_LONG = 0;
-	private static final int TYPE_STRING = 1;
+import transparent.modules.sdk.BinaryModule;
+import transparent.modules.sdk.DelimitedStateCodec;
 
-	private static final int BUFFER_SIZE = 4096;
-	private static final int DOWNLOAD_OK = 0;
-
-	private static final Charset ASCII = Charset.forName("US-ASCII");
+public class AmazonParser extends BinaryModule<State>
+{
 	private static final Charset UTF8 = Charset.forName("UTF-8");
 	
 	private static final String SORT_BY_PRICE = "&sort=price";
@@ -86,116 +73,29 @@ public class AmazonParser
 		"http://www.amazon.com/s/ref=sr_nr_n_18?rh=n%3A172282%2Cn%3A!493964%2Cn%3A541966%2Cn%3A193870011%2Cn%3A3310626011"
 	};
 
-	private static final DataOutputStream out =
-			new DataOutputStream(System.out);
-	private static final DataInputStream in =
-			new DataInputStream(System.in);
-
-	private static byte[] httpResponse() throws IOException
-	{
-		/* ignore the HTTP content type field */
-		int length = in.readUnsignedShort();
-		byte[] data = new byte[length];
-		in.readFully(data);
-
-		ByteArrayOutputStream response = new ByteArrayOutputStream(BUFFER_SIZE);
-		length = in.readUnsignedShort();
-		while (length != 0) {
-			data = new byte[length];
-			in.readFully(data);
-			response.write(data);
-			length = in.readUnsignedShort();
-		}
-		
-		int errorCode = in.readUnsignedByte();
-		if (errorCode != DOWNLOAD_OK) {
-			System.err.println("AmazonParser.httpResponse ERROR:"
-					+ " Error occurred during download.");
-			return null;
-		}
-
-		return response.toByteArray();
-	}
-
-	private static byte[] httpGetRequest(String url) throws IOException
-	{
-		out.writeByte(MODULE_HTTP_GET_REQUEST);
-		out.writeShort(url.length());
-		out.write(url.getBytes(ASCII));
-		out.flush();
-
-		return httpResponse();
-	}
-	
-	private static byte[] encodeState(int category, int page, String lowPrice)
-	{
-		String state = category + "|" + page + "|" + lowPrice;
-		return state.getBytes(UTF8);
-	}
-	
-	private static State decodeState(byte[] state)
-	{
-		if (state == null || state.length == 0)
-			return null;
-
-		try {
-			String[] tokens = new String(state, UTF8).split("\\|");
-			int category = Integer.parseInt(tokens[0]);
-			int page = Integer.parseInt(tokens[1]);
-			String lowPrice = tokens[2];
-			if (lowPrice.equals("null"))
-				lowPrice = null;
-			return new State(category, page, lowPrice);
-		} catch (Exception e) {
-			System.err.println("AmazonParser.decodeState: Could not decode state. "
-					+ e.getClass().getSimpleName() + " thrown. " + e.getMessage());
-			return null;
-		}
-	}
+	private static final DelimitedStateCodec<State> STATE_CODEC =
+			new DelimitedStateCodec<State>("|") {
+				@Override
+				protected Object[] toFields(State state) {
+					return new Object[] { state.getCategory(), state.getPage(), state.getLowPrice() };
+				}
 
+				@Override
+				protected State fromFields(String[] fields) {
+					int category = Integer.parseInt(fields[0]);
+					int page = Integer.parseInt(fields[1]);
+					String lowPrice = fields[2];
+					if (lowPrice.equals("null"))
+						lowPrice = null;
+					return new State(category, page, lowPrice);
+				}
+			};
 
-	private static void respond(ArrayList<String> productIds,
-			int category, int page, String lowPrice) throws IOException
-	{
-		byte[] state = encodeState(category, page, lowPrice);
-
-		out.writeByte(MODULE_RESPONSE);
-		out.writeShort(state.length);
-		out.write(state);
-		out.writeShort(productIds.size());
-		for (String productId : productIds) {
-			byte[] data = productId.getBytes(UTF8);
-			out.writeShort(data.length);
-			out.write(data);
-		}
-		out.flush();
+	public AmazonParser() {
+		super("AmazonParser", STATE_CODEC, true);
 	}
 
-	private static void respond(Map<String, Object> keyValues) throws IOException
-	{
-		out.writeByte(MODULE_RESPONSE);
-		out.writeShort(keyValues.size());
-		for (Entry<String, Object> pair : keyValues.entrySet()) {
-			String keyString = pair.getKey().trim().toLowerCase();
-			byte[] key = keyString.getBytes(UTF8);
-			out.writeShort(key.length);
-			out.write(key);
-
-			Object valueObject = pair.getValue();
-			if (valueObject instanceof String) {
-				byte[] value = ((String) valueObject).getBytes(UTF8);
-				out.writeByte(TYPE_STRING);
-				out.writeShort(value.length);
-				out.write(value);
-			} else if (valueObject instanceof Number) {
-				out.writeByte(TYPE_LONG);
-				out.writeLong(((Number) valueObject).longValue());
-			}
-		}
-		out.flush();
-	}
-	
-	private static void parseCategory(int category, int startPage, String lowPrice)
+	private void parseCategory(int category, int startPage, String lowPrice)
 	{
 		String url = CATEGORY_URLS[category];
 
@@ -216,6 +116,8 @@ public class AmazonParser
 						+ " Error requesting URL '" + request + "'.");
 				return;
 			}
+			if (data == null)
+				return;
 
 			/* get the current result position and total result count */
 			Document document = Jsoup.parse(new String(data, UTF8));
@@ -238,7 +140,7 @@ public class AmazonParser
 			
 			/* send the product IDs to the core */
 			try {
-				respond(productIds, category, page, lowPrice);
+				respond(productIds, new State(category, page, lowPrice));
 			} catch (IOException e) {
 				System.err.println("AmazonParser.parseCategory ERROR:"
 						+ " Error responding with product ID list.");
@@ -279,7 +181,8 @@ public class AmazonParser
 		}
 	}
 
-	private static void getProductList(State state)
+	@Override
+	protected void getProductList(State state)
 	{
 		/* first get the list of stores from the root JSON document */
 		for (int i = 0; i < CATEGORY_URLS.length; i++) {
@@ -357,7 +260,7 @@ public class AmazonParser
 		keyValues.put(key, value);
 	}
 
-	private static void parseTechnicalDetails(
+	private void parseTechnicalDetails(
 			Map<String, Object> keyValues, String productId)
 	{
 		String url = TECHNICAL_DETAILS_URL + productId;
@@ -370,6 +273,8 @@ public class AmazonParser
 					+ " Error requesting URL '" + url + "'.");
 			return;
 		}
+		if (data == null)
+			return;
 
 		Document document = Jsoup.parse(new String(data, UTF8));
 		Elements elements = document.select(".bucket");
@@ -392,7 +297,8 @@ public class AmazonParser
 		}
 	}
 
-	private static void parseProductInfo(String productId)
+	@Override
+	protected boolean getProductInfo(String productId)
 	{
 		String url = PRODUCT_URL + productId;
 
@@ -402,12 +308,12 @@ public class AmazonParser
 			data = httpGetRequest(url);
 			if (data == null || data.length == 0) {
 				respond(keyValues);
-				return;
+				return true;
 			}
 		} catch (IOException e) {
-			System.err.println("AmazonParser.parseProductInfo ERROR:"
+			System.err.println("AmazonParser.getProductInfo ERROR:"
 					+ " Error requesting URL '" + url + "'.");
-			return;
+			return false;
 		}
 
 		Document document = Jsoup.parse(new String(data, UTF8));
@@ -490,44 +396,15 @@ public class AmazonParser
 		try {
 			respond(keyValues);
 		} catch (IOException e) {
-			System.err.println("NeweggParser.parseProductInfo ERROR:"
+			System.err.println("AmazonParser.getProductInfo ERROR:"
 					+ " Error responding with product information.");
-			return;
+			return false;
 		}
+		return true;
 	}
 
-	public static void main(String[] args)
-	{
-		try {
-			/* wait for the type of request */
-			switch (in.readUnsignedByte()) {
-			case PRODUCT_LIST_REQUEST:
-				State previous = null;
-				int length = in.readUnsignedShort();
-				if (length > 0) {
-					byte[] data = new byte[length];
-					in.readFully(data);
-					previous = decodeState(data);
-				}
-				getProductList(previous);
-				break;
-			case PRODUCT_INFO_REQUEST:
-				length = in.readUnsignedShort();
-				while (length > 0) {
-					byte[] data = new byte[length];
-					in.readFully(data);
-					parseProductInfo(new String(data, UTF8));
-					length = in.readUnsignedShort();
-				}
-				break;
-			default:
-			}
-
-		} catch (IOException e) {
-			System.err.println("AmazonParser.main ERROR:"
-					+ " Error communicating with core.");
-			return;
-		}
+	public static void main(String[] args) {
+		new AmazonParser().run();
 	}
 }
 
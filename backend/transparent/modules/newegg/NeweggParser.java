@@ -1,6 +1,3 @@
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -9,7 +6,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import org.jsoup.Jsoup;
@@ -22,22 +18,15 @@ import net.minidev.json.JSONObject;
 import net.minidev.json.parser.JSONParser;
 import net.minidev.json.parser.ParseException;
 
-public class NeweggParser
+import transparent.modules.sdk.Batch;
+import transparent.modules.sdk.BinaryModule;
+import transparent.modules.sdk.DelimitedStateCodec;
+import transparent.modules.sdk.Page;
+
+public class NeweggParser extends BinaryModule<State>
 {
 	private static final boolean PARSE_IMAGES = true;
 
-	private static final byte PRODUCT_LIST_REQUEST = 0;
-	private static final byte PRODUCT_INFO_REQUEST = 1;
-	private static final byte MODULE_RESPONSE = 0;
-	private static final byte MODULE_HTTP_GET_REQUEST = 1;
-
-	private static final int TYPE_LONG = 0;
-	private static final int TYPE_STRING = 1;
-
-	private static final int BUFFER_SIZE = 4096;
-	private static final int DOWNLOAD_OK = 0;
-
-	private static final Charset ASCII = Charset.forName("US-ASCII");
 	private static final Charset UTF8 = Charset.forName("UTF-8");
 
 	private static final String ROOT_URL =
@@ -151,117 +140,39 @@ public class NeweggParser
 					"Desktop Graphics Cards",			"Professional Graphics Cards"
 			));
 
-	private static final JSONParser parser =
+	/* not thread-safe, so not shared by processes in the core's JVM */
+	private final JSONParser parser =
 			new JSONParser(JSONParser.DEFAULT_PERMISSIVE_MODE);
 
-	private static final DataOutputStream out =
-			new DataOutputStream(System.out);
-	private static final DataInputStream in =
-			new DataInputStream(System.in);
-
-	private static byte[] httpResponse() throws IOException
-	{
-		/* ignore the HTTP content type field */
-		int length = in.readUnsignedShort();
-		byte[] data = new byte[length];
-		in.readFully(data);
-
-		ByteArrayOutputStream response = new ByteArrayOutputStream(BUFFER_SIZE);
-		length = in.readUnsignedShort();
-		while (length != 0) {
-			data = new byte[length];
-			in.readFully(data);
-			response.write(data);
-			length = in.readUnsignedShort();
-		}
-
-		int errorCode = in.readUnsignedByte();
-		if (errorCode != DOWNLOAD_OK) {
-			System.err.println("NeweggParser.httpResponse ERROR:"
-					+ " Error occurred during download.");
-			return null;
-		}
-
-		return response.toByteArray();
-	}
-
-	private static byte[] httpGetRequest(String url) throws IOException
-	{
-		out.writeByte(MODULE_HTTP_GET_REQUEST);
-		out.writeShort(url.length());
-		out.write(url.getBytes(ASCII));
-		out.flush();
-
-		return httpResponse();
-	}
-	
-	private static byte[] encodeState(Subcategory subcategory, int page)
-	{
-		String state = subcategory.getCategoryId() + "."
-				+ subcategory.getSubcategoryId() + "." + page;
-		return state.getBytes(UTF8);
-	}
-	
-	private static State decodeState(byte[] state)
-	{
-		if (state == null || state.length == 0)
-			return null;
+	private static final DelimitedStateCodec<State> STATE_CODEC =
+			new DelimitedStateCodec<State>(".") {
+				@Override
+				protected Object[] toFields(State state) {
+					Subcategory subcategory = state.getSubcategory();
+					return new Object[] { subcategory.getCategoryId(),
+							subcategory.getSubcategoryId(), state.getPage() };
+				}
 
-		try {
-			String[] tokens = new String(state, UTF8).split("\\.");
-			int categoryId = Integer.parseInt(tokens[0]);
-			int subcategoryId = Integer.parseInt(tokens[1]);
-			int page = Integer.parseInt(tokens[2]);
-			return new State(new Subcategory(null, categoryId, subcategoryId, null), page);
-		} catch (Exception e) {
-			System.err.println("NeweggParser.decodeState: Could not decode state. " + e.getMessage());
-			return null;
-		}
-	}
+				@Override
+				protected State fromFields(String[] fields) {
+					int categoryId = Integer.parseInt(fields[0]);
+					int subcategoryId = Integer.parseInt(fields[1]);
+					int page = Integer.parseInt(fields[2]);
+					return new State(new Subcategory(null, categoryId, subcategoryId, null), page);
+				}
+			};
 
-	private static void respond(ArrayList<String> productIds,
-			Subcategory subcategory, int page) throws IOException
-	{
-		byte[] state = encodeState(subcategory, page);
-		
-		out.writeByte(MODULE_RESPONSE);
-		out.writeShort(state.length);
-		out.write(state);
-		out.writeShort(productIds.size());
-		for (String productId : productIds) {
-			byte[] data = productId.getBytes(UTF8);
-			out.writeShort(data.length);
-			out.write(data);
-		}
-		out.flush();
+	public NeweggParser() {
+		super("NeweggParser", STATE_CODEC, true);
 	}
 
-	private static void respond(Map<String, Object> keyValues) throws IOException
+	@Override
+	protected void respond(Map<String, Object> keyValues) throws IOException
 	{
 		keyValues.remove("features");
 		keyValues.remove("windows vista");
 		keyValues.remove("operating systems supported");
-
-		out.writeByte(MODULE_RESPONSE);
-		out.writeShort(keyValues.size());
-		for (Entry<String, Object> pair : keyValues.entrySet()) {
-			String keyString = pair.getKey().trim().toLowerCase();
-			byte[] key = keyString.getBytes(UTF8);
-			out.writeShort(key.length);
-			out.write(key);
-
-			Object valueObject = pair.getValue();
-			if (valueObject instanceof String) {
-				byte[] value = ((String) valueObject).getBytes(UTF8);
-				out.writeByte(TYPE_STRING);
-				out.writeShort(value.length);
-				out.write(value);
-			} else if (valueObject instanceof Number) {
-				out.writeByte(TYPE_LONG);
-				out.writeLong(((Number) valueObject).longValue());
-			}
-		}
-		out.flush();
+		super.respond(keyValues);
 	}
 
 	private static void findKeyValues(
@@ -327,18 +238,18 @@ public class NeweggParser
 		return result.values().iterator().next();
 	}
 
-	private static HashSet<Subcategory> parseCategory(
+	private static String getCategoryUrl(
 			Object storeId, Object categoryId, Object nodeId)
 	{
-		byte[] data;
-		String url = CATEGORY_URL + storeId + '/'
-				+ categoryId + '/' + nodeId;
-		
-		try {
-			data = httpGetRequest(url);
-		} catch (IOException e) {
+		return CATEGORY_URL + storeId + '/' + categoryId + '/' + nodeId;
+	}
+
+	private HashSet<Subcategory> parseCategory(
+			Object storeId, Object categoryId, byte[] data)
+	{
+		if (data == null) {
 			System.err.println("NeweggParser.parseCategory ERROR:"
-					+ " Error requesting URL '" + url + "'.");
+					+ " Error requesting category " + categoryId + ".");
 			return null;
 		}
 
@@ -362,7 +273,7 @@ public class NeweggParser
 		return subcategories;
 	}
 
-	private static void parseSubcategory(Subcategory subcategory, int pageStart)
+	private void parseSubcategory(Subcategory subcategory, int pageStart)
 	{
 		ArrayList<String> productIds = new ArrayList<String>(20);
 		for (int pageNumber = pageStart;; pageNumber++) {
@@ -381,6 +292,8 @@ public class NeweggParser
 						+ " Error requesting URL '" + url + "'.");
 				return;
 			}
+			if (data == null)
+				return;
 
 			Document document = Jsoup.parse(new String(data, UTF8));
 			Elements elements = document.select("a.listCell");
@@ -394,7 +307,7 @@ public class NeweggParser
 			
 			/* send the product IDs to the core */
 			try {
-				respond(productIds, subcategory, pageNumber);
+				respond(productIds, new State(subcategory, pageNumber));
 			} catch (IOException e) {
 				System.err.println("NeweggParser.parseSubcategory ERROR:"
 						+ " Error responding with product ID list.");
@@ -404,7 +317,8 @@ public class NeweggParser
 		}
 	}
 
-	private static void getProductList(State previous)
+	@Override
+	protected void getProductList(State previous)
 	{
 		/* first get the list of stores from the root JSON document */
 		byte[] data;
@@ -415,6 +329,8 @@ public class NeweggParser
 					+ " Error requesting URL '" + ROOT_URL + "'.");
 			return;
 		}
+		if (data == null)
+			return;
 
 		Object parsed;
 		try {
@@ -443,6 +359,8 @@ public class NeweggParser
 					+ " Error requesting URL '" + url + "'.");
 			return;
 		}
+		if (data == null)
+			return;
 
 		try {
 			parsed = parser.parse(data);
@@ -455,10 +373,29 @@ public class NeweggParser
 		/* for each category, get a list of subcategories */
 		HashMap<Object, JSONObject> result =
 				findKeyValues(DESCRIPTION_KEY, STORE_DESCRIPTIONS, parsed);
+		ArrayList<JSONObject> categories = new ArrayList<JSONObject>(result.values());
+		String[] urls = new String[categories.size()];
+		for (int i = 0; i < urls.length; i++) {
+			JSONObject category = categories.get(i);
+			urls[i] = getCategoryUrl(storeId,
+					category.get(CATEGORY_ID), category.get(NODE_ID));
+		}
+
+		/* parse each category page as soon as it is downloaded */
 		HashSet<Subcategory> subcategories = new HashSet<Subcategory>();
-		for (JSONObject category : result.values()) {
-			subcategories.addAll(parseCategory(
-					storeId, category.get(CATEGORY_ID), category.get(NODE_ID)));
+		try {
+			Batch batch = httpBatchGet(urls);
+			while (batch.hasNext()) {
+				Page page = batch.next();
+				HashSet<Subcategory> found = parseCategory(storeId,
+						categories.get(page.getIndex()).get(CATEGORY_ID), page.getData());
+				if (found != null)
+					subcategories.addAll(found);
+			}
+		} catch (IOException e) {
+			System.err.println("NeweggParser.getProductList ERROR:"
+					+ " Error requesting category pages.");
+			return;
 		}
 
 		/* for each subcategory, get a list of products */
@@ -484,7 +421,8 @@ public class NeweggParser
 		}
 	}
 
-	private static boolean parseProductInfo(String productId)
+	@Override
+	protected boolean getProductInfo(String productId)
 	{
 		byte[] data;
 		String url = PRODUCT_URL + productId + PRODUCT_URL_SUFFIX;
@@ -497,7 +435,7 @@ public class NeweggParser
 				return true;
 			}
 		} catch (IOException e) {
-			System.err.println("NeweggParser.parseProductInfo ERROR:"
+			System.err.println("NeweggParser.getProductInfo ERROR:"
 					+ " Error requesting URL '" + url + "'.");
 			return false;
 		}
@@ -506,7 +444,7 @@ public class NeweggParser
 		try {
 			parsed = parser.parse(data);
 		} catch (ParseException e) {
-			System.err.println("NeweggParser.parseProductInfo ERROR:"
+			System.err.println("NeweggParser.getProductInfo ERROR:"
 					+ " Error parsing JSON.");
 			return false;
 		}
@@ -524,7 +462,7 @@ public class NeweggParser
 				return true;
 			}
 		} catch (IOException e) {
-			System.err.println("NeweggParser.parseProductInfo ERROR:"
+			System.err.println("NeweggParser.getProductInfo ERROR:"
 					+ " Error requesting URL '" + url + "'.");
 			return false;
 		}
@@ -532,12 +470,12 @@ public class NeweggParser
 		try {
 			parsed = parser.parse(data);
 		} catch (ParseException e) {
-			System.err.println("NeweggParser.parseProductInfo ERROR:"
+			System.err.println("NeweggParser.getProductInfo ERROR:"
 					+ " Error parsing JSON.");
 			return false;
 		}
 		if (!(parsed instanceof JSONObject)) {
-			System.err.println("NeweggParser.parseProductInfo ERROR:"
+			System.err.println("NeweggParser.getProductInfo ERROR:"
 					+ " Expected a JSON map at root.");
 			return false;
 		}
@@ -556,7 +494,7 @@ public class NeweggParser
 		if (PARSE_IMAGES) {
 			Object image = map.get("Image");
 			if (!(image instanceof JSONObject)) {
-				System.err.println("NeweggParser.parseProductInfo ERROR:"
+				System.err.println("NeweggParser.getProductInfo ERROR:"
 						+ " Expected a map value for key 'Image'.");
 				return false;
 			}
@@ -570,7 +508,7 @@ public class NeweggParser
 		try {
 			respond(keyValues);
 		} catch (IOException e) {
-			System.err.println("NeweggParser.parseProductInfo ERROR:"
+			System.err.println("NeweggParser.getProductInfo ERROR:"
 					+ " Error responding with product information.");
 			return false;
 		}
@@ -578,39 +516,8 @@ public class NeweggParser
 		return true;
 	}
 
-	public static void main(String[] args)
-	{
-		try {
-			/* wait for the type of request */
-			switch (in.readUnsignedByte()) {
-			case PRODUCT_LIST_REQUEST:
-				State previous = null;
-				int length = in.readUnsignedShort();
-				if (length > 0) {
-					byte[] data = new byte[length];
-					in.readFully(data);
-					previous = decodeState(data);
-				}
-				getProductList(previous);
-				break;
-			case PRODUCT_INFO_REQUEST:
-				length = in.readUnsignedShort();
-				while (length > 0) {
-					byte[] data = new byte[length];
-					in.readFully(data);
-					if (!parseProductInfo(new String(data, UTF8)))
-						break;
-					length = in.readUnsignedShort();
-				}
-				break;
-			default:
-			}
-
-		} catch (IOException e) {
-			System.err.println("NeweggParser.main ERROR:"
-					+ " Error communicating with core.");
-			return;
-		}
+	public static void main(String[] args) {
+		new NeweggParser().run();
 	}
 }
 
@@ -0,0 +1,71 @@
+package transparent.modules.sdk;
+
+import java.io.IOException;
+
+/**
+ * The pages of a batch request, which the core downloads concurrently and
+ * sends back in the order they complete. Pages are read from the core as
+ * they are asked for, so a module can parse each page while the rest are
+ * still downloading.
+ * <p>
+ * A module must not send another message to the core until every page of
+ * the batch has been read; {@link BinaryModule} reads any pages left over
+ * before it sends the next message.
+ */
+public class Batch
+{
+	private final BinaryModule<?> module;
+	private final BinaryCodec codec;
+	private final boolean blocked;
+	private final int size;
+	private int received = 0;
+
+	Batch(BinaryModule<?> module, BinaryCodec codec, boolean blocked, int size) {
+		this.module = module;
+		this.codec = codec;
+		this.blocked = blocked;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the number of URLs in the batch.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean hasNext() {
+		return received < size;
+	}
+
+	/**
+	 * Waits for the next page to complete, and returns it. The index of
+	 * its URL in the request is given by {@link Page#getIndex()}.
+	 */
+	public Page next() throws IOException
+	{
+		if (received == size)
+			throw new IllegalStateException("All pages of the batch were received.");
+		module.awaitPage();
+		int index = codec.readUnsignedShort();
+		if (index >= size)
+			throw new IOException("Invalid batch page index " + index + ".");
+		received++;
+		return codec.readPage(index, blocked);
+	}
+
+	/**
+	 * Waits for the remaining pages, and returns the contents of every
+	 * page not yet received, in the order of the request. Pages that were
+	 * already received, or could not be downloaded, are null.
+	 */
+	public byte[][] awaitAll() throws IOException
+	{
+		byte[][] pages = new byte[size][];
+		while (hasNext()) {
+			Page page = next();
+			pages[page.getIndex()] = page.getData();
+		}
+		return pages;
+	}
+}
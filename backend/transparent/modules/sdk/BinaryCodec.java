@@ -0,0 +1,353 @@
+package transparent.modules.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the fields of the binary module protocol through
+ * buffered streams. Strings are encoded, and pages are assembled, in
+ * buffers that are reused across messages, so that a message allocates
+ * little more than the values it carries.
+ * <p>
+ * Writes are buffered until the codec next reads, or until
+ * {@link #flush()}, so a whole response goes out in one write. Since the
+ * core only sends the next request after it has seen the response to the
+ * previous one, every read first flushes whatever was written.
+ * <p>
+ * Once the second version of the protocol is negotiated, lengths and
+ * counts are written as varints (seven bits per byte, least significant
+ * first), and longs as zigzag varints. Writes may also be collected into
+ * records, which are then sent together in one message. Not thread-safe.
+ */
+public class BinaryCodec
+{
+	private static final int STREAM_BUFFER_SIZE = 65536; /* in bytes */
+	private static final int INITIAL_PAGE_SIZE = 65536; /* in bytes */
+	private static final int MAX_PAGE_SIZE = 16777216; /* 16 MB */
+	private static final int MAX_STRING_SIZE = 1048576; /* in bytes */
+	private static final int MAX_VARINT_BYTES = 10;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private boolean unflushed = false;
+	private boolean protocolV2 = false;
+
+	/* records being collected, and where writes currently go */
+	private final ByteArrayOutputStream records = new ByteArrayOutputStream(65536);
+	private final DataOutputStream recordOut = new DataOutputStream(records);
+	private int recordCount = 0;
+	private DataOutputStream target;
+
+	/* the encoded form of the string being written or read */
+	private byte[] scratch = new byte[256];
+
+	/* the page being assembled from its blocks */
+	private byte[] page = new byte[INITIAL_PAGE_SIZE];
+
+	public BinaryCodec(InputStream in, OutputStream out) {
+		this.in = new DataInputStream(new BufferedInputStream(in, STREAM_BUFFER_SIZE));
+		this.out = new DataOutputStream(new BufferedOutputStream(out, STREAM_BUFFER_SIZE));
+		this.target = this.out;
+	}
+
+	/**
+	 * Switches the encoding of lengths, counts and longs to the second
+	 * version of the protocol, or back.
+	 */
+	public void setProtocolV2(boolean protocolV2) {
+		this.protocolV2 = protocolV2;
+	}
+
+	public boolean isProtocolV2() {
+		return protocolV2;
+	}
+
+	/**
+	 * Returns the number of bytes that can be read without blocking.
+	 */
+	public int available() throws IOException {
+		return in.available();
+	}
+
+	private void beforeRead() throws IOException
+	{
+		if (unflushed) {
+			out.flush();
+			unflushed = false;
+		}
+	}
+
+	/**
+	 * Returns the next byte, or -1 if the stream has ended. Used to read
+	 * the type of the next request.
+	 */
+	public int read() throws IOException {
+		beforeRead();
+		return in.read();
+	}
+
+	public int readUnsignedByte() throws IOException {
+		beforeRead();
+		return in.readUnsignedByte();
+	}
+
+	public int readUnsignedShort() throws IOException {
+		beforeRead();
+		return in.readUnsignedShort();
+	}
+
+	public int readInt() throws IOException {
+		beforeRead();
+		return in.readInt();
+	}
+
+	public long readVarint() throws IOException
+	{
+		long value = 0;
+		for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+			int b = readUnsignedByte();
+			value |= (long) (b & 0x7F) << (7 * i);
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint.");
+	}
+
+	/**
+	 * Reads a length or count: an unsigned short, or a varint in the
+	 * second version of the protocol.
+	 */
+	public int readLength() throws IOException
+	{
+		if (!protocolV2)
+			return readUnsignedShort();
+		long length = readVarint();
+		if (length > MAX_STRING_SIZE)
+			throw new IOException("Length " + length + " is too large.");
+		return (int) length;
+	}
+
+	/**
+	 * Reads a UTF-8 string prefixed by its length.
+	 */
+	public String readString() throws IOException
+	{
+		return readString(readLength());
+	}
+
+	/**
+	 * Reads a UTF-8 string of the given length in bytes, for when the
+	 * length was already read.
+	 */
+	public String readString(int length) throws IOException
+	{
+		if (length == 0)
+			return "";
+		if (length > scratch.length)
+			scratch = new byte[Math.max(length, 2 * scratch.length)];
+		beforeRead();
+		in.readFully(scratch, 0, length);
+		return new String(scratch, 0, length, UTF8);
+	}
+
+	/**
+	 * Reads a downloaded page, in the blocked or whole format, along with
+	 * its status. The page is assembled in the codec's buffer, and only
+	 * copied out once it is complete. <code>index</code> is recorded in
+	 * the returned page, for pages of a batch.
+	 */
+	public Page readPage(int index, boolean blocked) throws IOException
+	{
+		/* the content type length is an unsigned short in every version */
+		String contentType = readString(readUnsignedShort());
+
+		int length = 0;
+		if (blocked) {
+			int block = in.readUnsignedShort();
+			while (block != 0) {
+				ensurePageCapacity(length + block);
+				in.readFully(page, length, block);
+				length += block;
+				block = in.readUnsignedShort();
+			}
+		} else {
+			length = in.readInt();
+			if (length < 0 || length > MAX_PAGE_SIZE)
+				throw new IOException("Invalid page length " + length + ".");
+			ensurePageCapacity(length);
+			in.readFully(page, 0, length);
+		}
+
+		int status = in.readUnsignedByte();
+		if (status != ModuleProtocol.DOWNLOAD_OK)
+			return new Page(index, status, contentType, null);
+		return new Page(index, status, contentType, Arrays.copyOf(page, length));
+	}
+
+	private void ensurePageCapacity(int size) throws IOException
+	{
+		if (size <= page.length)
+			return;
+		if (size > MAX_PAGE_SIZE)
+			throw new IOException("Page exceeds " + MAX_PAGE_SIZE + " bytes.");
+		page = Arrays.copyOf(page, Math.min(Math.max(size, 2 * page.length), MAX_PAGE_SIZE));
+	}
+
+	public void writeByte(int value) throws IOException {
+		target.writeByte(value);
+		unflushed = true;
+	}
+
+	public void writeShort(int value) throws IOException {
+		target.writeShort(value);
+		unflushed = true;
+	}
+
+	public void writeInt(int value) throws IOException {
+		target.writeInt(value);
+		unflushed = true;
+	}
+
+	public void writeVarint(long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0) {
+			target.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		target.writeByte((int) value);
+		unflushed = true;
+	}
+
+	/**
+	 * Writes a long, as a zigzag varint in the second version of the
+	 * protocol.
+	 */
+	public void writeLong(long value) throws IOException
+	{
+		if (protocolV2)
+			writeVarint((value << 1) ^ (value >> 63));
+		else
+			target.writeLong(value);
+		unflushed = true;
+	}
+
+	/**
+	 * Writes a length or count: an unsigned short, or a varint in the
+	 * second version of the protocol.
+	 */
+	public void writeLength(int length) throws IOException
+	{
+		if (protocolV2)
+			writeVarint(length);
+		else
+			writeShort(length);
+	}
+
+	/**
+	 * Writes the given string as UTF-8, prefixed by its length in bytes.
+	 * Throws an {@link IOException} if the encoded string is too long to
+	 * be sent.
+	 */
+	public void writeString(String value) throws IOException
+	{
+		int length = encode(value);
+		int max = protocolV2 ? MAX_STRING_SIZE : ModuleProtocol.MAX_USHORT;
+		if (length > max)
+			throw new IOException("String of " + length + " bytes is too long to send.");
+		writeLength(length);
+		target.write(scratch, 0, length);
+		unflushed = true;
+	}
+
+	/**
+	 * Directs the following writes into a new record, until
+	 * {@link #endRecord()}.
+	 */
+	public void beginRecord() {
+		target = recordOut;
+	}
+
+	public void endRecord()
+	{
+		target = out;
+		recordCount++;
+	}
+
+	/**
+	 * Returns the number of records collected since they were last sent.
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Sends the collected records as one message of the given type,
+	 * prefixed by their count.
+	 */
+	public void writeRecords(int type) throws IOException
+	{
+		if (recordCount == 0)
+			return;
+		out.writeByte(type);
+		writeVarint(recordCount);
+		records.writeTo(out);
+		records.reset();
+		recordCount = 0;
+		unflushed = true;
+	}
+
+	/**
+	 * Encodes the given string as UTF-8 into the scratch buffer, and
+	 * returns the encoded length. Unpaired surrogates become '?'.
+	 */
+	private int encode(String value)
+	{
+		int count = value.length();
+		if (3 * count > scratch.length)
+			scratch = new byte[Math.max(3 * count, 2 * scratch.length)];
+
+		byte[] buf = scratch;
+		int pos = 0;
+		for (int i = 0; i < count; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buf[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < count
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+				buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				buf[pos++] = '?';
+			} else {
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Sends everything written so far.
+	 */
+	public void flush() throws IOException
+	{
+		out.flush();
+		unflushed = false;
+	}
+}
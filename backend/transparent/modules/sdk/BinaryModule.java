@@ -0,0 +1,388 @@
+package transparent.modules.sdk;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The base of a module that speaks the binary protocol over its standard
+ * input and output. Subclasses implement the product list and product
+ * info requests, and call {@link #run()} from <code>main</code>; this
+ * class handles the handshake, the request loop and the encoding of
+ * every message.
+ * <p>
+ * The module offers to be persistent, so one process may serve many
+ * requests. If the core offers the second version of the protocol, the
+ * module accepts it along with windowed product info requests: each
+ * product's information becomes a record, and records are sent together
+ * whenever the module has no more requests waiting, with keys sent once
+ * and then referred to by index. <code>S</code> is the type of the
+ * module's crawl state,
+ * which is converted to and from the string stored by the core with the
+ * given {@link StateCodec}.
+ */
+public abstract class BinaryModule<S>
+{
+	private final String name;
+	private final StateCodec<S> stateCodec;
+	private final boolean blocked;
+	private final BinaryCodec codec;
+
+	/* a batch whose pages have not all been read */
+	private Batch pending = null;
+
+	/* negotiated in the handshake */
+	private boolean windowed = false;
+	private final HashMap<String, Integer> keys = new HashMap<String, Integer>();
+
+	/* the request ID of the product whose information is being gathered */
+	private long requestId = 0;
+
+	/*
+	 * product IDs, and their request IDs, that the core sent ahead of a
+	 * page, and whether the end of the IDs was among them
+	 */
+	private final ArrayDeque<String> queuedIds = new ArrayDeque<String>();
+	private final ArrayDeque<Long> queuedRequestIds = new ArrayDeque<Long>();
+	private boolean queuedEnd = false;
+
+	/**
+	 * Creates a module named <code>name</code> in error messages.
+	 * <code>blocked</code> must match the module's blocked download
+	 * setting in the core.
+	 */
+	protected BinaryModule(String name, StateCodec<S> stateCodec, boolean blocked) {
+		this(name, stateCodec, blocked, new BinaryCodec(System.in, System.out));
+	}
+
+	BinaryModule(String name, StateCodec<S> stateCodec,
+			boolean blocked, BinaryCodec codec)
+	{
+		this.name = name;
+		this.stateCodec = stateCodec;
+		this.blocked = blocked;
+		this.codec = codec;
+	}
+
+	/**
+	 * Responds to a product list request, resuming from the given state,
+	 * which is null if the list should be started from the beginning.
+	 */
+	protected abstract void getProductList(S state);
+
+	/**
+	 * Responds to a product info request for the given product. Returns
+	 * false if the module should exit.
+	 */
+	protected abstract boolean getProductInfo(String productId);
+
+	/**
+	 * Prints an error to standard error, which the core records in the
+	 * module's log.
+	 */
+	protected void logError(String method, String message) {
+		System.err.println(name + "." + method + " ERROR: " + message);
+	}
+
+	/**
+	 * Reads whatever remains of the pending batch, since the core does not
+	 * read messages while it is sending pages.
+	 */
+	private void finishBatch() throws IOException
+	{
+		if (pending != null) {
+			pending.awaitAll();
+			pending = null;
+		}
+	}
+
+	/**
+	 * Reads up to the start of the next page. In the second version of the
+	 * protocol, the core tags what it sends, and may send product IDs
+	 * ahead of a page, which are kept until the module asks for them.
+	 */
+	void awaitPage() throws IOException
+	{
+		if (!codec.isProtocolV2())
+			return;
+		while (true) {
+			int tag = codec.readUnsignedByte();
+			if (tag == ModuleProtocol.TAG_PAGE) {
+				return;
+			} else if (tag == ModuleProtocol.TAG_PRODUCT_ID) {
+				queuedIds.add(codec.readString());
+				queuedRequestIds.add(windowed ? codec.readVarint() : 0L);
+			} else if (tag == ModuleProtocol.TAG_END_OF_IDS) {
+				queuedEnd = true;
+			} else {
+				throw new IOException("Unexpected message tag " + tag + ".");
+			}
+		}
+	}
+
+	/**
+	 * Returns the next product ID of a product info request, or null if
+	 * there are no more, setting {@link #requestId} if windowed.
+	 */
+	private String nextProductId() throws IOException
+	{
+		if (!codec.isProtocolV2()) {
+			int length = codec.readLength();
+			if (length == 0)
+				return null;
+			return codec.readString(length);
+		}
+
+		if (!queuedIds.isEmpty()) {
+			requestId = queuedRequestIds.poll();
+			return queuedIds.poll();
+		} else if (queuedEnd) {
+			queuedEnd = false;
+			return null;
+		}
+
+		int tag = codec.readUnsignedByte();
+		if (tag == ModuleProtocol.TAG_END_OF_IDS)
+			return null;
+		else if (tag != ModuleProtocol.TAG_PRODUCT_ID)
+			throw new IOException("Unexpected message tag " + tag + ".");
+		String productId = codec.readString();
+		requestId = windowed ? codec.readVarint() : 0;
+		return productId;
+	}
+
+	/**
+	 * Prepares to send a new message, by finishing the pending batch and
+	 * sending any collected records first.
+	 */
+	private void beginMessage() throws IOException
+	{
+		finishBatch();
+		codec.writeRecords(ModuleProtocol.MODULE_MULTI_RESPONSE);
+	}
+
+	/**
+	 * Asks the core to download the given URL, and returns the page. Pages
+	 * that could not be downloaded are returned with their status, and no
+	 * data.
+	 */
+	protected Page httpGet(String url) throws IOException
+	{
+		beginMessage();
+		codec.writeByte(ModuleProtocol.MODULE_HTTP_GET_REQUEST);
+		codec.writeString(url);
+		awaitPage();
+		return codec.readPage(-1, blocked);
+	}
+
+	/**
+	 * Returns the contents of the given URL, or null if it could not be
+	 * downloaded.
+	 */
+	protected byte[] httpGetRequest(String url) throws IOException
+	{
+		Page page = httpGet(url);
+		if (!page.isOk()) {
+			logError("httpGetRequest", "Error occurred during download of '" + url + "'.");
+			return null;
+		}
+		return page.getData();
+	}
+
+	/**
+	 * Asks the core to download all of the given URLs concurrently, and
+	 * returns the batch through which the pages are received as they
+	 * complete.
+	 */
+	protected Batch httpBatchGet(String[] urls) throws IOException
+	{
+		if (urls.length > ModuleProtocol.MAX_BATCH_URLS)
+			throw new IllegalArgumentException("At most "
+					+ ModuleProtocol.MAX_BATCH_URLS + " URLs may be batched.");
+
+		beginMessage();
+		Batch batch = new Batch(this, codec, blocked, urls.length);
+		if (urls.length == 0)
+			return batch;
+
+		codec.writeByte(ModuleProtocol.MODULE_HTTP_BATCH_GET_REQUEST);
+		codec.writeLength(urls.length);
+		for (String url : urls)
+			codec.writeString(url);
+		pending = batch;
+		return batch;
+	}
+
+	/**
+	 * Downloads all of the given URLs concurrently, and returns their
+	 * contents in order. Pages that could not be downloaded are null.
+	 */
+	protected byte[][] httpBatchGetRequest(String[] urls) throws IOException
+	{
+		byte[][] pages = httpBatchGet(urls).awaitAll();
+		pending = null;
+		return pages;
+	}
+
+	protected void setUserAgent(String userAgent) throws IOException
+	{
+		beginMessage();
+		codec.writeByte(ModuleProtocol.MODULE_SET_USER_AGENT);
+		codec.writeString(userAgent);
+	}
+
+	/**
+	 * Sends a page of product IDs in response to a product list request,
+	 * along with the state from which the list should resume.
+	 */
+	protected void respond(List<String> productIds, S state) throws IOException
+	{
+		beginMessage();
+		codec.writeByte(ModuleProtocol.MODULE_RESPONSE);
+		codec.writeString(stateCodec.encode(state));
+		codec.writeLength(productIds.size());
+		for (String productId : productIds)
+			codec.writeString(productId);
+	}
+
+	/**
+	 * Sends the information of a product in response to a product info
+	 * request. Keys are trimmed and lowercased, and values must be strings
+	 * or numbers; other values are skipped.
+	 */
+	protected void respond(Map<String, Object> keyValues) throws IOException
+	{
+		int count = 0;
+		for (Object value : keyValues.values()) {
+			if (value instanceof String || value instanceof Number)
+				count++;
+		}
+
+		if (codec.isProtocolV2()) {
+			finishBatch();
+			codec.beginRecord();
+			if (windowed)
+				codec.writeVarint(requestId);
+		} else {
+			beginMessage();
+			codec.writeByte(ModuleProtocol.MODULE_RESPONSE);
+		}
+
+		codec.writeLength(count);
+		for (Entry<String, Object> pair : keyValues.entrySet()) {
+			Object value = pair.getValue();
+			if (value instanceof String) {
+				writeKey(pair.getKey());
+				codec.writeByte(ModuleProtocol.TYPE_STRING);
+				codec.writeString((String) value);
+			} else if (value instanceof Number) {
+				writeKey(pair.getKey());
+				codec.writeByte(ModuleProtocol.TYPE_LONG);
+				codec.writeLong(((Number) value).longValue());
+			}
+		}
+
+		if (codec.isProtocolV2())
+			codec.endRecord();
+	}
+
+	/**
+	 * Writes a key, trimmed and lowercased. In the second version of the
+	 * protocol, a key already sent is written as its index plus one, and
+	 * a new key as zero followed by the key, which both sides then add to
+	 * their dictionaries unless they are full.
+	 */
+	private void writeKey(String key) throws IOException
+	{
+		key = key.trim().toLowerCase();
+		if (!codec.isProtocolV2()) {
+			codec.writeString(key);
+			return;
+		}
+
+		Integer index = keys.get(key);
+		if (index != null) {
+			codec.writeVarint(index + 1);
+			return;
+		}
+		codec.writeVarint(0);
+		codec.writeString(key);
+		if (keys.size() < ModuleProtocol.MAX_DICTIONARY_SIZE)
+			keys.put(key, keys.size());
+	}
+
+	private void handshake(int offered) throws IOException
+	{
+		int accepted = offered & (ModuleProtocol.CAPABILITY_PERSISTENT
+				| ModuleProtocol.CAPABILITY_PROTOCOL_V2);
+		if ((accepted & ModuleProtocol.CAPABILITY_PROTOCOL_V2) != 0)
+			accepted |= offered & ModuleProtocol.CAPABILITY_WINDOWED;
+
+		/* the handshake itself is the same in every version */
+		codec.setProtocolV2(false);
+		codec.writeByte(ModuleProtocol.MODULE_HANDSHAKE);
+		codec.writeShort(accepted);
+		codec.flush();
+
+		codec.setProtocolV2((accepted & ModuleProtocol.CAPABILITY_PROTOCOL_V2) != 0);
+		windowed = (accepted & ModuleProtocol.CAPABILITY_WINDOWED) != 0;
+		keys.clear();
+		queuedIds.clear();
+		queuedRequestIds.clear();
+		queuedEnd = false;
+	}
+
+	/**
+	 * Serves requests from the core until it closes the module's input.
+	 */
+	public void run()
+	{
+		try {
+			while (true) {
+				/* wait for the type of request */
+				int type = codec.read();
+				if (type == -1)
+					return;
+
+				switch (type) {
+				case ModuleProtocol.PRODUCT_LIST_REQUEST:
+					getProductList(stateCodec.decode(codec.readString()));
+					break;
+				case ModuleProtocol.PRODUCT_INFO_REQUEST:
+					String productId = nextProductId();
+					while (productId != null) {
+						if (!getProductInfo(productId))
+							return;
+
+						/* send the records once no more requests are waiting */
+						if (codec.getRecordCount() >= ModuleProtocol.MAX_RECORDS
+								|| (queuedIds.isEmpty() && !queuedEnd && codec.available() == 0))
+							codec.writeRecords(ModuleProtocol.MODULE_MULTI_RESPONSE);
+						productId = nextProductId();
+					}
+					break;
+				case ModuleProtocol.MODULE_PING_REQUEST:
+					handshake(codec.readUnsignedShort());
+					continue;
+				default:
+					logError("run", "Unknown request type " + type + ".");
+					return;
+				}
+
+				/* let the core know we are ready for another request */
+				beginMessage();
+				codec.writeByte(ModuleProtocol.MODULE_END_OF_REQUEST);
+				codec.flush();
+			}
+		} catch (IOException e) {
+			logError("run", "Error communicating with core.");
+		} finally {
+			try {
+				codec.flush();
+			} catch (IOException e) { }
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package transparent.modules.sdk;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Measures the per-message throughput of the SDK codec against the
+ * protocol code the modules used before, over in-memory streams. The old
+ * code wrote each field through {@link System#out}, an auto-flushing
+ * {@link PrintStream}, so the output side counts the writes that reach
+ * the underlying stream, each of which would be a write to the core's
+ * pipe.
+ * <p>
+ * Usage: <code>java transparent.modules.sdk.CodecBenchmark [responses]
+ * [pages]</code>
+ */
+public class CodecBenchmark
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int PAGE_SIZE = 65536; /* in bytes */
+	private static final int BLOCK_SIZE = 4096; /* in bytes */
+
+	private static class CountingSink extends OutputStream
+	{
+		long writes = 0;
+		long bytes = 0;
+
+		@Override
+		public void write(int b) {
+			writes++;
+			bytes++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			writes++;
+			bytes += len;
+		}
+	}
+
+	private static class NullModule extends BinaryModule<String>
+	{
+		NullModule(BinaryCodec codec) {
+			super("CodecBenchmark", null, true, codec);
+		}
+
+		@Override
+		protected void getProductList(String state) { }
+
+		@Override
+		protected boolean getProductInfo(String productId) {
+			return true;
+		}
+	}
+
+	private static void legacyRespond(DataOutputStream out,
+			Map<String, Object> keyValues) throws IOException
+	{
+		out.writeByte(ModuleProtocol.MODULE_RESPONSE);
+		out.writeShort(keyValues.size());
+		for (Entry<String, Object> pair : keyValues.entrySet()) {
+			byte[] key = pair.getKey().trim().toLowerCase().getBytes(UTF8);
+			out.writeShort(key.length);
+			out.write(key);
+
+			Object valueObject = pair.getValue();
+			if (valueObject instanceof String) {
+				byte[] value = ((String) valueObject).getBytes(UTF8);
+				out.writeByte(ModuleProtocol.TYPE_STRING);
+				out.writeShort(value.length);
+				out.write(value);
+			} else if (valueObject instanceof Number) {
+				out.writeByte(ModuleProtocol.TYPE_LONG);
+				out.writeLong(((Number) valueObject).longValue());
+			}
+		}
+		out.flush();
+	}
+
+	private static byte[] legacyPage(DataInputStream in) throws IOException
+	{
+		int length = in.readUnsignedShort();
+		byte[] data = new byte[length];
+		in.readFully(data);
+
+		ByteArrayOutputStream response = new ByteArrayOutputStream(BLOCK_SIZE);
+		length = in.readUnsignedShort();
+		while (length != 0) {
+			data = new byte[length];
+			in.readFully(data);
+			response.write(data);
+			length = in.readUnsignedShort();
+		}
+
+		if (in.readUnsignedByte() != ModuleProtocol.DOWNLOAD_OK)
+			return null;
+		return response.toByteArray();
+	}
+
+	/**
+	 * Returns the given number of pages as the core would send them to a
+	 * blocked module.
+	 */
+	private static byte[] encodePages(int count) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte[] block = new byte[BLOCK_SIZE];
+		for (int i = 0; i < count; i++) {
+			out.writeShort(9);
+			out.writeBytes("text/html");
+			for (int sent = 0; sent < PAGE_SIZE; sent += BLOCK_SIZE) {
+				out.writeShort(BLOCK_SIZE);
+				out.write(block);
+			}
+			out.writeShort(0);
+			out.writeByte(ModuleProtocol.DOWNLOAD_OK);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void report(String name, int count, long started, String detail)
+	{
+		double seconds = (System.nanoTime() - started) / 1e9;
+		System.out.println(String.format("%-20s %10.0f msg/s  %s",
+				name, count / seconds, detail));
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int responses = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		int pages = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+		Map<String, Object> keyValues = new HashMap<String, Object>();
+		keyValues.put("name", "Intel Core i7-3770K Ivy Bridge 3.5GHz LGA 1155 Desktop Processor");
+		keyValues.put("brand", "Intel");
+		keyValues.put("model", "BX80637I73770K");
+		keyValues.put("price", 32999);
+		keyValues.put("url", "http://www.newegg.com/Product/Product.aspx?Item=N82E16819116501");
+		keyValues.put("image", "http://images10.newegg.com/ProductImageCompressAll640/19-116-501-02.jpg");
+		keyValues.put("cores", "Quad-Core");
+		keyValues.put("operating frequency", "3.5GHz");
+		keyValues.put("l3 cache", "8MB");
+		keyValues.put("thermal design power", "77W");
+		byte[] input = encodePages(pages);
+
+		for (int round = 0; round < 3; round++) {
+			System.out.println("round " + (round + 1));
+
+			CountingSink sink = new CountingSink();
+			DataOutputStream legacyOut = new DataOutputStream(
+					new PrintStream(new BufferedOutputStream(sink), true));
+			long started = System.nanoTime();
+			for (int i = 0; i < responses; i++)
+				legacyRespond(legacyOut, keyValues);
+			report("legacy responses", responses, started,
+					(sink.writes / responses) + " writes/msg, "
+					+ (sink.bytes / responses) + " bytes/msg");
+
+			sink = new CountingSink();
+			BinaryCodec codec = new BinaryCodec(new ByteArrayInputStream(new byte[0]), sink);
+			NullModule module = new NullModule(codec);
+			started = System.nanoTime();
+			for (int i = 0; i < responses; i++) {
+				module.respond(keyValues);
+				codec.flush();
+			}
+			report("sdk responses", responses, started,
+					(sink.writes / responses) + " writes/msg, "
+					+ (sink.bytes / responses) + " bytes/msg");
+
+			/* the second protocol, with the records of a window of 16 sent together */
+			sink = new CountingSink();
+			codec = new BinaryCodec(new ByteArrayInputStream(new byte[0]), sink);
+			codec.setProtocolV2(true);
+			module = new NullModule(codec);
+			started = System.nanoTime();
+			for (int i = 0; i < responses; i++) {
+				module.respond(keyValues);
+				if (codec.getRecordCount() == 16) {
+					codec.writeRecords(ModuleProtocol.MODULE_MULTI_RESPONSE);
+					codec.flush();
+				}
+			}
+			report("sdk v2 responses", responses, started,
+					(sink.bytes / responses) + " bytes/msg");
+
+			DataInputStream legacyIn = new DataInputStream(new ByteArrayInputStream(input));
+			long total = 0;
+			started = System.nanoTime();
+			for (int i = 0; i < pages; i++)
+				total += legacyPage(legacyIn).length;
+			report("legacy pages", pages, started, (total / pages) + " bytes/page");
+
+			InputStream in = new ByteArrayInputStream(input);
+			codec = new BinaryCodec(in, new CountingSink());
+			total = 0;
+			started = System.nanoTime();
+			for (int i = 0; i < pages; i++)
+				total += codec.readPage(-1, true).getData().length;
+			report("sdk pages", pages, started, (total / pages) + " bytes/page");
+		}
+	}
+}
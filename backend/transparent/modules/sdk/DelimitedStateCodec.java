@@ -0,0 +1,54 @@
+package transparent.modules.sdk;
+
+import java.util.regex.Pattern;
+
+/**
+ * A {@link StateCodec} for states made of a fixed list of fields, which
+ * are joined by a delimiter.
+ */
+public abstract class DelimitedStateCodec<S> implements StateCodec<S>
+{
+	private final String delimiter;
+	private final Pattern pattern;
+
+	protected DelimitedStateCodec(String delimiter) {
+		this.delimiter = delimiter;
+		this.pattern = Pattern.compile(Pattern.quote(delimiter));
+	}
+
+	protected abstract Object[] toFields(S state);
+
+	/**
+	 * Builds the state from its fields. May throw any runtime exception if
+	 * the fields are malformed.
+	 */
+	protected abstract S fromFields(String[] fields);
+
+	@Override
+	public String encode(S state)
+	{
+		StringBuilder builder = new StringBuilder();
+		Object[] fields = toFields(state);
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				builder.append(delimiter);
+			builder.append(fields[i]);
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public S decode(String state)
+	{
+		if (state == null || state.length() == 0)
+			return null;
+
+		try {
+			return fromFields(pattern.split(state, -1));
+		} catch (RuntimeException e) {
+			System.err.println("DelimitedStateCodec.decode: Could not decode state. "
+					+ e.getClass().getSimpleName() + " thrown. " + e.getMessage());
+			return null;
+		}
+	}
+}
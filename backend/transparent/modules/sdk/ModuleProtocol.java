@@ -0,0 +1,52 @@
+package transparent.modules.sdk;
+
+/**
+ * Message types and flags of the binary protocol between the core and
+ * its modules.
+ */
+public class ModuleProtocol
+{
+	/* requests from the core */
+	public static final int PRODUCT_LIST_REQUEST = 0;
+	public static final int PRODUCT_INFO_REQUEST = 1;
+	public static final int MODULE_PING_REQUEST = 2;
+
+	/* messages to the core */
+	public static final int MODULE_RESPONSE = 0;
+	public static final int MODULE_HTTP_GET_REQUEST = 1;
+	public static final int MODULE_HTTP_POST_REQUEST = 2;
+	public static final int MODULE_SET_USER_AGENT = 3;
+	public static final int MODULE_HANDSHAKE = 4;
+	public static final int MODULE_END_OF_REQUEST = 5;
+	public static final int MODULE_WINDOWED_RESPONSE = 6;
+	public static final int MODULE_HTTP_BATCH_GET_REQUEST = 7;
+	public static final int MODULE_MULTI_RESPONSE = 8;
+
+	/* in the second protocol, tags of the messages the core sends during a request */
+	public static final int TAG_PRODUCT_ID = 1;
+	public static final int TAG_END_OF_IDS = 2;
+	public static final int TAG_PAGE = 3;
+
+	/* capabilities exchanged in the handshake */
+	public static final int CAPABILITY_PERSISTENT = 1;
+	public static final int CAPABILITY_WINDOWED = 2;
+	public static final int CAPABILITY_NOT_MODIFIED = 4;
+	public static final int CAPABILITY_PROTOCOL_V2 = 8;
+
+	/* value types of product info key-value pairs */
+	public static final int TYPE_LONG = 0;
+	public static final int TYPE_STRING = 1;
+
+	/* the status of a downloaded page */
+	public static final int DOWNLOAD_OK = 0;
+	public static final int DOWNLOAD_ABORTED = 1;
+	public static final int URL_NOT_FOUND = 2;
+	public static final int DOWNLOAD_NOT_MODIFIED = 3;
+
+	public static final int MAX_USHORT = 65535;
+	public static final int MAX_BATCH_URLS = 256;
+	public static final int MAX_DICTIONARY_SIZE = 4096;
+	public static final int MAX_RECORDS = 1024;
+
+	private ModuleProtocol() { }
+}
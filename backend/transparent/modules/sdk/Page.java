@@ -0,0 +1,63 @@
+package transparent.modules.sdk;
+
+import java.nio.charset.Charset;
+
+/**
+ * A page downloaded by the core on behalf of a module.
+ */
+public class Page
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int index;
+	private final int status;
+	private final String contentType;
+	private final byte[] data;
+
+	public Page(int index, int status, String contentType, byte[] data) {
+		this.index = index;
+		this.status = status;
+		this.contentType = contentType;
+		this.data = data;
+	}
+
+	/**
+	 * Returns the index of the page's URL in its batch request, or -1 if
+	 * it was not part of a batch.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns one of the download status codes in {@link ModuleProtocol}.
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	public boolean isOk() {
+		return status == ModuleProtocol.DOWNLOAD_OK;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Returns the contents of the page, or null if it was not downloaded.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Returns the contents of the page decoded as UTF-8, or null if it was
+	 * not downloaded.
+	 */
+	public String getText() {
+		if (data == null)
+			return null;
+		return new String(data, UTF8);
+	}
+}
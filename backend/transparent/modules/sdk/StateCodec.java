@@ -0,0 +1,17 @@
+package transparent.modules.sdk;
+
+/**
+ * Converts a module's crawl state to and from the string the core
+ * stores, so that an interrupted product list request can resume where
+ * it stopped.
+ */
+public interface StateCodec<S>
+{
+	String encode(S state);
+
+	/**
+	 * Returns the decoded state, or null if the given string is empty or
+	 * cannot be decoded.
+	 */
+	S decode(String state);
+}
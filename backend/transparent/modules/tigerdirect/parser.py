@@ -12,6 +12,11 @@ CATEGORIES = [	32,		22, 	99,		8, 		109,	9, 		10,		13, 	106,	24, \
 RANGES = [ ('0.01', '24.99'), ('25.00', '49.99'), ('50.00', '99.99'), ('100.00', '199.99'), \
 		('200.00', '499.99'), ('500.00', '749.99'), ('750.00', '999.99'), ('1000.00', '1499.99'), ('1500.00', '0') ]
 
+# this module can serve many requests from one process
+CAPABILITY_PERSISTENT = 1
+# this module accepts several outstanding product info requests
+CAPABILITY_WINDOWED = 2
+
 parser = html5lib.HTMLParser(tree=html5lib.treebuilders.getTreeBuilder("lxml"), namespaceHTMLElements=False)
 price_selector = lxml.cssselect.CSSSelector('dd.priceFinal')
 next_selector = lxml.cssselect.CSSSelector('a.paginatNext')
@@ -27,6 +32,9 @@ id_selector = lxml.cssselect.CSSSelector('p.itemModel')
 
 err = open('log.txt', 'w')
 
+# requests the core sent ahead while we waited for a page
+pending = []
+
 def nodeText(node):
 	return ''.join([x for x in node.itertext()])
 
@@ -36,11 +44,30 @@ def encodePrice(s):
 		return None
 	return int(price_string)
 
+def readRequest():
+	if len(pending) > 0:
+		return pending.pop(0)
+	line = sys.stdin.readline()
+	if len(line) == 0:
+		return None
+	return json.loads(line)
+
 def httpGetRequest(url):
 	json.dump({'type':'get', 'url':url}, sys.stdout)
 	sys.stdout.write('\n')
 	sys.stdout.flush()
-	return json.loads(sys.stdin.readline())['response']
+
+	# with a window, further product IDs (typed requests, or the empty
+	# message that ends them) may arrive before the page
+	while True:
+		message = json.loads(sys.stdin.readline())
+		if 'type' in message or len(message) == 0:
+			pending.append(message)
+			continue
+		if 'response' not in message:
+			err.write("Unable to download '" + url + "': " + json.dumps(message) + "\n")
+			return ''
+		return message['response']
 
 def parseProductList(request):
 	state = (0, 0, 1)
@@ -108,24 +135,41 @@ def parseProductInfo(request):
 			value = td_selector(row[0])
 			if value is not None and len(value) > 0:
 				response[key[0].strip().lower()] = value[0]
-	json.dump({'type':'response', 'response':response}, sys.stdout)
+	message = {'type':'response', 'response':response}
+	if 'request' in request:
+		message['request'] = request['request']
+	json.dump(message, sys.stdout)
+	sys.stdout.write('\n')
+	sys.stdout.flush()
+
+def respond(message):
+	json.dump(message, sys.stdout)
 	sys.stdout.write('\n')
 	sys.stdout.flush()
 
 try:
-	request = json.loads(sys.stdin.readline())
-	if ('type' not in request):
-		sys.exit(0)
-	if (request['type'] == 'list'):
-		parseProductList(request)
-	elif (request['type'] == 'info'):		
-		while len(request) > 0:
-			parseProductInfo(request)
-			request = json.loads(sys.stdin.readline())
-	else:
-		err.write("Unrecognized request type '" + request['type'] + "'.\n")
+	while True:
+		request = readRequest()
+		if request is None:
+			break
+		if ('type' not in request):
+			break
+		if (request['type'] == 'ping'):
+			respond({'type':'handshake', 'capabilities':request.get('capabilities', 0) & (CAPABILITY_PERSISTENT | CAPABILITY_WINDOWED)})
+			continue
+		elif (request['type'] == 'list'):
+			parseProductList(request)
+		elif (request['type'] == 'info'):
+			while request is not None and len(request) > 0:
+				parseProductInfo(request)
+				request = readRequest()
+		else:
+			err.write("Unrecognized request type '" + request['type'] + "'.\n")
+			break
+
+		# let the core know we are ready for another request
+		respond({'type':'end'})
 except:
 	traceback.print_exc(file=err)
 err.flush();
 err.close();
-